@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Microbenchmarks for the protocol codec: parsing one line of each
+ * message type, and rendering one message of each type with
+ * toString(), with writeTo(), and in the binary codec with
+ * writeBinary().  parseLineRegex() is the old
+ * regexp-based parser, kept here as a baseline for parseLine().
+ *
+ * Run with "ant bench"; see README.txt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBench {
+    @Param({"hello", "hellofail", "hellosucceed", "clientlist", "client",
+            "telemetry", "standings", "racer", "raceconcluded", "result",
+            "goodbye"})
+    public String type;
+
+    private String line;
+    private ProtocolHandler.ProtocolMessage msg;
+    private ByteBuffer buf = ByteBuffer.allocate(4096);
+
+    // one line of each message type, as it arrives from readLine().
+    static String sampleLine(String type) {
+        String raceid = "raceid='18d1a1bcd104ee116a772310bbc61211'";
+        String riderid = "riderid='123212321232123a'";
+        if (type.equals("hello"))
+            return "hello 0.1 " + raceid +
+                " ridername='Steve G' ftp='213' weight='74.8'";
+        if (type.equals("hellofail"))
+            return "hellofail 0.1 nosuchrace " + raceid;
+        if (type.equals("hellosucceed"))
+            return "hellosucceed 0.1 " + raceid + " " + riderid +
+                " racedistance='180.0'";
+        if (type.equals("clientlist"))
+            return "clientlist " + raceid + " numclients='5'";
+        if (type.equals("client"))
+            return "client ridername='Steve G' " + riderid +
+                " ftp='213' weight='75.8'";
+        if (type.equals("telemetry"))
+            return "telemetry " + raceid + " " + riderid +
+                " power='250' cadence='85' distance='5.41' heartrate='155'" +
+                " speed='31.5'";
+        if (type.equals("standings"))
+            return "standings " + raceid + " numclients='5'";
+        if (type.equals("racer"))
+            return "racer " + riderid + " power='250' cadence='85'" +
+                " distance='5.41' heartrate='155' speed='31.5' place='1'";
+        if (type.equals("raceconcluded"))
+            return "raceconcluded " + raceid + " numclients='5'";
+        if (type.equals("result"))
+            return "result " + riderid + " distance='5.41' place='1'";
+        if (type.equals("goodbye"))
+            return "goodbye " + raceid + " " + riderid;
+        throw new IllegalArgumentException("unknown message type " + type);
+    }
+
+    @Setup
+    public void setup() {
+        line = sampleLine(type);
+        msg = ProtocolHandler.parseLine(line);
+        if (msg == null)
+            throw new IllegalStateException("can't parse " + line);
+    }
+
+    @Benchmark
+    public ProtocolHandler.ProtocolMessage parseLine() {
+        return ProtocolHandler.parseLine(line);
+    }
+
+    @Benchmark
+    public ProtocolHandler.ProtocolMessage parseLineRegex() {
+        return ProtocolHandler.parseLineRegex(line);
+    }
+
+    @Benchmark
+    public String serializeToString() {
+        return msg.toString();
+    }
+
+    @Benchmark
+    public ByteBuffer serializeWriteTo() {
+        buf.clear();
+        msg.writeTo(buf);
+        return buf;
+    }
+
+    @Benchmark
+    public ByteBuffer serializeWriteBinary() {
+        buf.clear();
+        msg.writeBinary(buf);
+        return buf;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Microbenchmarks for the Race hot paths, at 10, 100 and 1000 riders:
+ * applying one telemetry update (single-threaded, and with four
+ * threads feeding different riders at once), building and queueing
+ * one standings broadcast, and one full tick.
+ *
+ * The riders' sinks are real Mailboxes that nobody drains.  Standings
+ * frames conflate, so each mailbox holds at most one and the
+ * broadcast cost includes the conflation work a live server does.
+ *
+ * Run with "ant bench"; see README.txt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RaceBench {
+    @Param({"10", "100", "1000"})
+    public int riders;
+
+    private Race race;
+    private Rider[] rider;
+    private ProtocolHandler.TelemetryMessage[] telemetry;
+
+    // a MessageSink with no connection behind it.
+    static class BenchSink implements MessageSink {
+        private Mailbox queue = new Mailbox(40);
+
+        public boolean add(ProtocolHandler.ProtocolMessage m) {
+            return queue.offer(m);
+        }
+
+        public void setCodec(WireCodec codec) {
+        }
+
+        public Mailbox getMailbox() {
+            return queue;
+        }
+    }
+
+    // which rider a benchmark thread sends telemetry for next.
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup
+        public void setup() {
+            next = (int) (Thread.currentThread().getId() * 7919);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        String raceid = "18d1a1bcd104ee116a772310bbc61211";
+
+        // a distance of 0 means the race never concludes.
+        race = new Race(raceid, 0, riders);
+        rider = new Rider[riders];
+        telemetry = new ProtocolHandler.TelemetryMessage[riders];
+        for (int i=0; i<riders; i++) {
+            rider[i] = new Rider("rider " + i, 250, 75, null,
+                                 new BenchSink());
+            race.addClient(rider[i]);
+
+            // spread the speeds out so that riders keep overtaking
+            // one another, which is what makes standings work.
+            telemetry[i] =
+                new ProtocolHandler.TelemetryMessage(raceid,
+                                                     rider[i].getRiderid(),
+                                                     200 + (i % 100), 90,
+                                                     (float) 0.0, 150,
+                                                     (float) (25.0 + (i % 17)));
+            race.telemetryUpdate(rider[i], telemetry[i]);
+        }
+    }
+
+    @Benchmark
+    public boolean telemetryUpdate(Cursor c) {
+        int i = (c.next++ & Integer.MAX_VALUE) % riders;
+        return race.telemetryUpdate(rider[i], telemetry[i]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean telemetryUpdateContended(Cursor c) {
+        int i = (c.next++ & Integer.MAX_VALUE) % riders;
+        return race.telemetryUpdate(rider[i], telemetry[i]);
+    }
+
+    @Benchmark
+    public void sendTelemetryUpdates() {
+        race.sendTelemetryUpdates();
+    }
+
+    @Benchmark
+    public void tick() {
+        race.tick(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2010 Steve Gribble  [gribble {at} cs.washington.edu]
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/*
+ * AsciiEncoder holds the primitives that ProtocolMessage.writeTo()
+ * implementations use to render themselves as US-ASCII bytes straight
+ * into a ByteBuffer, without going through String.format or a charset
+ * encoder.  The output is byte-for-byte what toString() produces and a
+ * US-ASCII OutputStreamWriter would have sent: ints as with "%d",
+ * floats as with "%.2f", and '?' for any non-ASCII character.
+ *
+ * If the default locale doesn't format numbers the way the fast paths
+ * do (e.g., it uses a decimal comma), every number goes through
+ * String.format instead, so the output still matches toString().
+ */
+final class AsciiEncoder {
+    private static final boolean fast_numbers =
+        String.format("%.2f|%d", -1234.5f, -1234567).equals("-1234.50|-1234567");
+
+    private AsciiEncoder() {
+    }
+
+    // the US-ASCII bytes of a string literal, for precomputing
+    // the constant parts of messages.
+    static byte[] bytes(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i=0; i<b.length; i++) {
+            char c = s.charAt(i);
+            b[i] = (c < 128) ? (byte) c : (byte) '?';
+        }
+        return b;
+    }
+
+    static void putString(ByteBuffer buf, String s) {
+        if (s == null)
+            s = "null";
+        int len = s.length();
+        for (int i=0; i<len; i++) {
+            char c = s.charAt(i);
+            if (c < 128) {
+                buf.put((byte) c);
+                continue;
+            }
+            // unmappable; the encoder replaces a surrogate pair with a
+            // single '?', like any other character.
+            if (Character.isHighSurrogate(c) && (i + 1 < len) &&
+                Character.isLowSurrogate(s.charAt(i + 1)))
+                i++;
+            buf.put((byte) '?');
+        }
+    }
+
+    static void putInt(ByteBuffer buf, int v) {
+        if (!fast_numbers) {
+            putString(buf, String.format("%d", v));
+            return;
+        }
+        putLong(buf, v);
+    }
+
+    /*
+     * A float as "%.2f" would print it.  Formatter widens the float to
+     * a double and rounds its decimal digits half-up; we get the same
+     * answer from v * 100 unless that lands within a hair of a .5, where
+     * the rounding error in v * 100 could matter.  Those, and negative,
+     * huge, or non-finite values, are rare enough to hand to
+     * String.format.
+     */
+    static void putFixed2(ByteBuffer buf, float f) {
+        double d = f;
+        if (!fast_numbers || !(d >= 0.0) || (d >= 1e7) ||
+            (Float.floatToRawIntBits(f) < 0)) {
+            putString(buf, String.format("%.2f", f));
+            return;
+        }
+        double t = d * 100.0;
+        long   n = (long) t;
+        double frac = t - n;
+        if (Math.abs(frac - 0.5) < 1e-6) {
+            putString(buf, String.format("%.2f", f));
+            return;
+        }
+        if (frac >= 0.5)
+            n++;
+        putLong(buf, n / 100);
+        buf.put((byte) '.');
+        buf.put((byte) ('0' + (int) ((n / 10) % 10)));
+        buf.put((byte) ('0' + (int) (n % 10)));
+    }
+
+    private static void putLong(ByteBuffer buf, long v) {
+        if (v < 0) {
+            buf.put((byte) '-');
+            if (v == Long.MIN_VALUE) {
+                putString(buf, "9223372036854775808");
+                return;
+            }
+            v = -v;
+        }
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10)
+            digits++;
+        if (buf.remaining() < digits)
+            throw new BufferOverflowException();
+        int at = buf.position() + digits;
+        buf.position(at);
+        do {
+            buf.put(--at, (byte) ('0' + (int) (v % 10)));
+            v /= 10;
+        } while (v != 0);
+    }
+
+    /*
+     * Append a message to buf, growing the buffer if the message
+     * doesn't fit.  Returns the buffer to keep using, which is buf
+     * unless it had to grow.
+     */
+    static ByteBuffer append(ByteBuffer buf, ProtocolHandler.ProtocolMessage pm) {
+        while (true) {
+            int mark = buf.position();
+            try {
+                pm.writeTo(buf);
+                return buf;
+            } catch (BufferOverflowException boe) {
+                buf.position(mark);
+                ByteBuffer bigger =
+                    ByteBuffer.allocate(Math.max(256, buf.capacity() * 2));
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/*
+ * BinaryCodec holds the primitives that ProtocolMessage.writeBinary()
+ * implementations use to render themselves in the compact binary form
+ * of the GC/GS protocol (protocol version 0.2; see
+ * doc/protocol_spec.txt), and read() for turning that form back into
+ * ProtocolMessages on the client side.
+ *
+ * Every record is a one-byte type followed by fixed-width, big-endian
+ * fields.  Riders are named by their 16-bit index in the race rather
+ * than their riderid; the client list maps indices to riderids.
+ * Values that don't fit a field are clamped, and numbers the ASCII
+ * form prints with two decimals are sent as scaled integers (metres,
+ * hundredths of a kph or kg).
+ */
+final class BinaryCodec {
+    private static final Charset charset = Charset.forName("US-ASCII");
+
+    static final byte STANDINGS     = 0x01;
+    static final byte RACER         = 0x02;
+    static final byte CLIENTLIST    = 0x03;
+    static final byte CLIENT        = 0x04;
+    static final byte RACECONCLUDED = 0x05;
+    static final byte RESULT        = 0x06;
+    static final byte STANDINGSDELTA = 0x07;
+    static final byte STANDINGSWINDOW = 0x08;
+    static final byte LINE          = 0x7f;
+
+    private BinaryCodec() {
+    }
+
+    static void putU8(ByteBuffer buf, int v) {
+        buf.put((byte) Math.max(0, Math.min(0xff, v)));
+    }
+
+    static void putU16(ByteBuffer buf, int v) {
+        buf.putShort((short) Math.max(0, Math.min(0xffff, v)));
+    }
+
+    static void putU32(ByteBuffer buf, long v) {
+        buf.putInt((int) Math.max(0L, Math.min(0xffffffffL, v)));
+    }
+
+    // a float scaled up and rounded to an unsigned integer field.
+    static long scaled(float f, int scale) {
+        if (!(f > 0.0f))
+            return 0;                      // negative or NaN
+        return Math.round((double) f * scale);
+    }
+
+    // a riderid, which is a 64-bit hex number, or 0 if it isn't one.
+    static void putRiderid(ByteBuffer buf, String riderid) {
+        long id = 0;
+        try {
+            id = Long.parseUnsignedLong(riderid, 16);
+        } catch (NumberFormatException nfe) {
+        }
+        buf.putLong(id);
+    }
+
+    // a short ASCII string: a length byte, then up to 255 characters.
+    static void putShortString(ByteBuffer buf, String s) {
+        if (s == null)
+            s = "";
+        int len = Math.min(s.length(), 0xff);
+        if (buf.remaining() < len + 1)
+            throw new BufferOverflowException();
+        buf.put((byte) len);
+        for (int i=0; i<len; i++) {
+            char c = s.charAt(i);
+            buf.put((c < 128) ? (byte) c : (byte) '?');
+        }
+    }
+
+    /*
+     * A message with no binary form of its own, as a LINE record: a
+     * 16-bit length, then the message's ASCII line.
+     */
+    static void putLine(ByteBuffer buf, ProtocolHandler.ProtocolMessage pm) {
+        buf.put(LINE);
+        int at = buf.position();
+        buf.putShort((short) 0);
+        pm.writeTo(buf);
+        int len = buf.position() - at - 2;
+        if (len > 0xffff)
+            throw new IllegalArgumentException("line too long for binary: " +
+                                               len + " bytes");
+        buf.putShort(at, (short) len);
+    }
+
+    /*
+     * Append a message's binary form to buf, growing the buffer if it
+     * doesn't fit.  Returns the buffer to keep using, which is buf
+     * unless it had to grow.
+     */
+    static ByteBuffer append(ByteBuffer buf, ProtocolHandler.ProtocolMessage pm) {
+        while (true) {
+            int mark = buf.position();
+            try {
+                pm.writeBinary(buf);
+                return buf;
+            } catch (BufferOverflowException boe) {
+                buf.position(mark);
+                ByteBuffer bigger =
+                    ByteBuffer.allocate(Math.max(256, buf.capacity() * 2));
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+        }
+    }
+
+    /*
+     * Read one record and return it as a ProtocolMessage, for clients
+     * and tests.  Records that name a rider by index come back with
+     * rider_index set and riderid null.  Raceids aren't sent; the
+     * caller says which race the connection is for.  A LINE record is
+     * parsed with parseLine().  Throws IOException at end of stream or
+     * on an unknown record.
+     */
+    static ProtocolHandler.ProtocolMessage read(DataInput in, String raceid)
+        throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case STANDINGS:
+            return new ProtocolHandler.StandingsMessage(raceid,
+                in.readUnsignedShort());
+        case RACER: {
+            int index = in.readUnsignedShort();
+            int power = in.readUnsignedShort();
+            int cadence = in.readUnsignedByte();
+            int hr = in.readUnsignedByte();
+            long metres = in.readInt() & 0xffffffffL;
+            int speed = in.readUnsignedShort();
+            int place = in.readUnsignedShort();
+            ProtocolHandler.RacerMessage rm =
+                new ProtocolHandler.RacerMessage(null, power, cadence,
+                                                 metres / 1000.0f, hr,
+                                                 speed / 100.0f, place);
+            rm.rider_index = index;
+            return rm;
+        }
+        case CLIENTLIST:
+            return new ProtocolHandler.ClientListMessage(raceid,
+                in.readUnsignedShort());
+        case CLIENT: {
+            int index = in.readUnsignedShort();
+            long id = in.readLong();
+            int ftp = in.readUnsignedShort();
+            int weight = in.readUnsignedShort();
+            byte[] name = new byte[in.readUnsignedByte()];
+            in.readFully(name);
+            ProtocolHandler.ClientMessage cm =
+                new ProtocolHandler.ClientMessage(new String(name, charset),
+                                                  Long.toHexString(id), ftp,
+                                                  weight / 100.0f);
+            cm.rider_index = index;
+            return cm;
+        }
+        case RACECONCLUDED:
+            return new ProtocolHandler.RaceConcludedMessage(raceid,
+                in.readUnsignedShort());
+        case RESULT: {
+            int index = in.readUnsignedShort();
+            long metres = in.readInt() & 0xffffffffL;
+            int place = in.readUnsignedShort();
+            ProtocolHandler.ResultMessage res =
+                new ProtocolHandler.ResultMessage(null, metres / 1000.0f,
+                                                  place);
+            res.rider_index = index;
+            return res;
+        }
+        case STANDINGSDELTA: {
+            int numclients = in.readUnsignedShort();
+            return new ProtocolHandler.StandingsDeltaMessage(raceid,
+                numclients, in.readUnsignedShort());
+        }
+        case STANDINGSWINDOW: {
+            ProtocolHandler.StandingsMessage sm =
+                new ProtocolHandler.StandingsMessage(raceid,
+                                                     in.readUnsignedShort());
+            sm.total = in.readUnsignedShort();
+            return sm;
+        }
+        case LINE: {
+            byte[] line = new byte[in.readUnsignedShort()];
+            in.readFully(line);
+            return ProtocolHandler.parseLine(new String(line, charset));
+        }
+        default:
+            throw new IOException("unknown binary record type " + type);
+        }
+    }
+}
@@ -26,115 +26,199 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
-public class ClientHandler extends Thread {
+/*
+ * A ClientHandler serves one client connection with blocking I/O:
+ * the handler reads from the client, and its ClientWriter drains
+ * outbound messages to it.  Both run on threads made by
+ * thread_factory, which is platform threads by default or virtual
+ * threads after useVirtualThreads().
+ */
+public class ClientHandler implements Runnable {
     static Logger logger = Logger.getLogger(ClientHandler.class.getName());
-    static Hashtable<String,Race> activeRaces = new Hashtable<String,Race>();
+    private static final long LINGER_MS = 5000;
+    private static ThreadFactory thread_factory = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            return new Thread(r);
+        }
+    };
 
     private BufferedReader in = null;
-    private PrintWriter out = null;
+    private OutputStream out = null;
     private Socket clientsock = null;
-    private Rider rider = null;
-    private Race race = null;
     private WebPoller poller = null;
+    private Cluster cluster = null;
     private ClientWriter writer = null;
-    private Object sync_concluded = new Object();
-    private boolean sent_concluded = false;
+    private ClientSession session = null;
+    private IdleTimer.Entry idle = null;
+    private long received_nanos = 0;    // when the last line arrived
 
     public ClientHandler(Socket clientsock, WebPoller poller) {
+        this(clientsock, poller, null);
+    }
+
+    /*
+     * If cluster isn't null, clients of races owned by other nodes are
+     * proxied to them.
+     */
+    public ClientHandler(Socket clientsock, WebPoller poller,
+                         Cluster cluster) {
         this.clientsock = clientsock;
         this.poller = poller;
+        this.cluster = cluster;
+        ClientSession.opened();
+    }
+
+    /*
+     * Switch all ClientHandlers and ClientWriters started from now on
+     * to virtual threads.  Looked up reflectively so that we still
+     * build and run on JVMs older than Java 21; returns false if this
+     * JVM doesn't have virtual threads.
+     */
+    public static boolean useVirtualThreads() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory =
+                Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            thread_factory = (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException roe) {
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Start the handler on a new thread.
+     */
+    public void start() {
+        thread_factory.newThread(this).start();
     }
 
     /*
      * Set up a thread for each client to handle writing stuff
-     * back to the client.  Thread drains from a fixed capacity
-     * queue.
+     * back to the client.  Thread drains from a conflating
+     * Mailbox, rendering whatever is queued into a reusable buffer with
+     * ProtocolMessage.writeTo() and sending it with one write.
+     *
+     * The thread sleeps in the Mailbox until there is something to
+     * send or the Mailbox is closed, and closes the output stream as it
+     * exits.  getClosed() is a future for that moment, so whoever is
+     * tearing the connection down can carry on the instant the last
+     * bytes are written, rather than polling.
      */
-    public class ClientWriter extends Thread {
-        private PrintWriter out;
-        private boolean halt;
-        private ArrayBlockingQueue<ProtocolHandler.ProtocolMessage> queue;
+    public class ClientWriter implements Runnable, MessageSink {
+        private OutputStream out;
+        private volatile boolean halt;
+        private Mailbox queue;
+        private CompletableFuture<Void> closed =
+            new CompletableFuture<Void>();
+        private volatile WireCodec codec = WireCodec.ASCII;
+        private ByteBuffer buf = ByteBuffer.allocate(4096);
+        private LatencyStats.Batch batch = new LatencyStats.Batch();
         private static final int QCAP = 40;
 
-        public ClientWriter(PrintWriter out) {
+        public ClientWriter(OutputStream out) {
             this.out = out;
             this.halt = false;
-            this.queue =
-                new ArrayBlockingQueue<ProtocolHandler.ProtocolMessage>(QCAP);
+            this.queue = new Mailbox(QCAP);
+        }
+
+        public void start() {
+            thread_factory.newThread(this).start();
         }
 
         /*
-         * Cause the ClientWriter thread to exit on next loop.
+         * Cause the ClientWriter thread to exit as soon as it has
+         * finished any write in progress, throwing away whatever is
+         * still queued.
          */
         public void selfTerminate() {
             this.halt = true;
+            queue.close(true);
         }
 
         /*
-         * Spin until queue is zero, then return.  Added a couple of
-         * hack-ish delays; the first makes sure we don't
-         * unnecessarily burn the CPU, the second gives the writer a
-         * chance to flush the TCP socket before the caller closes it.
+         * Take no more messages, and have the ClientWriter thread
+         * write out whatever is queued, close the stream and exit.
+         * Returns getClosed().
          */
-        public void spinZero() {
-            while (queue.size() > 0) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ie) {
-                }
-            }
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException ie) {
-            }
+        public CompletableFuture<Void> closeAfterFlush() {
+            queue.close(false);
+            return closed;
         }
 
         /*
-         * Add a ProtocolMessage to the outgoing queue.  Returns false
-         * if queue is full and message was not added.
+         * A future that completes when the ClientWriter thread has
+         * written all it is going to and closed the stream.
          */
-        public synchronized boolean add(ProtocolHandler.ProtocolMessage m) {
-            return queue.offer(m);
+        public CompletableFuture<Void> getClosed() {
+            return closed;
         }
 
         /*
-         * Add several ProtocolMessages to the outgoing queue.  Tries to
-         * ensure there is enough space for all messages, but a race might
-         * cause some and not all to be added.  Returns true if all were
-         * added, false if not all were added.
+         * Add a ProtocolMessage to the outgoing queue.  A standings
+         * frame replaces any older one still waiting; returns false
+         * only if a standings frame was dropped because the queue is
+         * full.  See Mailbox.
          */
-        public synchronized boolean add(ProtocolHandler.ProtocolMessage[] m) {
-            if (queue.remainingCapacity() < m.length)
-                return false;
-            for (int i=0; i<m.length; i++) {
-                if (queue.offer(m[i]) == false)
-                    return false;
-            }
-            return true;
+        public boolean add(ProtocolHandler.ProtocolMessage m) {
+            return queue.offer(m);
+        }
+
+        public void setCodec(WireCodec codec) {
+            this.codec = codec;
+        }
+
+        public Mailbox getMailbox() {
+            return queue;
         }
 
         public void run() {
-            // drain queue.  if queue is empty, block for up to 1s.
-            // after draining queue or blocking, see if we're told to
-            // self terminate, and if so, fall out bottom.
+            // drain queue, blocking while it is empty.  once it has
+            // been closed and drained, or we're told to self
+            // terminate, fall out bottom.
             while(!halt) {
                 try {
-                    ProtocolHandler.ProtocolMessage pm =
-                        queue.poll(1000, TimeUnit.MILLISECONDS);
+                    ProtocolHandler.ProtocolMessage pm = queue.take();
+                    if (pm == null)
+                        break;
+
+                    // render everything queued right now into one
+                    // buffer, and push it out with a single write.
+                    int nmessages = 0;
+                    buf.clear();
+                    long now = System.nanoTime();
                     while (pm != null) {
-                        out.print(pm.toString());
-                        out.flush();
+                        batch.dequeued(pm, now);
+                        buf = codec.append(buf, pm);
+                        nmessages += pm.numMessages();
                         pm = queue.poll();
                     }
+                    batch.writing(System.nanoTime());
+                    out.write(buf.array(), 0, buf.position());
+                    out.flush();
+                    batch.written(System.nanoTime());
+                    IoStats.flushed(nmessages, buf.position(), 1);
                 } catch (java.lang.InterruptedException ie) {
+                } catch (IOException ioe) {
+                    // client went away; the reader side will notice too.
+                    logger.debug("client connection dropped writing...");
+                    batch.clear();
+                    queue.close(true);
+                    halt = true;
                 }
             }
             if (out != null) {
-                out.close();
+                try {
+                    out.close();
+                } catch (IOException ioe) {
+                }
                 out = null;
             }
+            closed.complete(null);
         }
     }
 
@@ -148,37 +232,28 @@ public class ClientHandler extends Thread {
             closeSock(clientsock);
             return;
         }
-
-        // read the first line, unmarshal it
-        ProtocolHandler.HelloMessage hm = handleFirstLine();
-        if (hm == null) {
-            closeSock(clientsock);
-            return;
-        }
-        rider = new Rider(hm.ridername, hm.ftp_watts, hm.weight_kg,
-                               in, writer);
-        
-        // find the Race this rider wants
-        race = findRace(hm.raceid);
-        if (race == null) {
-            // no such race!
-            noSuchRace(hm.raceid);
+        session = new ClientSession(poller, writer);
+        watchIdle();
+
+        // read the first line, unmarshal it, and join the race; or,
+        // if another node owns the race, relay the client there.
+        ProtocolHandler.ProtocolMessage first = getNextMessage();
+        Cluster.Node owner = ownerElsewhere(first);
+        if (owner != null) {
+            if (idle != null)
+                idle.cancel();
+            new ClusterProxy(clientsock, in,
+                             (ProtocolHandler.HelloMessage) first,
+                             owner).run();
             closeSock(clientsock);
             return;
-        } else {
-            // ack the race to the client, move on to loop
-            ackRace();
         }
-
-        // add the client to the race, send out a membership
-        // update message to all other clients
-        if (race.addClient(rider) == false) {
-            // race is full; as a hack, send noSuchRace
-            noSuchRace(hm.raceid);
-            closeSock(clientsock);
+        writer.start();
+        if (!session.handleFirstMessage(first)) {
+            // send the hellofail, and hang up the moment it's gone.
+            lingerClose();
             return;
         }
-        race.sendMembershipUpdate();
 
         // loop ad infinitum, pulling in the next client message.
         boolean done = false;
@@ -190,40 +265,63 @@ public class ClientHandler extends Thread {
             }
 
             // handle the next message here.
-            if (pm instanceof ProtocolHandler.TelemetryMessage) {
-                done = handleTelemetry((ProtocolHandler.TelemetryMessage) pm);
-            } else if (pm instanceof ProtocolHandler.GoodbyeMessage) {
-                done = handleGoodbye((ProtocolHandler.GoodbyeMessage) pm);
-            } else {
-                // unexpected message!
-                logger.warn("unexpected message from client: '" +
-                            pm.toString() + "'");
-                done = true;
-            }
+            done = session.handleMessage(pm, received_nanos);
         }
 
         // done with this client...drop the client from the race.
-        // garbage collect the race if no clients are left in it, and
-        // inform other clients of the membership change.
-        race.dropClient(rider);
-        synchronized(activeRaces) {
-            if (race.numClients() == 0) {
-                activeRaces.remove(race.getRaceid());
-                race = null;
-                logger.debug("race is empty; garbage collected it");
-            }
-        }
-        if (race != null) {
-            race.sendMembershipUpdate();
-        }
+        session.finish();
 
         // clean up the socket and exit.
         closeSock(clientsock);
         return;
     }
 
+    // close the connection once the writer has sent everything
+    // queued.  a client that won't read could hold that up forever,
+    // so after LINGER_MS close it regardless; that knocks the writer
+    // out of its write, too.
+    private void lingerClose() {
+        try {
+            writer.closeAfterFlush().get(LINGER_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+            logger.debug("client not reading; closing without flushing");
+        } catch (InterruptedException ie) {
+        } catch (ExecutionException ee) {
+        }
+        closeSock(clientsock);
+    }
+
+    // have the IdleTimer freeze our rider if the client goes quiet,
+    // and close the socket if it stays quiet, which knocks this
+    // thread out of readLine() and tidies up as if it had hung up.
+    private void watchIdle() {
+        final Socket s = clientsock;
+        idle = IdleTimer.watch(new IdleTimer.Watched() {
+                public void stalled() {
+                    session.freeze();
+                }
+
+                public void dead() {
+                    logger.info("nothing from client " + s +
+                                " for too long; closing it");
+                    try {
+                        s.close();
+                    } catch (IOException ioe) {
+                    }
+                }
+            });
+    }
+
     // a convenience routine to close a socket
     private void closeSock(Socket s) {
+        if (clientsock != null) {
+            ClientSession.closed();
+            clientsock = null;
+        }
+        if (idle != null) {
+            idle.cancel();
+            idle = null;
+        }
         if (in != null) {
             try {
                 in.close();
@@ -243,7 +341,18 @@ public class ClientHandler extends Thread {
         }
     }
 
-    // a convenience routine to set up reader/writers
+    // if pm is a hello for a race another node in the cluster owns,
+    // return that node.
+    private Cluster.Node ownerElsewhere(ProtocolHandler.ProtocolMessage pm) {
+        if ((cluster == null) ||
+            !(pm instanceof ProtocolHandler.HelloMessage))
+            return null;
+        String raceid = ((ProtocolHandler.HelloMessage) pm).raceid;
+        return cluster.isLocal(raceid) ? null : cluster.ownerOf(raceid);
+    }
+
+    // a convenience routine to set up reader/writers.  the writer
+    // isn't started until we know the client isn't being proxied.
     private boolean setupReaderWriter() {
         Charset charset = Charset.forName("US-ASCII");
         try {
@@ -251,12 +360,8 @@ public class ClientHandler extends Thread {
                 new BufferedReader(
                     new InputStreamReader(
                         clientsock.getInputStream(), charset));
-            this.out =
-                new PrintWriter(
-                    new OutputStreamWriter(
-                        clientsock.getOutputStream(), charset));
+            this.out = clientsock.getOutputStream();
             this.writer = new ClientWriter(out);
-            this.writer.start();
         } catch (IOException ioe) {
             logger.debug("client connection dropped creating in/out");
             return false;
@@ -276,7 +381,13 @@ public class ClientHandler extends Thread {
                 logger.debug("client connection dropped...");
                 return null;
             }
+            received_nanos = System.nanoTime();
+            if (idle != null)
+                idle.touch();
+            IoStats.received(nextline.length() + 1);
             pm = ProtocolHandler.parseLine(nextline);
+            LatencyStats.server().record(LatencyStats.PARSE,
+                                         System.nanoTime() - received_nanos);
             if (pm == null) {
                 logger.warn("bogus line from client: '" + nextline + "'");
                 return null;
@@ -287,80 +398,4 @@ public class ClientHandler extends Thread {
         }
         return pm;
     }
-
-    // a convenience routine to handle the first line
-    private ProtocolHandler.HelloMessage handleFirstLine() {
-        ProtocolHandler.ProtocolMessage pm = getNextMessage();
-
-        if (pm == null) return null;
-        if (!(pm instanceof ProtocolHandler.HelloMessage)) {
-            logger.warn("expected HelloMesssage, but got something else");
-            return null;
-        }
-        ProtocolHandler.HelloMessage hm = (ProtocolHandler.HelloMessage) pm;
-        return hm;
-    }
-
-    // convenience routine to find the right Race, or create it if not
-    // already created.
-    private Race findRace(String raceid) {
-        Race ret_race = null;
-        synchronized(activeRaces) {
-            ret_race = activeRaces.get(raceid);
-            if (ret_race == null) {
-                ret_race = poller.findNewRace(raceid);
-            }
-            if (ret_race != null) {
-                activeRaces.put(raceid, ret_race);
-            }
-        }
-        return ret_race;
-    }
-
-    // convenience routine to tell client that no such race exists.
-    private void noSuchRace(String raceid) {
-        ProtocolHandler.HelloFailMessage hfm =
-            new ProtocolHandler.HelloFailMessage(
-                GoldenServer.protoversion,
-                "nosuchrace",
-                raceid);
-        writer.add(hfm);
-        writer.spinZero();
-        logger.debug("client asked for race that doesn't exist ('" +
-                     raceid + "')");
-    }
-
-    // convenience routine to ack the race to the rider.
-    private void ackRace() {
-        ProtocolHandler.HelloSucceedMessage hsm =
-            new ProtocolHandler.HelloSucceedMessage(
-                GoldenServer.protoversion,
-                race.getRaceid(),
-                rider.getRiderid(),
-                race.getRacedistanceKm());
-        writer.add(hsm);
-        logger.debug("sent HelloSucceedMessage");
-    }
-
-    // convenience routine to handle a TelemetryMessage.
-    private boolean handleTelemetry(ProtocolHandler.TelemetryMessage tm) {
-        boolean done;
-        logger.debug("telemetry message from client...");
-        done = race.telemetryUpdate(rider, tm);
-        if (!done) return false;
-
-        synchronized(sync_concluded) {
-            if (!sent_concluded)
-                race.sendRaceConcluded();
-            sent_concluded = true;
-        }
-        return false;   // don't drop clients until they say goodbye
-    }
-
-    // convenience routine to handle a GoodbyeMessage.
-    private boolean handleGoodbye(ProtocolHandler.GoodbyeMessage gm) {
-        boolean done = true;
-        logger.debug("got valid goodbye, client disconnecting...");
-        return done;
-    }
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+/*
+ * A ClientSession holds the GC/GS protocol state for one connected
+ * client: the handshake, the Race it joined, and what to do with each
+ * message it sends.  It knows nothing about sockets or threads; the
+ * connection engine (ClientHandler for thread-per-client, NioServer
+ * for the selector-based engine) feeds it parsed messages and closes
+ * the connection when it says the client is done.
+ */
+class ClientSession {
+    static Logger logger = Logger.getLogger(ClientSession.class.getName());
+
+    // number of client connections currently open, in either engine.
+    // the engines count a connection from accept until it is closed.
+    private static AtomicInteger live_sessions = new AtomicInteger(0);
+
+    private WebPoller poller = null;
+    private MessageSink writer = null;
+    private Rider rider = null;
+    private Race race = null;
+    private boolean finished = false;
+
+    public ClientSession(WebPoller poller, MessageSink writer) {
+        this.poller = poller;
+        this.writer = writer;
+    }
+
+    public static int numLive() {
+        return live_sessions.get();
+    }
+
+    static void opened() {
+        live_sessions.incrementAndGet();
+    }
+
+    static void closed() {
+        live_sessions.decrementAndGet();
+    }
+
+    /*
+     * Handle the first message from the client.  Returns true if the
+     * client is now a member of a race.  Returns false if the
+     * handshake failed; in that case any hellofail message has already
+     * been queued on the writer, and the caller should flush the
+     * writer and close the connection.
+     *
+     * If the race isn't active yet this blocks the calling thread
+     * (only) while the WebPoller looks it up; see
+     * handleFirstMessageAsync() for a version that doesn't block.
+     */
+    public boolean handleFirstMessage(ProtocolHandler.ProtocolMessage pm) {
+        return handleFirstMessageAsync(pm).join().booleanValue();
+    }
+
+    /*
+     * As handleFirstMessage(), but returns at once with a future for
+     * the result.  The future completes on whatever thread finishes
+     * the race lookup, so the caller must not read or feed the
+     * session any more messages until it has completed.
+     */
+    public CompletableFuture<Boolean> handleFirstMessageAsync(
+           ProtocolHandler.ProtocolMessage pm) {
+        if (pm == null)
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        if (!(pm instanceof ProtocolHandler.HelloMessage)) {
+            logger.warn("expected HelloMesssage, but got something else");
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        }
+        final ProtocolHandler.HelloMessage hm =
+            (ProtocolHandler.HelloMessage) pm;
+        rider = new Rider(hm.ridername, hm.ftp_watts, hm.weight_kg,
+                          null, writer);
+        rider.setDeltaUpdates("delta".equals(hm.updates));
+        if ((hm.top >= 0) || (hm.near >= 0))
+            rider.setView(Math.max(0, hm.top), Math.max(0, hm.near));
+
+        // find the Race this rider wants; an active race is found
+        // right away, otherwise ask the WebPoller.
+        Race active = RaceRegistry.active().get(hm.raceid);
+        CompletableFuture<Race> lookup = (active != null) ?
+            CompletableFuture.completedFuture(active) :
+            poller.findNewRaceAsync(hm.raceid);
+        return lookup.thenApply(new Function<Race,Boolean>() {
+                public Boolean apply(Race found) {
+                    return Boolean.valueOf(joinRace(hm, found));
+                }
+            });
+    }
+
+    // the second half of the handshake, once we know which Race (if
+    // any) the rider asked for.
+    private synchronized boolean joinRace(ProtocolHandler.HelloMessage hm,
+                                          Race found) {
+        if (finished) {
+            // the connection went away while we were looking.
+            return false;
+        }
+        if (found == null) {
+            // no such race!
+            noSuchRace(hm.raceid);
+            return false;
+        }
+
+        // switch to the codec the client asked for, and ack the race
+        // before joining it, so the ack is queued ahead of any
+        // broadcast the race sends us.
+        WireCodec codec = WireCodec.forVersion(hm.protoversion);
+        writer.setCodec(codec);
+        Race active = RaceRegistry.active().get(found.getRaceid());
+        ackRace((active != null) ? active : found, codec);
+
+        // add the client to the race, send out a membership
+        // update message to all other clients
+        race = RaceRegistry.active().join(found, rider);
+        if (race == null) {
+            // race is full; as a hack, send noSuchRace
+            noSuchRace(hm.raceid);
+            return false;
+        }
+        race.sendMembershipUpdate();
+        return true;
+    }
+
+    /*
+     * Handle a message that arrives after the handshake.  Returns
+     * true if the client is done and should be disconnected.
+     */
+    public boolean handleMessage(ProtocolHandler.ProtocolMessage pm) {
+        return handleMessage(pm, System.nanoTime());
+    }
+
+    /*
+     * As above, where received_nanos is the System.nanoTime() at which
+     * the line was read off the socket, for LatencyStats.
+     */
+    public boolean handleMessage(ProtocolHandler.ProtocolMessage pm,
+                                 long received_nanos) {
+        if (pm instanceof ProtocolHandler.TelemetryMessage) {
+            return handleTelemetry((ProtocolHandler.TelemetryMessage) pm,
+                                   received_nanos);
+        } else if (pm instanceof ProtocolHandler.GoodbyeMessage) {
+            return handleGoodbye((ProtocolHandler.GoodbyeMessage) pm);
+        }
+
+        // unexpected message!
+        logger.warn("unexpected message from client: '" +
+                    pm.toString() + "'");
+        return true;
+    }
+
+    /*
+     * Done with this client...drop the client from the race.
+     * garbage collect the race if no clients are left in it, and
+     * inform other clients of the membership change.  Safe to call
+     * more than once, and safe to call if the handshake failed.
+     */
+    public synchronized void finish() {
+        if (finished) return;
+        finished = true;
+
+        Race r = race;
+        race = null;
+        if (r == null) return;
+
+        if (!RaceRegistry.active().leave(r, rider))
+            r.sendMembershipUpdate();
+    }
+
+    /*
+     * The client has gone quiet; stop its rider where they are.  See
+     * IdleTimer.
+     */
+    public synchronized void freeze() {
+        if (race != null) {
+            logger.debug("no telemetry from " + rider.getRiderid() +
+                         "; freezing them");
+            race.freeze(rider);
+        }
+    }
+
+    public Rider getRider() {
+        return rider;
+    }
+
+    // convenience routine to tell client that no such race exists.
+    private void noSuchRace(String raceid) {
+        ProtocolHandler.HelloFailMessage hfm =
+            new ProtocolHandler.HelloFailMessage(
+                GoldenServer.protoversion,
+                "nosuchrace",
+                raceid);
+        writer.add(hfm);
+        logger.debug("client asked for race that doesn't exist ('" +
+                     raceid + "')");
+    }
+
+    // convenience routine to ack the race to the rider, with the
+    // protocol version they'll be getting.
+    private void ackRace(Race r, WireCodec codec) {
+        ProtocolHandler.HelloSucceedMessage hsm =
+            new ProtocolHandler.HelloSucceedMessage(
+                codec.getProtoversion(),
+                r.getRaceid(),
+                rider.getRiderid(),
+                r.getRacedistanceKm());
+        writer.add(hsm);
+        logger.debug("sent HelloSucceedMessage");
+    }
+
+    // convenience routine to handle a TelemetryMessage.  the Race
+    // sends out the results itself, once, when it concludes.
+    private boolean handleTelemetry(ProtocolHandler.TelemetryMessage tm,
+                                    long received_nanos) {
+        logger.debug("telemetry message from client...");
+        race.telemetryUpdate(rider, tm, received_nanos);
+        return false;   // don't drop clients until they say goodbye
+    }
+
+    // convenience routine to handle a GoodbyeMessage.
+    private boolean handleGoodbye(ProtocolHandler.GoodbyeMessage gm) {
+        boolean done = true;
+        logger.debug("got valid goodbye, client disconnecting...");
+        return done;
+    }
+}
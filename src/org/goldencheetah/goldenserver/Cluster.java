@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * A Cluster is the set of GoldenServer processes that share the races
+ * between them, and which of them owns which race.  Every node is
+ * started with the same list of nodes (-cluster), and its own index in
+ * that list (-nodeid), so every node computes the same owner for a
+ * raceid without talking to the others.
+ *
+ * Ownership is by consistent hashing: each node is placed on a ring
+ * of 64-bit points at VNODES pseudo-random spots (its virtual nodes),
+ * and a race belongs to the first node found going clockwise from the
+ * race's own point.  Adding or removing a node only moves the races
+ * next to its virtual nodes, about 1/n of them, and the virtual nodes
+ * keep the shards within a few percent of the same size.  Points are
+ * the top 64 bits of an MD5 hash, so hand-made raceids like 000...1
+ * and 000...2 spread out as well as random ones do.
+ *
+ * A node that gets a hello for a race it doesn't own relays the
+ * connection to the owner: ClientHandler through a ClusterProxy,
+ * NioServer through a Relay on the connection's IoLoop.
+ */
+public class Cluster {
+    private static final Charset charset = Charset.forName("US-ASCII");
+    private static final int VNODES = 128;
+
+    /*
+     * One GoldenServer in the cluster, at the address its clients
+     * connect to.
+     */
+    public static class Node {
+        private String host;
+        private int    port;
+
+        public Node(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private Node[] nodes;
+    private int    self;
+    private TreeMap<Long,Node> ring = new TreeMap<Long,Node>();
+
+    public Cluster(Node[] nodes, int self) {
+        if ((self < 0) || (self >= nodes.length))
+            throw new IllegalArgumentException("no node " + self +
+                                               " in the cluster");
+        this.nodes = nodes;
+        this.self = self;
+        for (int n=0; n<nodes.length; n++) {
+            for (int v=0; v<VNODES; v++) {
+                ring.put(Long.valueOf(point(nodes[n] + "#" + v)), nodes[n]);
+            }
+        }
+    }
+
+    /*
+     * Parse a node list, e.g. "localhost:9000,localhost:9001".
+     * Throws IllegalArgumentException if it's malformed.
+     */
+    public static Node[] parseNodes(String list) {
+        String[] parts = list.split(",");
+        Node[] ret = new Node[parts.length];
+        for (int i=0; i<parts.length; i++) {
+            String p = parts[i].trim();
+            int colon = p.lastIndexOf(':');
+            if (colon <= 0)
+                throw new IllegalArgumentException("bad node '" + p + "'");
+            int port;
+            try {
+                port = Integer.parseInt(p.substring(colon + 1));
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("bad port in '" + p + "'");
+            }
+            if ((port < 1) || (port > 65535))
+                throw new IllegalArgumentException("bad port in '" + p + "'");
+            ret[i] = new Node(p.substring(0, colon), port);
+        }
+        return ret;
+    }
+
+    // the top 64 bits of the MD5 of s.
+    private static long point(String s) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException nsae) {
+            // every JVM is required to have MD5
+            throw new IllegalStateException(nsae);
+        }
+        byte[] d = md5.digest(s.getBytes(charset));
+        long p = 0;
+        for (int i=0; i<8; i++) {
+            p = (p << 8) | (d[i] & 0xff);
+        }
+        return p;
+    }
+
+    // the node that owns this race.
+    public Node ownerOf(String raceid) {
+        Map.Entry<Long,Node> e =
+            ring.ceilingEntry(Long.valueOf(point(raceid.toLowerCase())));
+        if (e == null)
+            e = ring.firstEntry();         // wrap around the ring
+        return e.getValue();
+    }
+
+    // does this node own this race?
+    public boolean isLocal(String raceid) {
+        return ownerOf(raceid) == nodes[self];
+    }
+
+    public Node getSelf() {
+        return nodes[self];
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    /*
+     * Contains unit test code for the ring: ownership is the same
+     * from every node, shards are roughly even, and adding a node
+     * moves only about its share of races.
+     */
+    public static void main(String[] args) {
+        Node[] three = parseNodes("localhost:9000,localhost:9001,localhost:9002");
+        Node[] four = parseNodes("localhost:9000,localhost:9001," +
+                                 "localhost:9002,localhost:9003");
+        Cluster a = new Cluster(three, 0);
+        Cluster b = new Cluster(three, 2);
+        Cluster c = new Cluster(four, 0);
+        int nraces = 30000;
+        int[] counts = new int[three.length];
+        int moved = 0;
+        java.util.Random rm = new java.util.Random(1);
+        for (int i=0; i<nraces; i++) {
+            String raceid = Long.toHexString(rm.nextLong()) +
+                Long.toHexString(rm.nextLong());
+            Node oa = a.ownerOf(raceid);
+            if (!oa.toString().equals(b.ownerOf(raceid).toString())) {
+                System.out.println("nodes disagree about " + raceid);
+                System.exit(1);
+            }
+            for (int n=0; n<three.length; n++) {
+                if (three[n] == oa)
+                    counts[n]++;
+            }
+            if (!oa.toString().equals(c.ownerOf(raceid).toString()))
+                moved++;
+        }
+        for (int n=0; n<counts.length; n++) {
+            double share = counts[n] / (double) nraces;
+            if ((share < 0.25) || (share > 0.42)) {
+                System.out.println("uneven shard for " + three[n] + ": " +
+                                   share);
+                System.exit(1);
+            }
+        }
+        double moved_share = moved / (double) nraces;
+        if ((moved_share < 0.15) || (moved_share > 0.35)) {
+            System.out.println("adding a node moved " + moved_share +
+                               " of the races");
+            System.exit(1);
+        }
+        System.out.println("cluster test passed: shards " + counts[0] + "/" +
+                           counts[1] + "/" + counts[2] + "; adding a node " +
+                           "moved " + moved + " of " + nraces + " races");
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+// standard java imports
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+// imports from .jar's in lib/
+import org.apache.log4j.Logger;
+
+/*
+ * A ClusterProxy relays a client whose race is owned by another node
+ * in the Cluster to that node.  The GC/GS protocol has no redirect,
+ * so existing clients can't be sent elsewhere; instead we open a
+ * connection to the owner, replay the client's hello on it, and then
+ * copy lines from the client to the owner and bytes from the owner
+ * to the client until either side hangs up.
+ *
+ * Client-to-owner runs on the thread that calls run(); owner-to-client
+ * gets a thread of its own.  This is the thread-per-client engine's
+ * proxy: ClientHandler calls run() on its own thread.  NioServer
+ * relays on its IoLoops instead (see NioServer.Relay), so proxied
+ * clients don't cost it any threads.
+ *
+ * If the owner can't be reached, the client gets a hellofail, as if
+ * the race didn't exist.
+ */
+class ClusterProxy implements Runnable {
+    private static Logger logger =
+        Logger.getLogger(ClusterProxy.class.getName());
+    private static final Charset charset = Charset.forName("US-ASCII");
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private Socket                       client;
+    private BufferedReader               client_in;
+    private ProtocolHandler.HelloMessage hello;
+    private Cluster.Node                 owner;
+    private Socket                       upstream = null;
+
+    /*
+     * client_in must pick up exactly where the hello left off,
+     * including anything already read from the socket past it.
+     */
+    ClusterProxy(Socket client, BufferedReader client_in,
+                 ProtocolHandler.HelloMessage hello, Cluster.Node owner) {
+        this.client = client;
+        this.client_in = client_in;
+        this.hello = hello;
+        this.owner = owner;
+    }
+
+    public void run() {
+        OutputStream client_out;
+        OutputStream up_out;
+        try {
+            client_out = client.getOutputStream();
+        } catch (IOException ioe) {
+            logger.debug("client connection dropped before proxying");
+            return;
+        }
+        try {
+            upstream = new Socket();
+            upstream.setTcpNoDelay(true);
+            upstream.connect(new InetSocketAddress(owner.getHost(),
+                                                   owner.getPort()),
+                             CONNECT_TIMEOUT_MS);
+            up_out = upstream.getOutputStream();
+            up_out.write(hello.toString().getBytes(charset));
+            up_out.flush();
+        } catch (IOException ioe) {
+            logger.warn("can't reach " + owner + ", the owner of race " +
+                        hello.raceid + ": " + ioe);
+            close(upstream);
+            try {
+                client_out.write(new ProtocolHandler.HelloFailMessage(
+                                     GoldenServer.protoversion,
+                                     "nosuchrace",
+                                     hello.raceid).toString()
+                                 .getBytes(charset));
+                client_out.flush();
+            } catch (IOException ioe2) {
+            }
+            return;
+        }
+        logger.debug("proxying race " + hello.raceid + " to " + owner);
+
+        // owner to client, on its own thread
+        final InputStream  from = getInput(upstream);
+        final OutputStream to = client_out;
+        Thread down = new Thread(new Runnable() {
+                public void run() {
+                    copy(from, to);
+                    // the owner hung up; so do we.
+                    close(client);
+                }
+            }, "ClusterProxy-" + owner);
+        down.setDaemon(true);
+        down.start();
+
+        // client to owner, here.  a hello ending in "\r\n" whose "\n"
+        // arrived late reads as an empty line; drop those.
+        try {
+            String line;
+            while ((line = client_in.readLine()) != null) {
+                if (line.length() == 0)
+                    continue;
+                up_out.write((line + "\n").getBytes(charset));
+                up_out.flush();
+            }
+        } catch (IOException ioe) {
+            // one side or the other went away
+        }
+        close(upstream);
+        close(client);
+        try {
+            down.join();
+        } catch (InterruptedException ie) {
+        }
+    }
+
+    private static InputStream getInput(Socket s) {
+        try {
+            return s.getInputStream();
+        } catch (IOException ioe) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+    }
+
+    private static void copy(InputStream from, OutputStream to) {
+        byte[] buf = new byte[4096];
+        try {
+            int n;
+            while ((n = from.read(buf)) >= 0) {
+                to.write(buf, 0, n);
+                to.flush();
+            }
+        } catch (IOException ioe) {
+            // one side or the other went away
+        }
+    }
+
+    private static void close(Socket s) {
+        if (s == null)
+            return;
+        try {
+            s.close();
+        } catch (IOException ioe) {
+        }
+    }
+}
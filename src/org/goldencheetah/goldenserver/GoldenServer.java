@@ -23,9 +23,11 @@
 package org.goldencheetah.goldenserver;
 
 // standard java imports
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.URL;
 
 // imports from .jar's in lib/
 import org.apache.log4j.Logger;
@@ -36,20 +38,74 @@ public class GoldenServer {
         Logger.getLogger(GoldenServer.class.getName());
     public static String protoversion = "0.1";
 
+    // if non-zero, use the NioServer engine with this many I/O threads
+    // instead of a ClientHandler thread per connection.
+    private int nio_threads = 0;
+
+    // how often the RaceTicker moves riders along and broadcasts
+    // standings.
+    private long tick_ms = 1000;
+
+    // if non-zero, serve metrics over HTTP on this port.
+    private int metrics_port = 0;
+
+    // if not null, this server is one node of a cluster, and only
+    // hosts the races the cluster assigns it.
+    private Cluster cluster = null;
+
+    public void setNioThreads(int nio_threads) {
+        this.nio_threads = nio_threads;
+    }
+
+    public void setTickMs(long tick_ms) {
+        this.tick_ms = tick_ms;
+    }
+
+    public void setMetricsPort(int metrics_port) {
+        this.metrics_port = metrics_port;
+    }
+
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
     /*
      * run() creates a server socket, and spins waiting for a connection.
      * For each connection that arrives, run() forks off a handler thread
-     * to handle it.  run() also forks off a WebPoller thread.
+     * to handle it.  run() also forks off a WebPoller thread, starts
+     * the RaceTicker, and, if setMetricsPort() was called, starts a
+     * MetricsServer.
+     *
+     * If setNioThreads() was given a non-zero thread count, run()
+     * instead hands the port over to a NioServer.  If setCluster() was
+     * called, either engine proxies clients whose races are owned by
+     * other nodes to those nodes.
      */
     public void run(int portnum, String gs_url) {
         ServerSocket server = null;
         Socket clientSocket = null;
         WebPoller poller = null;
+        RaceTicker ticker = null;
+
+        poller = new WebPoller(gs_url);
+        poller.start();
+        ticker = new RaceTicker(tick_ms);
+        ticker.start();
+        if (metrics_port > 0) {
+            try {
+                new MetricsServer(metrics_port, poller, ticker).start();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                System.exit(1);
+            }
+        }
+        if (nio_threads > 0) {
+            runNio(portnum, poller);
+            return;
+        }
 
         try {
             server = new ServerSocket(portnum);
-            poller = new WebPoller(gs_url);
-            poller.start();
         } catch (IOException ioe) {
             ioe.printStackTrace();
             System.exit(1);
@@ -62,28 +118,55 @@ public class GoldenServer {
                 logger.debug("waiting for a connection.");
                 clientSocket = server.accept();
                 logger.debug("got a connection!");
-                ClientHandler ch = new ClientHandler(clientSocket, poller);
+                ClientHandler ch = new ClientHandler(clientSocket, poller,
+                                                     cluster);
                 ch.start();
-                logger.debug("number of active client threads: " +
-                             (Thread.activeCount() - 2));
+                logger.debug("number of live client sessions: " +
+                             ClientSession.numLive() + "; " +
+                             IoStats.summary());
             } catch (IOException ioe) {
                 logger.error(ioe);
             }
 	}
     }
 
+    private void runNio(int portnum, WebPoller poller) {
+        try {
+            NioServer ns = new NioServer(poller, nio_threads, cluster);
+            ns.run(portnum);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            System.exit(1);
+        }
+    }
+
     public static void usage() {
         System.out.println("usage: java org.goldencheetah.goldenserver.GoldenServer " +
-                           "<port> <goldenweb_url>");
+                           "<port> <goldenweb_url> [-nio <io_threads> | -vthreads] " +
+                           "[-tickms <ms>] [-metricsport <port>] [-journal <dir>] " +
+                           "[-stallms <ms>] [-deadms <ms>] " +
+                           "[-outbox <dir> [-resultsurl <url>]] " +
+                           "[-cluster <host:port,host:port,...> -nodeid <n>]");
         System.exit(-1);
     }
 
     public static void main(String[] args) {
         int    portnum = 0;
         String gs_url = "";
+        int    nio_threads = 0;
+        long   tick_ms = 1000;
+        int    metrics_port = 0;
+        String cluster_nodes = null;
+        String journal_dir = null;
+        String outbox_dir = null;
+        String results_url = null;
+        long   stall_ms = 5000;
+        long   dead_ms = 60000;
+        int    nodeid = -1;
+        boolean vthreads = false;
 
         // pull in arguments
-        if (args.length != 2) {
+        if (args.length < 2) {
             usage();
         }
         try {
@@ -95,10 +178,149 @@ public class GoldenServer {
             usage();
         }
         gs_url = args[1];
+        for (int i=2; i<args.length; i++) {
+            if (args[i].equals("-nio") && (i+1 < args.length)) {
+                try {
+                    nio_threads = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+                if (nio_threads < 1) {
+                    usage();
+                }
+            } else if (args[i].equals("-vthreads")) {
+                vthreads = true;
+            } else if (args[i].equals("-tickms") && (i+1 < args.length)) {
+                try {
+                    tick_ms = Long.parseLong(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+                if (tick_ms < 1) {
+                    usage();
+                }
+            } else if (args[i].equals("-metricsport") && (i+1 < args.length)) {
+                try {
+                    metrics_port = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+                if ((metrics_port < 1) || (metrics_port > 65535)) {
+                    usage();
+                }
+            } else if (args[i].equals("-journal") && (i+1 < args.length)) {
+                journal_dir = args[++i];
+            } else if (args[i].equals("-stallms") && (i+1 < args.length)) {
+                try {
+                    stall_ms = Long.parseLong(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+                if (stall_ms < 0) {
+                    usage();
+                }
+            } else if (args[i].equals("-deadms") && (i+1 < args.length)) {
+                try {
+                    dead_ms = Long.parseLong(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+                if (dead_ms < 0) {
+                    usage();
+                }
+            } else if (args[i].equals("-outbox") && (i+1 < args.length)) {
+                outbox_dir = args[++i];
+            } else if (args[i].equals("-resultsurl") && (i+1 < args.length)) {
+                results_url = args[++i];
+            } else if (args[i].equals("-cluster") && (i+1 < args.length)) {
+                cluster_nodes = args[++i];
+            } else if (args[i].equals("-nodeid") && (i+1 < args.length)) {
+                try {
+                    nodeid = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+            } else {
+                usage();
+            }
+        }
+        if ((cluster_nodes == null) != (nodeid < 0)) {
+            usage();
+        }
+        if ((results_url != null) && (outbox_dir == null)) {
+            usage();
+        }
+        Cluster cluster = null;
+        if (cluster_nodes != null) {
+            try {
+                cluster = new Cluster(Cluster.parseNodes(cluster_nodes),
+                                      nodeid);
+            } catch (IllegalArgumentException iae) {
+                System.out.println(iae.getMessage());
+                usage();
+            }
+        }
 
         System.out.println("Starting GoldenServer; port is:  " + portnum);
         System.out.println("The GoldenWeb polling URL is:    " + gs_url);
+        if ((nio_threads > 0) && vthreads) {
+            usage();
+        }
+        if (nio_threads > 0) {
+            System.out.println("Using NIO engine; I/O threads: " + nio_threads);
+        }
+        if (vthreads) {
+            if (!ClientHandler.useVirtualThreads()) {
+                System.out.println("-vthreads needs a Java 21 or newer JVM");
+                System.exit(-1);
+            }
+            System.out.println("Using virtual threads for clients");
+        }
+        if (cluster != null) {
+            System.out.println("Cluster node " + nodeid + " of " +
+                               cluster.size() + ": " + cluster.getSelf());
+            if (cluster.getSelf().getPort() != portnum) {
+                System.out.println("warning: -cluster lists this node on " +
+                                   "port " + cluster.getSelf().getPort());
+            }
+        }
+        if (journal_dir != null) {
+            try {
+                TelemetryJournal.start(new File(journal_dir));
+            } catch (IOException ioe) {
+                System.out.println(ioe.getMessage());
+                System.exit(-1);
+            }
+            System.out.println("Journaling telemetry to:         " +
+                               journal_dir);
+        }
+        if (outbox_dir != null) {
+            try {
+                ResultsOutbox.start(new File(outbox_dir),
+                                    (results_url == null) ? null
+                                                          : new URL(results_url));
+            } catch (IOException ioe) {
+                System.out.println(ioe.getMessage());
+                System.exit(-1);
+            }
+            System.out.println("Keeping race results in:         " +
+                               outbox_dir);
+            if (results_url != null)
+                System.out.println("Posting race results to:         " +
+                                   results_url);
+        }
+        IdleTimer.start(stall_ms, dead_ms);
+        if (IdleTimer.active() != null) {
+            System.out.println("Freezing riders quiet for (ms):  " +
+                               ((stall_ms > 0) ? ("" + stall_ms) : "never"));
+            System.out.println("Closing clients quiet for (ms):  " +
+                               ((dead_ms > 0) ? ("" + dead_ms) : "never"));
+        }
         GoldenServer gs = new GoldenServer();
+        gs.setNioThreads(nio_threads);
+        gs.setTickMs(tick_ms);
+        gs.setMetricsPort(metrics_port);
+        gs.setCluster(cluster);
         gs.run(portnum, gs_url);
     }
 }
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+// standard java imports
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// imports from .jar's in lib/
+import org.apache.log4j.Logger;
+
+/*
+ * The IdleTimer notices clients that have gone quiet.  The protocol
+ * asks for telemetry at least once a second; a client that sends
+ * nothing for stall_ms is stalled, and its rider is frozen in place
+ * (see Race.freeze()) until it speaks again.  One that sends nothing
+ * for dead_ms is dead, most likely a half-open connection, and its
+ * connection is closed, which frees its threads and its place in the
+ * race.  Either can be turned off with a 0.
+ *
+ * Every connection, in either engine, gets an Entry, and calls
+ * touch() on it for every line it reads.  touch() is one volatile
+ * write of a coarse clock the timer thread keeps, so the read path
+ * pays almost nothing for it.  The Entries live in a hashed timer
+ * wheel of SLOTS slots, each tick_ms wide, turned by one thread for
+ * the whole server; an Entry sits in the slot for when it would next
+ * stall or die if nothing arrived, and when that slot comes round it
+ * is looked at again and either acted on or moved to the slot for
+ * its new deadline.  So a busy client costs the timer thread one look
+ * per stall_ms, however many lines it sends, and adding or cancelling
+ * an Entry is O(1) whatever the number of connections.
+ *
+ * Only the timer thread touches the wheel.  New Entries are handed
+ * to it through a queue, and cancelled ones are dropped when their
+ * slot comes round.  The stalled() and dead() callbacks are made on
+ * the timer thread, so they must only start things going, never wait
+ * on them.
+ */
+public class IdleTimer {
+    private static Logger logger =
+        Logger.getLogger(IdleTimer.class.getName());
+    static final int  SLOTS = 1024;               // a power of two
+    static final long TICK_MS = 100;
+
+    private static volatile IdleTimer active = null;
+
+    private long                          stall_ms;
+    private long                          dead_ms;
+    private long                          tick_ms;
+    private volatile long                 now_ms;
+    private Entry[]                       wheel = new Entry[SLOTS];
+    private long                          cursor = 0;   // ticks turned
+    private ConcurrentLinkedQueue<Entry>  added =
+        new ConcurrentLinkedQueue<Entry>();
+    private Thread                        thread;
+    private volatile boolean              running = true;
+
+    // for monitoring.
+    private AtomicInteger                 watched = new AtomicInteger();
+    private AtomicLong                    stalls = new AtomicLong();
+    private AtomicLong                    deaths = new AtomicLong();
+
+    /*
+     * What a connection does when its client goes quiet.
+     */
+    public interface Watched {
+        // the client has sent nothing for stall_ms.
+        void stalled();
+        // the client has sent nothing for dead_ms; close it.
+        void dead();
+    }
+
+    /*
+     * One connection's place on the wheel.
+     */
+    public static class Entry {
+        private final IdleTimer timer;
+        private final Watched   watched;
+        private volatile long   last_ms;
+        private volatile boolean cancelled = false;
+        // the rest belong to the timer thread.
+        private long            stalled_at = -1;  // last_ms when it stalled
+        private long            rounds;
+        private Entry           next;
+
+        private Entry(IdleTimer timer, Watched watched) {
+            this.timer = timer;
+            this.watched = watched;
+            this.last_ms = timer.now_ms;
+        }
+
+        // the client just sent something.
+        public void touch() {
+            long now = timer.now_ms;
+            if (last_ms != now)
+                last_ms = now;
+        }
+
+        // the connection is closed; stop watching it.
+        public synchronized void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                timer.watched.decrementAndGet();
+            }
+        }
+    }
+
+    /*
+     * Start watching connections, with the given timeouts, on a
+     * wheel of TICK_MS ticks.
+     */
+    public static synchronized void start(long stall_ms, long dead_ms) {
+        if ((active == null) && ((stall_ms > 0) || (dead_ms > 0)))
+            active = new IdleTimer(stall_ms, dead_ms, TICK_MS);
+    }
+
+    // the running timer, or null if idle clients aren't being watched.
+    public static IdleTimer active() {
+        return active;
+    }
+
+    /*
+     * Start watching a newly accepted connection.  Returns null if
+     * idle clients aren't being watched.
+     */
+    public static Entry watch(Watched w) {
+        IdleTimer timer = active;
+        return (timer == null) ? null : timer.add(w);
+    }
+
+    IdleTimer(long stall_ms, long dead_ms, long tick_ms) {
+        this.stall_ms = stall_ms;
+        this.dead_ms = dead_ms;
+        this.tick_ms = tick_ms;
+        this.now_ms = System.currentTimeMillis();
+        thread = new Thread(new Runnable() {
+                public void run() {
+                    loop();
+                }
+            }, "IdleTimer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Entry add(Watched w) {
+        Entry e = new Entry(this, w);
+        watched.incrementAndGet();
+        added.add(e);
+        return e;
+    }
+
+    void stop() throws InterruptedException {
+        running = false;
+        thread.join();
+    }
+
+    public int numWatched() {
+        return watched.get();
+    }
+
+    public long stalls() {
+        return stalls.get();
+    }
+
+    public long deaths() {
+        return deaths.get();
+    }
+
+    public long getStallMs() {
+        return stall_ms;
+    }
+
+    public long getDeadMs() {
+        return dead_ms;
+    }
+
+    private void loop() {
+        long start = System.currentTimeMillis();
+        while (running) {
+            long due = start + (cursor + 1) * tick_ms;
+            long now = System.currentTimeMillis();
+            if (now < due) {
+                LockSupport.parkNanos((due - now) * 1000000L);
+                continue;
+            }
+            now_ms = now;
+            Entry e;
+            while ((e = added.poll()) != null) {
+                schedule(e, due);
+            }
+            // catch up on any ticks we slept through.
+            while (start + (cursor + 1) * tick_ms <= now) {
+                cursor++;
+                try {
+                    turn((int) (cursor & (SLOTS - 1)), now);
+                } catch (RuntimeException re) {
+                    logger.error("idle timer callback failed", re);
+                }
+            }
+        }
+    }
+
+    // look at everything in a slot whose time has come.
+    private void turn(int slot, long now) {
+        Entry e = wheel[slot];
+        wheel[slot] = null;
+        while (e != null) {
+            Entry next = e.next;
+            e.next = null;
+            if (e.cancelled) {
+                // dropped
+            } else if (e.rounds > 0) {
+                e.rounds--;
+                e.next = wheel[slot];
+                wheel[slot] = e;
+            } else {
+                check(e, now);
+            }
+            e = next;
+        }
+    }
+
+    private void check(Entry e, long now) {
+        long last = e.last_ms;
+        if ((e.stalled_at >= 0) && (last != e.stalled_at))
+            e.stalled_at = -1;              // it's come back
+        long idle = now - last;
+        if ((dead_ms > 0) && (idle >= dead_ms)) {
+            e.cancel();
+            deaths.incrementAndGet();
+            e.watched.dead();
+            return;
+        }
+        if ((stall_ms > 0) && (e.stalled_at < 0) && (idle >= stall_ms)) {
+            e.stalled_at = last;
+            stalls.incrementAndGet();
+            e.watched.stalled();
+        }
+        schedule(e, now);
+    }
+
+    // put e in the slot for the next time it needs looking at.
+    private void schedule(Entry e, long now) {
+        long last = e.last_ms;
+        long deadline;
+        if ((stall_ms > 0) && (e.stalled_at < 0)) {
+            deadline = last + stall_ms;
+        } else {
+            deadline = (dead_ms > 0) ? last + dead_ms : Long.MAX_VALUE;
+            // a stalled client that comes back may stall again before
+            // it would die, so keep an eye on it.
+            if (stall_ms > 0)
+                deadline = Math.min(deadline, now + stall_ms);
+        }
+        long ticks = Math.max(1, (deadline - now + tick_ms - 1) / tick_ms);
+        e.rounds = (ticks - 1) / SLOTS;
+        int slot = (int) ((cursor + ticks) & (SLOTS - 1));
+        e.next = wheel[slot];
+        wheel[slot] = e;
+    }
+
+    /*
+     * A self test: 20000 Entries on a fast wheel.  A third are
+     * touched throughout and must never stall or die; a third go quiet
+     * and must stall, and then die, each within a couple of ticks of
+     * its deadline; and a third go quiet long enough to stall, then
+     * come back for good, and must stall exactly once and not die.
+     */
+    public static void main(String[] args) throws Exception {
+        final long stall = 200, dead = 600, tick = 10;
+        final int n = 20000;
+        final IdleTimer timer = new IdleTimer(stall, dead, tick);
+        final long[] stalled_at = new long[n];
+        final long[] dead_at = new long[n];
+        final int[] nstalls = new int[n];
+        Entry[] entries = new Entry[n];
+        Thread.sleep(2 * tick);
+        long t0 = System.currentTimeMillis();
+        for (int i=0; i<n; i++) {
+            final int id = i;
+            entries[i] = timer.add(new Watched() {
+                    public void stalled() {
+                        nstalls[id]++;
+                        stalled_at[id] = System.currentTimeMillis();
+                    }
+
+                    public void dead() {
+                        dead_at[id] = System.currentTimeMillis();
+                    }
+                });
+        }
+        long touch_ns = 0;
+        long touches = 0;
+        long end = t0 + dead + stall;
+        while (System.currentTimeMillis() < end) {
+            long elapsed = System.currentTimeMillis() - t0;
+            long start = System.nanoTime();
+            for (int i=0; i<n; i+=3) {
+                entries[i].touch();
+                touches++;
+            }
+            if (elapsed > stall + 5 * tick) {
+                for (int i=2; i<n; i+=3) {
+                    entries[i].touch();
+                    touches++;
+                }
+            }
+            touch_ns += System.nanoTime() - start;
+            Thread.sleep(tick / 2);
+        }
+        Thread.sleep(5 * tick);
+        timer.stop();
+
+        int bad = 0;
+        long worst = 0;
+        for (int i=0; i<n; i++) {
+            boolean ok;
+            switch (i % 3) {
+            case 0:
+                ok = (nstalls[i] == 0) && (dead_at[i] == 0);
+                break;
+            case 1:
+                ok = (nstalls[i] == 1) && (dead_at[i] != 0);
+                worst = Math.max(worst,
+                                 Math.max(stalled_at[i] - (t0 + stall),
+                                          dead_at[i] - (t0 + dead)));
+                ok = ok && (stalled_at[i] >= t0 + stall - tick) &&
+                    (dead_at[i] >= t0 + dead - tick);
+                break;
+            default:
+                ok = (nstalls[i] == 1) && (dead_at[i] == 0);
+                break;
+            }
+            if (!ok && (bad++ < 10))
+                System.out.println("entry " + i + ": " + nstalls[i] +
+                                   " stalls, died " +
+                                   ((dead_at[i] == 0) ? "never" :
+                                    ((dead_at[i] - t0) + " ms in")));
+        }
+        System.out.println("idle timer test: " + n + " entries; " +
+                           timer.stalls() + " stalls, " + timer.deaths() +
+                           " deaths, " + timer.numWatched() +
+                           " still watched, " + bad + " bad; latest " +
+                           worst + " ms after deadline; touch " +
+                           String.format("%.1f", touch_ns / (double) touches) +
+                           " ns");
+        if ((bad != 0) || (worst > 5 * tick))
+            System.exit(1);
+    }
+}
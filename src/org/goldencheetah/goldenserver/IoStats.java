@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Server-wide counters for socket traffic, summed over every client
+ * connection in either engine.  A "flush" is one drain of a
+ * connection's queue; a "write" is one write call on the socket.
+ * Dividing bytes or messages by flushes or writes gives the batching
+ * we're getting.
+ */
+public class IoStats {
+    private static LongAdder bytes_out = new LongAdder();
+    private static LongAdder messages_out = new LongAdder();
+    private static LongAdder flushes = new LongAdder();
+    private static LongAdder writes = new LongAdder();
+    private static LongAdder bytes_in = new LongAdder();
+    private static LongAdder messages_in = new LongAdder();
+
+    // record one line read from a client, of nbytes including the
+    // line terminator.
+    static void received(int nbytes) {
+        messages_in.increment();
+        bytes_in.add(nbytes);
+    }
+
+    // record one drain of a queue: how many messages (counting each
+    // message in a Frame) and bytes it carried, and how many socket
+    // writes it took.
+    static void flushed(int nmessages, int nbytes, int nwrites) {
+        messages_out.add(nmessages);
+        bytes_out.add(nbytes);
+        writes.add(nwrites);
+        flushes.increment();
+    }
+
+    public static long messagesIn() {
+        return messages_in.sum();
+    }
+
+    public static long bytesIn() {
+        return bytes_in.sum();
+    }
+
+    public static long bytesOut() {
+        return bytes_out.sum();
+    }
+
+    public static long messagesOut() {
+        return messages_out.sum();
+    }
+
+    public static long flushes() {
+        return flushes.sum();
+    }
+
+    public static long writes() {
+        return writes.sum();
+    }
+
+    public static String summary() {
+        long f = flushes();
+        long w = writes();
+        return "out: " + messagesOut() + " msgs, " + bytesOut() + " bytes, " +
+            f + " flushes, " + w + " writes; " +
+            ((f == 0) ? 0 : (bytesOut() / f)) + " bytes/flush, " +
+            ((w == 0) ? 0 : (bytesOut() / w)) + " bytes/write; " +
+            Mailbox.totalConflated() + " frames conflated, " +
+            Mailbox.totalDropped() + " dropped";
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A LatencyHistogram counts nanosecond durations in log-linear
+ * buckets, in the style of HdrHistogram: values below 32 get a bucket
+ * each, and above that every power of two is split into 16 equal
+ * buckets, so a reported percentile is within about 3% of the true
+ * value.  Durations from 0 to about 18 minutes fit in 592 buckets;
+ * anything longer lands in the last one.
+ *
+ * record() is safe to call from any number of threads and takes no
+ * locks, so histograms can stay switched on in a production server.
+ * It is one atomic add on the bucket, which threads recording
+ * different durations rarely share, and adds to striped LongAdders
+ * for the count and sum, which don't bounce one cache line between
+ * them.  The max is updated without a compare-and-set, so two threads
+ * raising it at once may leave the smaller of the two; that is rare,
+ * and the bucket counts still have the larger.  Readers
+ * (percentile(), summary(), ...) see a slightly fuzzy picture while
+ * recording is going on, which is fine for reporting.
+ */
+public class LatencyHistogram {
+    private static final int  SUB_BITS = 5;
+    private static final int  SUB = 1 << SUB_BITS;         // 32
+    private static final int  HALF = SUB / 2;              // 16
+    private static final int  MAX_SHIFT = 40 - SUB_BITS;
+    private static final int  NBUCKETS = SUB + MAX_SHIFT * HALF;
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NBUCKETS);
+    private final LongAdder       total = new LongAdder();
+    private final LongAdder       sum = new LongAdder();
+    private volatile long         max = 0;
+
+    public LatencyHistogram() {
+    }
+
+    private static int bucketOf(long v) {
+        if (v < SUB)
+            return (int) v;
+        if (v > MAX_VALUE)
+            v = MAX_VALUE;
+        int shift = (63 - Long.numberOfLeadingZeros(v)) - (SUB_BITS - 1);
+        int top = (int) (v >>> shift);                     // HALF..SUB-1
+        return SUB + (shift - 1) * HALF + (top - HALF);
+    }
+
+    // the largest value that falls in bucket b.
+    private static long highestIn(int b) {
+        if (b < SUB)
+            return b;
+        int shift = (b - SUB) / HALF + 1;
+        long top = (b - SUB) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /*
+     * Count one duration, in nanoseconds.  Negative durations (a
+     * clock that went backwards) count as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucketOf(nanos));
+        total.increment();
+        sum.add(nanos);
+        if (nanos > max)
+            max = nanos;
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long mean() {
+        long n = total.sum();
+        return (n == 0) ? 0 : sum.sum() / n;
+    }
+
+    /*
+     * The value at or below which the given percentage (0 to 100) of
+     * the recorded durations fall, in nanoseconds.  0 if nothing has
+     * been recorded.
+     */
+    public long percentile(double pct) {
+        long n = total.sum();
+        if (n == 0)
+            return 0;
+        long want = (long) Math.ceil(n * (pct / 100.0));
+        if (want < 1)
+            want = 1;
+        long seen = 0;
+        for (int b=0; b<NBUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= want)
+                return Math.min(highestIn(b), max);
+        }
+        return max;
+    }
+
+    /*
+     * Fold another histogram's counts into this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int b=0; b<NBUCKETS; b++) {
+            long c = other.counts.get(b);
+            if (c != 0)
+                counts.addAndGet(b, c);
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        long om = other.max;
+        if (om > max)
+            max = om;
+    }
+
+    public void reset() {
+        for (int b=0; b<NBUCKETS; b++) {
+            counts.set(b, 0);
+        }
+        total.reset();
+        sum.reset();
+        max = 0;
+    }
+
+    /*
+     * Copy this histogram into "into", then reset it, so the caller
+     * has the durations recorded since the last interval() call.
+     * Durations recorded while this runs may land in either interval.
+     */
+    public void interval(LatencyHistogram into) {
+        into.reset();
+        for (int b=0; b<NBUCKETS; b++) {
+            long c = counts.getAndSet(b, 0);
+            if (c != 0)
+                into.counts.addAndGet(b, c);
+        }
+        into.total.add(total.sumThenReset());
+        into.sum.add(sum.sumThenReset());
+        into.max = max;
+        max = 0;
+    }
+
+    private static String ms(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    /*
+     * e.g., "n=1200 p50=0.41 p90=0.88 p99=2.10 p99.9=5.02 max=7.33 ms"
+     */
+    public String summary() {
+        return "n=" + count() +
+            " p50=" + ms(percentile(50)) +
+            " p90=" + ms(percentile(90)) +
+            " p99=" + ms(percentile(99)) +
+            " p99.9=" + ms(percentile(99.9)) +
+            " max=" + ms(max()) + " ms";
+    }
+
+    /*
+     * Contains unit test code for the bucketing, and for recording
+     * from several threads at once.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        // every value maps to a bucket whose range holds it, and the
+        // bucket is no wider than 1/16th of its values.
+        long[] probe = { 0, 1, 31, 32, 33, 47, 48, 63, 64, 65, 1000,
+                         123456, 999999999L, MAX_VALUE };
+        for (int i=0; i<probe.length; i++) {
+            long v = probe[i];
+            int b = bucketOf(v);
+            long lo = (b == 0) ? 0 : highestIn(b - 1) + 1;
+            long hi = highestIn(b);
+            if ((v < lo) || (v > hi) || ((hi - lo) * HALF > Math.max(hi, SUB))) {
+                System.out.println("bad bucket for " + v + ": " + b +
+                                   " [" + lo + ", " + hi + "]");
+                System.exit(1);
+            }
+        }
+        if (bucketOf(Long.MAX_VALUE) != NBUCKETS - 1) {
+            System.out.println("overflow bucket is wrong");
+            System.exit(1);
+        }
+
+        // 1..100000 ns, uniformly: percentiles within 1/16th.
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v=1; v<=100000; v++) {
+            h.record(v);
+        }
+        double[] pcts = { 50, 90, 99, 99.9 };
+        for (int i=0; i<pcts.length; i++) {
+            long want = (long) (pcts[i] * 1000);
+            long got = h.percentile(pcts[i]);
+            if ((got < want) || (got > want + want / HALF)) {
+                System.out.println("p" + pcts[i] + " is " + got +
+                                   ", expected about " + want);
+                System.exit(1);
+            }
+        }
+        if ((h.count() != 100000) || (h.max() != 100000) ||
+            (h.mean() != 50000)) {
+            System.out.println("count/max/mean wrong: " + h.summary());
+            System.exit(1);
+        }
+        LatencyHistogram iv = new LatencyHistogram();
+        h.interval(iv);
+        if ((h.count() != 0) || (iv.count() != 100000) ||
+            (iv.max() != 100000)) {
+            System.out.println("interval() lost counts");
+            System.exit(1);
+        }
+
+        // 8 threads recording at once lose no counts.  (they may lose
+        // a max, so that isn't checked.)
+        final LatencyHistogram shared = new LatencyHistogram();
+        final int nthreads = 8;
+        final int per_thread = 1000000;
+        Thread[] threads = new Thread[nthreads];
+        for (int t=0; t<nthreads; t++) {
+            final long base = t;
+            threads[t] = new Thread(new Runnable() {
+                    public void run() {
+                        for (int i=0; i<per_thread; i++) {
+                            shared.record(base + (i & 1023));
+                        }
+                    }
+                });
+        }
+        long start = System.nanoTime();
+        for (Thread th : threads)
+            th.start();
+        for (Thread th : threads)
+            th.join();
+        long took = System.nanoTime() - start;
+        long n = (long) nthreads * per_thread;
+        long want_sum = 0;
+        for (int i=0; i<per_thread; i++) {
+            want_sum += i & 1023;
+        }
+        want_sum = want_sum * nthreads +
+            (long) per_thread * nthreads * (nthreads - 1) / 2;
+        if ((shared.count() != n) || (shared.sum() != want_sum)) {
+            System.out.println("concurrent recording lost counts: " +
+                               shared.count() + " of " + n + ", sum " +
+                               shared.sum() + " of " + want_sum);
+            System.exit(1);
+        }
+        System.out.println("histogram test passed: " + iv.summary() +
+                           "; " + nthreads + " threads " +
+                           String.format("%.1f", took / (double) n) +
+                           " ns/record");
+    }
+}
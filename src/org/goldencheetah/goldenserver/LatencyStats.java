@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.util.Collection;
+
+/*
+ * LatencyStats is a set of LatencyHistograms, one per stage that a
+ * telemetry line and the standings it produces go through:
+ *
+ *   parse  - ProtocolHandler.parseLine() on an incoming line.
+ *   update - Race.telemetryUpdate().
+ *   build  - snapshotting a race and rendering a broadcast Frame.
+ *   queue  - a Frame waiting in a rider's Mailbox for its writer.
+ *   write  - handing a batch to the socket, until the last byte is
+ *            accepted.  In the NIO engine this includes waiting for
+ *            a full socket to drain.
+ *   e2e    - from the moment the oldest telemetry line reflected in a
+ *            standings frame was read off its socket, until that frame
+ *            has been written to a recipient's socket.
+ *
+ * There is one LatencyStats per Race, and one for the server, which
+ * gets what can't be charged to a race: parse times (parsing happens
+ * before we know which race a line is for), and writes that carried
+ * no race's frames.  A record goes to one set only, so the threads of
+ * different races don't all contend for the server's histograms.
+ * Server-wide figures are put together when they are read, by
+ * serverWide(): the server's set, plus every active race's, plus
+ * those of the races that have been garbage collected, which are
+ * folded in once by retire().  A retired race's set records into the
+ * server's too, for the frames still on their way to its riders and
+ * for a race that is joined again.  Recording allocates nothing.
+ */
+public class LatencyStats {
+    public static final int PARSE  = 0;
+    public static final int UPDATE = 1;
+    public static final int BUILD  = 2;
+    public static final int QUEUE  = 3;
+    public static final int WRITE  = 4;
+    public static final int E2E    = 5;
+    public static final String[] STAGE_NAMES =
+        { "parse", "update", "build", "queue", "write", "e2e" };
+
+    private static final LatencyStats server = new LatencyStats();
+    // the garbage collected races, summed.
+    private static final LatencyStats retired_races = new LatencyStats();
+
+    private final LatencyHistogram[] stages;
+    private volatile boolean         retired = false;
+
+    private LatencyStats() {
+        this.stages = new LatencyHistogram[STAGE_NAMES.length];
+        for (int i=0; i<stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    // the server's own stats, for what isn't charged to a race.  see
+    // serverWide() for the totals.
+    public static LatencyStats server() {
+        return server;
+    }
+
+    // a new set of stats for one race.
+    public static LatencyStats forRace() {
+        return new LatencyStats();
+    }
+
+    public void record(int stage, long nanos) {
+        stages[stage].record(nanos);
+        if (retired)
+            server.stages[stage].record(nanos);
+    }
+
+    /*
+     * A race's stats, as it is garbage collected: fold them into the
+     * server-wide totals for good.  Anything recorded on them from now
+     * on goes to the server's set as well.
+     */
+    public static void retire(LatencyStats stats) {
+        if ((stats == null) || (stats == server) || stats.retired)
+            return;
+        stats.retired = true;
+        synchronized(retired_races) {
+            for (int i=0; i<STAGE_NAMES.length; i++) {
+                retired_races.stages[i].add(stats.stages[i]);
+            }
+        }
+    }
+
+    /*
+     * The server-wide totals: a new set holding the server's own
+     * stats, the retired races' and those of the given active races.
+     * Meant for reporting; it costs a merge of every race's
+     * histograms.
+     */
+    public static LatencyStats serverWide(Collection<Race> active) {
+        LatencyStats total = new LatencyStats();
+        for (int i=0; i<STAGE_NAMES.length; i++) {
+            total.stages[i].add(server.stages[i]);
+            total.stages[i].add(retired_races.stages[i]);
+        }
+        for (Race r : active) {
+            LatencyStats rs = r.peekLatencyStats();
+            // a retired race's new records are in the server's set
+            if ((rs == null) || rs.retired)
+                continue;
+            for (int i=0; i<STAGE_NAMES.length; i++) {
+                total.stages[i].add(rs.stages[i]);
+            }
+        }
+        return total;
+    }
+
+    public LatencyHistogram get(int stage) {
+        return stages[stage];
+    }
+
+    /*
+     * One line per stage that has recorded anything.
+     */
+    public String summary() {
+        StringBuffer sb = new StringBuffer();
+        for (int i=0; i<stages.length; i++) {
+            if (stages[i].count() == 0)
+                continue;
+            if (sb.length() > 0)
+                sb.append('\n');
+            sb.append("  ").append(STAGE_NAMES[i]).append(' ')
+                .append(stages[i].summary());
+        }
+        return sb.toString();
+    }
+
+    /*
+     * A Batch follows the messages in one writer batch, so the queue,
+     * write and e2e stages can be charged to the races whose Frames
+     * were in it.  Each writer owns one and reuses it; it only grows
+     * if a batch holds more Frames than it has seen before.
+     */
+    static class Batch {
+        private ProtocolHandler.Frame[] frames =
+            new ProtocolHandler.Frame[8];
+        private int  nframes = 0;
+        private long started;
+
+        // a writer took pm out of its mailbox at time now.
+        void dequeued(ProtocolHandler.ProtocolMessage pm, long now) {
+            if (!(pm instanceof ProtocolHandler.Frame))
+                return;
+            ProtocolHandler.Frame f = (ProtocolHandler.Frame) pm;
+            f.getStats().record(QUEUE, now - f.getCreatedNanos());
+            if (nframes == frames.length) {
+                ProtocolHandler.Frame[] bigger =
+                    new ProtocolHandler.Frame[frames.length * 2];
+                System.arraycopy(frames, 0, bigger, 0, nframes);
+                frames = bigger;
+            }
+            frames[nframes++] = f;
+        }
+
+        // the batch has been rendered, and is about to be written.
+        void writing(long now) {
+            started = now;
+        }
+
+        // the whole batch has been accepted by the socket.
+        void written(long now) {
+            LatencyStats write_stats = (nframes > 0) ?
+                frames[0].getStats() : server;
+            write_stats.record(WRITE, now - started);
+            for (int i=0; i<nframes; i++) {
+                if (frames[i].getSourceNanos() != 0)
+                    frames[i].getStats().record(E2E,
+                                                now - frames[i].getSourceNanos());
+                frames[i] = null;
+            }
+            nframes = 0;
+        }
+
+        // the batch was abandoned, e.g., the socket died.
+        void clear() {
+            for (int i=0; i<nframes; i++) {
+                frames[i] = null;
+            }
+            nframes = 0;
+        }
+    }
+}
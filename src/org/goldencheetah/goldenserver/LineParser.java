@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2010 Steve Gribble  [gribble {at} cs.washington.edu]
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.goldencheetah.goldenserver;
+
+/*
+ * LineParser is the hand-written tokenizer behind
+ * ProtocolHandler.parseLine().  It dispatches on the first word of the
+ * line, walks the rest in a single pass, and converts ints and floats
+ * straight from the line's characters; the only Strings it creates are
+ * the ones that end up in the message's fields.
+ *
+ * It accepts and rejects exactly what the regexps in the
+ * ProtocolMessage(String line) constructors do.  In particular, those
+ * regexps are applied with Matcher.find(), so a line may carry trailing
+ * junk, and a malformed line is retried from each later occurrence of
+ * the keyword.  ProtocolHandler.main() checks the two parsers against
+ * each other.
+ */
+final class LineParser {
+    // kinds of field value; each mirrors a character class in the regexps.
+    private static final int HEX      = 0;  // [0-9a-fA-F]+
+    private static final int NAME     = 1;  // [a-zA-Z0-9 ]+
+    private static final int INT      = 2;  // [0-9]+
+    private static final int FLOAT    = 3;  // [0-9.]+
+    private static final int VERSION  = 4;  // \d+\.\d+, unquoted
+    private static final int NONSPACE = 5;  // \S+, unquoted
+    private static final int WORD     = 6;  // [a-z]+
+
+    private static final float[] FLOAT_POW10 = {
+        1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+
+    /*
+     * The shape of one message type: its keyword, and then a list of
+     * whitespace-separated fields.  A quoted field looks like
+     * prefix='<value>'; an unquoted field is just <value>.
+     */
+    private static final class Spec {
+        final String   keyword;
+        final String[] prefixes;
+        final int[]    kinds;
+
+        Spec(String keyword, String[] prefixes, int[] kinds) {
+            this.keyword = keyword;
+            this.prefixes = prefixes;
+            this.kinds = kinds;
+        }
+    }
+
+    private static final Spec HELLO = new Spec("hello",
+        new String[] { "", "raceid='", "ridername='", "ftp='", "weight='" },
+        new int[]    { VERSION, HEX, NAME, INT, FLOAT });
+    private static final Spec HELLOFAIL = new Spec("hellofail",
+        new String[] { "", "", "raceid='" },
+        new int[]    { VERSION, NONSPACE, HEX });
+    private static final Spec HELLOSUCCEED = new Spec("hellosucceed",
+        new String[] { "", "raceid='", "riderid='", "racedistance='" },
+        new int[]    { VERSION, HEX, HEX, FLOAT });
+    private static final Spec CLIENTLIST = new Spec("clientlist",
+        new String[] { "raceid='", "numclients='" },
+        new int[]    { HEX, INT });
+    private static final Spec CLIENT = new Spec("client",
+        new String[] { "ridername='", "riderid='", "ftp='", "weight='" },
+        new int[]    { NAME, HEX, INT, FLOAT });
+    private static final Spec TELEMETRY = new Spec("telemetry",
+        new String[] { "raceid='", "riderid='", "power='", "cadence='",
+                       "distance='", "heartrate='", "speed='" },
+        new int[]    { HEX, HEX, INT, INT, FLOAT, INT, FLOAT });
+    private static final Spec STANDINGS = new Spec("standings",
+        new String[] { "raceid='", "numclients='" },
+        new int[]    { HEX, INT });
+    private static final Spec STANDINGSDELTA = new Spec("standingsdelta",
+        new String[] { "raceid='", "numclients='", "numchanged='" },
+        new int[]    { HEX, INT, INT });
+    private static final Spec RACER = new Spec("racer",
+        new String[] { "riderid='", "power='", "cadence='", "distance='",
+                       "heartrate='", "speed='", "place='" },
+        new int[]    { HEX, INT, INT, FLOAT, INT, FLOAT, INT });
+    private static final Spec RACECONCLUDED = new Spec("raceconcluded",
+        new String[] { "raceid='", "numclients='" },
+        new int[]    { HEX, INT });
+    private static final Spec RESULT = new Spec("result",
+        new String[] { "riderid='", "distance='", "place='" },
+        new int[]    { HEX, FLOAT, INT });
+    private static final Spec GOODBYE = new Spec("goodbye",
+        new String[] { "raceid='", "riderid='" },
+        new int[]    { HEX, HEX });
+
+    private final String line;
+    private final int    len;
+    private int          pos;
+    private final int[]  start = new int[8];
+    private final int[]  end = new int[8];
+
+    private LineParser(String line) {
+        this.line = line;
+        this.len = line.length();
+    }
+
+    /*
+     * Parse a line, returning the populated ProtocolMessage, or null if
+     * the line doesn't parse.
+     */
+    static ProtocolHandler.ProtocolMessage parse(String line) {
+        if (line == null || line.length() == 0)
+            return null;
+        try {
+            return new LineParser(line).dispatch();
+        } catch (java.text.ParseException e) {
+            return null;
+        }
+    }
+
+    // pick the message type from the first word, most common first.
+    // like parseLine() always has, the word must be followed by a space.
+    private ProtocolHandler.ProtocolMessage dispatch()
+        throws java.text.ParseException {
+        switch (line.charAt(0)) {
+        case 't':
+            if (keywordIs(TELEMETRY)) return telemetry();
+            break;
+        case 'r':
+            if (keywordIs(RACER)) return racer();
+            if (keywordIs(RACECONCLUDED)) return raceConcluded();
+            if (keywordIs(RESULT)) return result();
+            break;
+        case 's':
+            if (keywordIs(STANDINGS)) return standings();
+            if (keywordIs(STANDINGSDELTA)) return standingsDelta();
+            break;
+        case 'c':
+            if (keywordIs(CLIENT)) return client();
+            if (keywordIs(CLIENTLIST)) return clientList();
+            break;
+        case 'h':
+            if (keywordIs(HELLO)) return hello();
+            if (keywordIs(HELLOFAIL)) return helloFail();
+            if (keywordIs(HELLOSUCCEED)) return helloSucceed();
+            break;
+        case 'g':
+            if (keywordIs(GOODBYE)) return goodbye();
+            break;
+        }
+        return null;
+    }
+
+    private boolean keywordIs(Spec spec) {
+        int kl = spec.keyword.length();
+        return (len > kl) && (line.charAt(kl) == ' ') &&
+            line.startsWith(spec.keyword);
+    }
+
+    /*
+     * Find the first position the spec matches at, the way
+     * Matcher.find() would, leaving the field spans in start[]/end[].
+     */
+    private void find(Spec spec) throws java.text.ParseException {
+        int at = 0;
+        while (at >= 0) {
+            if (matchAt(spec, at))
+                return;
+            at = line.indexOf(spec.keyword, at + 1);
+        }
+        throw new java.text.ParseException(spec.keyword, 0);
+    }
+
+    private boolean matchAt(Spec spec, int at) {
+        pos = at + spec.keyword.length();
+        for (int f=0; f<spec.kinds.length; f++) {
+            if (!skipSpace())
+                return false;
+            String prefix = spec.prefixes[f];
+            if (!line.startsWith(prefix, pos))
+                return false;
+            pos += prefix.length();
+            start[f] = pos;
+            if (!skipValue(spec.kinds[f]))
+                return false;
+            end[f] = pos;
+            if (prefix.length() > 0) {
+                if ((pos >= len) || (line.charAt(pos) != '\''))
+                    return false;
+                pos++;
+            }
+        }
+        return true;
+    }
+
+    // \s+
+    private boolean skipSpace() {
+        int from = pos;
+        while ((pos < len) && isSpace(line.charAt(pos)))
+            pos++;
+        return pos > from;
+    }
+
+    private boolean skipValue(int kind) {
+        int from = pos;
+        if (kind == VERSION) {
+            if (!skipDigits())
+                return false;
+            if ((pos >= len) || (line.charAt(pos) != '.'))
+                return false;
+            pos++;
+            return skipDigits();
+        }
+        while ((pos < len) && inClass(kind, line.charAt(pos)))
+            pos++;
+        return pos > from;
+    }
+
+    private boolean skipDigits() {
+        int from = pos;
+        while ((pos < len) && isDigit(line.charAt(pos)))
+            pos++;
+        return pos > from;
+    }
+
+    private static boolean isSpace(char c) {
+        return (c == ' ') || (c == '\t') || (c == '\n') ||
+            (c == '\u000B') || (c == '\f') || (c == '\r');
+    }
+
+    private static boolean isDigit(char c) {
+        return (c >= '0') && (c <= '9');
+    }
+
+    private static boolean isHex(char c) {
+        return isDigit(c) || ((c >= 'a') && (c <= 'f')) ||
+            ((c >= 'A') && (c <= 'F'));
+    }
+
+    private static boolean inClass(int kind, char c) {
+        switch (kind) {
+        case HEX:
+            return isHex(c);
+        case NAME:
+            return isDigit(c) || (c == ' ') ||
+                ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'));
+        case INT:
+            return isDigit(c);
+        case FLOAT:
+            return isDigit(c) || (c == '.');
+        case NONSPACE:
+            return !isSpace(c);
+        case WORD:
+            return (c >= 'a') && (c <= 'z');
+        }
+        return false;
+    }
+
+    /*
+     * An optional quoted field after the ones the spec matched, like
+     * the regexps' (?:\s+prefix='(...)')?.  If the line carries it,
+     * leaves its span in start[f]/end[f] and returns true; otherwise
+     * leaves the position alone and returns false.
+     */
+    private boolean optional(int f, String prefix, int kind) {
+        int at = pos;
+        if (skipSpace() && line.startsWith(prefix, pos)) {
+            pos += prefix.length();
+            start[f] = pos;
+            if (skipValue(kind) && (pos < len) && (line.charAt(pos) == '\'')) {
+                end[f] = pos;
+                pos++;
+                return true;
+            }
+        }
+        pos = at;
+        return false;
+    }
+
+    // field f, verbatim.
+    private String str(int f) {
+        return line.substring(start[f], end[f]);
+    }
+
+    // hex field f, lower-cased.  only copies if there is an A-F in it.
+    private String lowerHex(int f) {
+        int s = start[f], e = end[f];
+        int i = s;
+        while ((i < e) && (line.charAt(i) < 'A' || line.charAt(i) > 'F'))
+            i++;
+        if (i == e)
+            return line.substring(s, e);
+
+        char[] c = new char[e - s];
+        for (int j=s; j<e; j++) {
+            char ch = line.charAt(j);
+            c[j - s] = ((ch >= 'A') && (ch <= 'F')) ? (char) (ch + 32) : ch;
+        }
+        return new String(c);
+    }
+
+    // [0-9]+ field f as an int; like Integer.parseInt, fails on overflow.
+    private int toInt(int f, String what) throws java.text.ParseException {
+        long v = 0;
+        for (int i=start[f]; i<end[f]; i++) {
+            v = (v * 10) + (line.charAt(i) - '0');
+            if (v > Integer.MAX_VALUE)
+                throw new java.text.ParseException(what, f + 1);
+        }
+        return (int) v;
+    }
+
+    /*
+     * [0-9.]+ field f as a float, giving exactly what Float.parseFloat
+     * would.  When the digits form an integer below 2^24 and there are
+     * at most ten of them after the point, both the digits and the power
+     * of ten are exact floats, so one float division is correctly
+     * rounded, same as Float.parseFloat.  Anything longer is rare enough
+     * to hand to Float.parseFloat itself.
+     */
+    private float toFloat(int f, String what) throws java.text.ParseException {
+        long    mantissa = 0;
+        int     fracdigits = 0;
+        boolean seen_point = false;
+        boolean seen_digit = false;
+        boolean exact = true;
+
+        for (int i=start[f]; i<end[f]; i++) {
+            char c = line.charAt(i);
+            if (c == '.') {
+                if (seen_point)
+                    throw new java.text.ParseException(what, f + 1);
+                seen_point = true;
+                continue;
+            }
+            seen_digit = true;
+            if (!exact)
+                continue;
+            mantissa = (mantissa * 10) + (c - '0');
+            if (seen_point)
+                fracdigits++;
+            if ((mantissa >= (1 << 24)) ||
+                (fracdigits >= FLOAT_POW10.length))
+                exact = false;
+        }
+        if (!seen_digit)
+            throw new java.text.ParseException(what, f + 1);
+        if (exact)
+            return ((float) mantissa) / FLOAT_POW10[fracdigits];
+
+        try {
+            return Float.parseFloat(str(f));
+        } catch (NumberFormatException e) {
+            throw new java.text.ParseException(what, f + 1);
+        }
+    }
+
+    private ProtocolHandler.ProtocolMessage hello()
+        throws java.text.ParseException {
+        find(HELLO);
+        ProtocolHandler.HelloMessage hm =
+            new ProtocolHandler.HelloMessage(str(0), lowerHex(1), str(2),
+                                             toInt(3, "hello"),
+                                             toFloat(4, "hello"));
+        if (optional(5, "updates='", WORD))
+            hm.updates = str(5);
+        if (optional(6, "top='", INT))
+            hm.top = toInt(6, "hello");
+        if (optional(7, "near='", INT))
+            hm.near = toInt(7, "hello");
+        return hm;
+    }
+
+    private ProtocolHandler.ProtocolMessage helloFail()
+        throws java.text.ParseException {
+        find(HELLOFAIL);
+        return new ProtocolHandler.HelloFailMessage(str(0), str(1),
+                                                    lowerHex(2));
+    }
+
+    private ProtocolHandler.ProtocolMessage helloSucceed()
+        throws java.text.ParseException {
+        find(HELLOSUCCEED);
+        return new ProtocolHandler.HelloSucceedMessage(
+            str(0), lowerHex(1), lowerHex(2), toFloat(3, "hellosucceed"));
+    }
+
+    private ProtocolHandler.ProtocolMessage clientList()
+        throws java.text.ParseException {
+        find(CLIENTLIST);
+        return new ProtocolHandler.ClientListMessage(
+            lowerHex(0), toInt(1, "clientlist"));
+    }
+
+    private ProtocolHandler.ProtocolMessage client()
+        throws java.text.ParseException {
+        find(CLIENT);
+        return new ProtocolHandler.ClientMessage(
+            str(0), lowerHex(1), toInt(2, "client"), toFloat(3, "client"));
+    }
+
+    // note that, as in the regexp version, the raceid keeps its case.
+    private ProtocolHandler.ProtocolMessage telemetry()
+        throws java.text.ParseException {
+        find(TELEMETRY);
+        return new ProtocolHandler.TelemetryMessage(
+            str(0), lowerHex(1),
+            toInt(2, "telemetry"), toInt(3, "telemetry"),
+            toFloat(4, "telemetry"), toInt(5, "telemetry"),
+            toFloat(6, "telemetry"));
+    }
+
+    private ProtocolHandler.ProtocolMessage standings()
+        throws java.text.ParseException {
+        find(STANDINGS);
+        ProtocolHandler.StandingsMessage sm =
+            new ProtocolHandler.StandingsMessage(lowerHex(0),
+                                                 toInt(1, "standings"));
+        if (optional(2, "total='", INT))
+            sm.total = toInt(2, "standings");
+        return sm;
+    }
+
+    private ProtocolHandler.ProtocolMessage standingsDelta()
+        throws java.text.ParseException {
+        find(STANDINGSDELTA);
+        return new ProtocolHandler.StandingsDeltaMessage(
+            lowerHex(0), toInt(1, "standingsdelta"),
+            toInt(2, "standingsdelta"));
+    }
+
+    private ProtocolHandler.ProtocolMessage racer()
+        throws java.text.ParseException {
+        find(RACER);
+        return new ProtocolHandler.RacerMessage(
+            lowerHex(0), toInt(1, "racer"), toInt(2, "racer"),
+            toFloat(3, "racer"), toInt(4, "racer"), toFloat(5, "racer"),
+            toInt(6, "racer"));
+    }
+
+    private ProtocolHandler.ProtocolMessage raceConcluded()
+        throws java.text.ParseException {
+        find(RACECONCLUDED);
+        return new ProtocolHandler.RaceConcludedMessage(
+            lowerHex(0), toInt(1, "raceconcluded"));
+    }
+
+    private ProtocolHandler.ProtocolMessage result()
+        throws java.text.ParseException {
+        find(RESULT);
+        return new ProtocolHandler.ResultMessage(
+            lowerHex(0), toFloat(1, "result"), toInt(2, "result"));
+    }
+
+    private ProtocolHandler.ProtocolMessage goodbye()
+        throws java.text.ParseException {
+        find(GOODBYE);
+        return new ProtocolHandler.GoodbyeMessage(lowerHex(0), lowerHex(1));
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+// standard java imports
+import java.io.*;
+import java.net.*;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * LoadGenerator is RobotRider's load-test mode: one process simulating
+ * many robot riders, spread round-robin over one or more races.
+ * Riders are started evenly over a ramp-up period, each sends
+ * telemetry at a fixed rate, and the whole thing stops after a fixed
+ * duration (or runs until killed).
+ *
+ * Three latencies are recorded:
+ *   connect   - opening the TCP connection.
+ *   hello     - from sending hello to reading hellosucceed.
+ *   standings - from sending a telemetry line to reading the racer
+ *               line in a standings update that reflects it.
+ * To match a racer line to the telemetry behind it, each rider sends
+ * a sequence number in the low bits of its power value; the server
+ * echoes power back unchanged in the racer line.  Since the server
+ * broadcasts standings on a fixed tick, standings latency includes
+ * the wait for the next tick.
+ *
+ * Each rider has a reader thread; telemetry is sent from a small
+ * shared scheduler pool.  Lines other than our own racer line are not
+ * parsed, to keep the generator cheap enough to drive a server on the
+ * same box.
+ *
+ * With setBinary(true) the riders ask for the binary codec (protocol
+ * version 0.2) instead, and read records rather than lines.  Compare
+ * bytes_received between the two to see the bandwidth it saves.
+ * Likewise, with setDelta(true) they ask for delta standings updates,
+ * and with setWindow() for a window on the standings.
+ */
+public class LoadGenerator {
+    private static final Charset charset = Charset.forName("US-ASCII");
+    private static final int     POWER_BASE = 100;
+    private static final int     POWER_SEQS = 256;
+    private static final long    REPORT_PERIOD_MS = 5000;
+
+    private String[] raceids;
+    private String   hostname;
+    private int      port;
+    private int      numriders;
+    private double   telemetry_hz;
+    private long     rampup_ms;
+    private long     duration_ms;
+    private boolean  binary = false;
+    private boolean  delta = false;
+    private int      view_top = -1;
+    private int      view_near = -1;
+
+    private ScheduledExecutorService senders;
+    private volatile boolean stopping = false;
+
+    private LatencyHistogram connect_lat = new LatencyHistogram();
+    private LatencyHistogram hello_lat = new LatencyHistogram();
+    private LatencyHistogram standings_lat = new LatencyHistogram();
+
+    private AtomicInteger connected = new AtomicInteger(0);
+    private AtomicLong    connects = new AtomicLong(0);
+    private AtomicLong    failures = new AtomicLong(0);
+    private AtomicLong    telemetry_sent = new AtomicLong(0);
+    private AtomicLong    messages_received = new AtomicLong(0);
+    private AtomicLong    bytes_received = new AtomicLong(0);
+
+    public LoadGenerator(String[] raceids, String hostname, int port,
+                         int numriders, double telemetry_hz,
+                         long rampup_ms, long duration_ms) {
+        this.raceids = raceids;
+        this.hostname = hostname;
+        this.port = port;
+        this.numriders = numriders;
+        this.telemetry_hz = telemetry_hz;
+        this.rampup_ms = rampup_ms;
+        this.duration_ms = duration_ms;
+    }
+
+    // use the binary codec rather than the line protocol.
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    // ask for standingsdelta updates between keyframes.
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    // ask for standings holding only the top riders and the near
+    // riders either side of each rider; -1 leaves a field out.
+    public void setWindow(int view_top, int view_near) {
+        this.view_top = view_top;
+        this.view_near = view_near;
+    }
+
+    /*
+     * Run the load test, reporting every REPORT_PERIOD_MS.  Returns
+     * once duration_ms has passed, or never if it is 0.
+     */
+    public void run() {
+        int nsenders = Math.max(1, Math.min(8,
+                           Runtime.getRuntime().availableProcessors()));
+        senders = Executors.newScheduledThreadPool(nsenders,
+            new ThreadFactory() {
+                private int n = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "LoadSender-" + (n++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        long start = System.currentTimeMillis();
+        SimRider[] sims = new SimRider[numriders];
+        for (int i=0; i<numriders; i++) {
+            sims[i] = new SimRider(i, raceids[i % raceids.length]);
+            Thread t = new Thread(null, sims[i], "SimRider-" + i, 256 * 1024);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        LatencyHistogram iv_connect = new LatencyHistogram();
+        LatencyHistogram iv_hello = new LatencyHistogram();
+        LatencyHistogram iv_standings = new LatencyHistogram();
+        LatencyHistogram all_connect = new LatencyHistogram();
+        LatencyHistogram all_hello = new LatencyHistogram();
+        LatencyHistogram all_standings = new LatencyHistogram();
+        while (true) {
+            try {
+                Thread.sleep(REPORT_PERIOD_MS);
+            } catch (InterruptedException ie) {
+                break;
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            connect_lat.interval(iv_connect);
+            hello_lat.interval(iv_hello);
+            standings_lat.interval(iv_standings);
+            all_connect.add(iv_connect);
+            all_hello.add(iv_hello);
+            all_standings.add(iv_standings);
+
+            System.out.println("t=" + (elapsed / 1000) + "s connected=" +
+                               connected.get() + "/" + numriders +
+                               " connects=" + connects.get() +
+                               " failures=" + failures.get() +
+                               " telemetry_sent=" + telemetry_sent.get() +
+                               " messages_received=" +
+                               messages_received.get() +
+                               " bytes_received=" + bytes_received.get());
+            System.out.println("  connect   " + iv_connect.summary());
+            System.out.println("  hello     " + iv_hello.summary());
+            System.out.println("  standings " + iv_standings.summary());
+
+            if ((duration_ms > 0) && (elapsed >= duration_ms))
+                break;
+        }
+
+        stopping = true;
+        senders.shutdownNow();
+        for (int i=0; i<numriders; i++) {
+            sims[i].close();
+        }
+        System.out.println("totals over the whole run:");
+        System.out.println("  connect   " + all_connect.summary());
+        System.out.println("  hello     " + all_hello.summary());
+        System.out.println("  standings " + all_standings.summary());
+    }
+
+    /*
+     * One simulated rider.  run() is its reader thread: it connects,
+     * says hello, schedules its telemetry, then reads until the
+     * connection drops or the race concludes, and starts over.
+     */
+    private class SimRider implements Runnable {
+        private int    num;
+        private String raceid;
+        private Random rm;
+
+        private Socket       sock = null;
+        private OutputStream out = null;
+        private String       riderid = null;
+        private String       racer_prefix = null;
+        private ScheduledFuture<?> sending = null;
+        private long         seq = 0;
+        private int          last_power = -1;
+        private long[]       sent_nanos = new long[POWER_SEQS];
+        private int          rider_index = -1;
+
+        SimRider(int num, String raceid) {
+            this.num = num;
+            this.raceid = raceid;
+            this.rm = new Random(num);
+        }
+
+        public void run() {
+            long delay = (numriders > 1) ? (rampup_ms * num) / numriders : 0;
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ie) {
+                return;
+            }
+
+            while (!stopping) {
+                try {
+                    ride();
+                } catch (IOException ioe) {
+                    if (!stopping)
+                        failures.incrementAndGet();
+                }
+                close();
+                if (stopping)
+                    break;
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+
+        private void ride() throws IOException {
+            long t0 = System.nanoTime();
+            Socket s = new Socket();
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(hostname, port));
+            long t1 = System.nanoTime();
+            connect_lat.record(t1 - t0);
+            connects.incrementAndGet();
+
+            DataInputStream reader;
+            synchronized(this) {
+                sock = s;
+                out = new BufferedOutputStream(s.getOutputStream());
+            }
+            reader = new DataInputStream(new BufferedInputStream(
+                         new CountingInputStream(s.getInputStream())));
+
+            String version = binary ? WireCodec.BINARY.getProtoversion() :
+                RobotRider.protoversion;
+            ProtocolHandler.HelloMessage hm =
+                new ProtocolHandler.HelloMessage(version,
+                                                 raceid,
+                                                 "loadrider" + num,
+                                                 250, (float) 75.0);
+            if (delta)
+                hm.updates = "delta";
+            hm.top = view_top;
+            hm.near = view_near;
+            long t2 = System.nanoTime();
+            send(hm);
+            String line = readLine(reader);
+            if (line == null)
+                throw new EOFException();
+            ProtocolHandler.ProtocolMessage pm = ProtocolHandler.parseLine(line);
+            if (!(pm instanceof ProtocolHandler.HelloSucceedMessage) ||
+                !((ProtocolHandler.HelloSucceedMessage) pm).protoversion
+                     .equals(version)) {
+                // a hellofail, most likely; count it and retry
+                throw new IOException("hello failed: " + line);
+            }
+            hello_lat.record(System.nanoTime() - t2);
+            connected.incrementAndGet();
+
+            try {
+                synchronized(this) {
+                    riderid = ((ProtocolHandler.HelloSucceedMessage) pm).riderid;
+                    racer_prefix = "racer riderid='" + riderid + "' power='";
+                    long period_us = (long) (1000000.0 / telemetry_hz);
+                    sending = senders.scheduleAtFixedRate(new Runnable() {
+                            public void run() {
+                                sendTelemetry();
+                            }
+                        }, (long) (rm.nextDouble() * period_us),
+                        period_us, TimeUnit.MICROSECONDS);
+                }
+
+                if (binary) {
+                    readBinary(reader);
+                    return;
+                }
+                while ((line = readLine(reader)) != null) {
+                    messages_received.incrementAndGet();
+                    if (line.startsWith(racer_prefix)) {
+                        sawRacer(line, System.nanoTime());
+                    } else if (line.startsWith("raceconcluded")) {
+                        send(new ProtocolHandler.GoodbyeMessage(raceid,
+                                                                riderid));
+                        return;
+                    }
+                }
+            } finally {
+                connected.decrementAndGet();
+            }
+        }
+
+        // read binary records until the race concludes.  we learn our
+        // rider index from the client lists.
+        private void readBinary(DataInputStream reader) throws IOException {
+            while (true) {
+                ProtocolHandler.ProtocolMessage pm =
+                    BinaryCodec.read(reader, raceid);
+                long now = System.nanoTime();
+                messages_received.incrementAndGet();
+                if (pm instanceof ProtocolHandler.RacerMessage) {
+                    ProtocolHandler.RacerMessage rm =
+                        (ProtocolHandler.RacerMessage) pm;
+                    if (rm.rider_index == rider_index)
+                        sawPower(rm.power_watts, now);
+                } else if (pm instanceof ProtocolHandler.ClientMessage) {
+                    ProtocolHandler.ClientMessage cm =
+                        (ProtocolHandler.ClientMessage) pm;
+                    if (cm.riderid.equals(riderid))
+                        rider_index = cm.rider_index;
+                } else if (pm instanceof
+                           ProtocolHandler.RaceConcludedMessage) {
+                    send(new ProtocolHandler.GoodbyeMessage(raceid, riderid));
+                    return;
+                }
+            }
+        }
+
+        // a line of US-ASCII, without its terminator; null at the end
+        // of the stream.
+        private String readLine(DataInputStream reader) throws IOException {
+            StringBuilder sb = new StringBuilder(128);
+            int c;
+            while ((c = reader.read()) >= 0) {
+                if (c == '\n')
+                    return sb.toString();
+                if (c != '\r')
+                    sb.append((char) c);
+            }
+            return (sb.length() > 0) ? sb.toString() : null;
+        }
+
+        // called on a sender thread.
+        private synchronized void sendTelemetry() {
+            if ((out == null) || (riderid == null))
+                return;
+            int slot = (int) (seq++ % POWER_SEQS);
+            int speed = 25 + rm.nextInt(20);
+            ProtocolHandler.TelemetryMessage tm =
+                new ProtocolHandler.TelemetryMessage(raceid, riderid,
+                                                     POWER_BASE + slot,
+                                                     80 + rm.nextInt(20),
+                                                     (float) 0.0,
+                                                     130 + rm.nextInt(30),
+                                                     (float) speed);
+            sent_nanos[slot] = System.nanoTime();
+            try {
+                send(tm);
+                telemetry_sent.incrementAndGet();
+            } catch (IOException ioe) {
+                // the reader thread will notice the dead socket
+            }
+        }
+
+        // our own racer line arrived.
+        private void sawRacer(String line, long now) {
+            int at = racer_prefix.length();
+            int power = 0;
+            while ((at < line.length()) && Character.isDigit(line.charAt(at))) {
+                power = power * 10 + (line.charAt(at++) - '0');
+            }
+            sawPower(power, now);
+        }
+
+        // if the power in our racer line is new, it reflects the
+        // telemetry we sent with that sequence number.
+        private void sawPower(int power, long now) {
+            if ((power < POWER_BASE) || (power == last_power))
+                return;
+            last_power = power;
+            long sent;
+            synchronized(this) {
+                sent = sent_nanos[(power - POWER_BASE) % POWER_SEQS];
+            }
+            if (sent != 0)
+                standings_lat.record(now - sent);
+        }
+
+        private synchronized void send(ProtocolHandler.ProtocolMessage pm)
+            throws IOException {
+            if (out == null)
+                throw new IOException("not connected");
+            out.write(pm.toString().getBytes(charset));
+            out.flush();
+        }
+
+        synchronized void close() {
+            if (sending != null) {
+                sending.cancel(false);
+                sending = null;
+            }
+            riderid = null;
+            rider_index = -1;
+            last_power = -1;
+            out = null;
+            if (sock != null) {
+                try { sock.close(); } catch (IOException ioe) {}
+                sock = null;
+            }
+        }
+    }
+
+    // counts the bytes we read off a socket into bytes_received.
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int c = super.read();
+            if (c >= 0)
+                bytes_received.incrementAndGet();
+            return c;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                bytes_received.addAndGet(n);
+            return n;
+        }
+    }
+}
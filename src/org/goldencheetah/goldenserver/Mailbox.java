@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * A Mailbox is the outbound queue of one client connection.  Unlike a
+ * plain bounded queue, it knows that a standings frame is a complete
+ * snapshot: if a new standings frame arrives while an older one is
+ * still waiting to be sent, the older one is thrown away and the new
+ * one goes to the back of the queue ("conflation").  So a slow client
+ * holds at most one standings frame, and always gets the freshest one.
+ *
+ * A membership frame (the race's whole client list) is a complete
+ * snapshot too, and goes out to everyone on every join and leave.  A
+ * new one takes the place of an older one still waiting, in the older
+ * one's spot in the queue, so it stays ahead of any standings that
+ * were queued after it, and behind the handshake reply.  A race sends
+ * no membership once it has concluded, so this never reorders one
+ * with the results.
+ *
+ * Everything else (handshake replies and race-concluded frames) is
+ * never dropped, and a connection gets only a couple of those, so a
+ * client that never reads holds at most a few messages.  A standings
+ * frame is dropped only if the mailbox is already holding capacity
+ * messages.  Conflations and drops are counted per mailbox, and
+ * summed across mailboxes.
+ *
+ * A delta frame only makes sense on top of the one before it, so it
+ * is never the one that's conflated or dropped: if an older standings
+ * frame is still waiting, or one has been dropped since the last one
+ * went out, the delta's keyframe (the full standings of the same
+ * tick) is queued in its place.  The first standings a mailbox gets
+ * is always a keyframe.
+ *
+ * A mailbox is closed when its connection is going away.  After that
+ * it takes nothing new, and take() hands out what is already queued
+ * and then returns null, so a writer knows it has sent everything.
+ *
+ * For monitoring, we also keep the number of messages waiting in all
+ * mailboxes combined, and the deepest any one mailbox has been.
+ */
+public class Mailbox {
+    private static LongAdder total_conflated = new LongAdder();
+    private static LongAdder total_dropped = new LongAdder();
+    private static LongAdder total_queued = new LongAdder();
+    private static AtomicLong max_queued = new AtomicLong();
+
+    private final ArrayDeque<ProtocolHandler.ProtocolMessage> queue;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition not_empty = lock.newCondition();
+    private ProtocolHandler.Frame pending_standings = null;
+    private ProtocolHandler.Frame pending_membership = null;
+    private boolean want_keyframe = true;
+    private boolean closed = false;
+    private volatile long conflated = 0;
+    private volatile long dropped = 0;
+
+    public Mailbox(int capacity) {
+        this.capacity = capacity;
+        this.queue = new ArrayDeque<ProtocolHandler.ProtocolMessage>();
+    }
+
+    /*
+     * Queue a message; never blocks.  Returns false if the message was
+     * dropped because the mailbox is full, or closed.
+     */
+    public boolean offer(ProtocolHandler.ProtocolMessage m) {
+        int kind = (m instanceof ProtocolHandler.Frame) ?
+            ((ProtocolHandler.Frame) m).getKind() : -1;
+        boolean standings = (kind == ProtocolHandler.Frame.STANDINGS) ||
+            (kind == ProtocolHandler.Frame.DELTA);
+
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+            if ((kind == ProtocolHandler.Frame.DELTA) &&
+                (want_keyframe || (pending_standings != null)))
+                m = ((ProtocolHandler.Frame) m).getKeyframe();
+            if ((kind == ProtocolHandler.Frame.MEMBERSHIP) &&
+                (pending_membership != null)) {
+                replace(pending_membership, m);
+                pending_membership = (ProtocolHandler.Frame) m;
+                conflated++;
+                total_conflated.increment();
+                return true;
+            }
+            if (standings && (pending_standings != null)) {
+                queue.remove(pending_standings);
+                total_queued.decrement();
+                conflated++;
+                total_conflated.increment();
+            } else if (standings && (queue.size() >= capacity)) {
+                dropped++;
+                total_dropped.increment();
+                want_keyframe = true;
+                return false;
+            }
+            queue.addLast(m);
+            total_queued.increment();
+            int depth = queue.size();
+            long max = max_queued.get();
+            while ((depth > max) && !max_queued.compareAndSet(max, depth)) {
+                max = max_queued.get();
+            }
+            if (standings) {
+                pending_standings = (ProtocolHandler.Frame) m;
+                want_keyframe = false;
+            } else if (kind == ProtocolHandler.Frame.MEMBERSHIP) {
+                pending_membership = (ProtocolHandler.Frame) m;
+            }
+            not_empty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // put m where old is in the queue.  the queue is only ever a few
+    // messages long, so going round it is cheap.
+    private void replace(ProtocolHandler.ProtocolMessage old,
+                         ProtocolHandler.ProtocolMessage m) {
+        for (int i=queue.size(); i>0; i--) {
+            ProtocolHandler.ProtocolMessage q = queue.pollFirst();
+            queue.addLast((q == old) ? m : q);
+        }
+    }
+
+    // take the next message, or null if there isn't one.
+    public ProtocolHandler.ProtocolMessage poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // take the next message, waiting up to the timeout for one.
+    // returns null at once if the mailbox is closed and empty.
+    public ProtocolHandler.ProtocolMessage poll(long timeout, TimeUnit unit)
+        throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                if (closed || (nanos <= 0))
+                    return null;
+                nanos = not_empty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // take the next message, waiting as long as it takes for one.
+    // returns null once the mailbox is closed and empty.
+    public ProtocolHandler.ProtocolMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                if (closed)
+                    return null;
+                not_empty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Take nothing more.  If discard is true, throw away whatever is
+     * still queued too.  Wakes up anyone waiting in take().
+     */
+    public void close(boolean discard) {
+        lock.lock();
+        try {
+            closed = true;
+            if (discard)
+                discard();
+            not_empty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ProtocolHandler.ProtocolMessage dequeue() {
+        ProtocolHandler.ProtocolMessage m = queue.pollFirst();
+        if (m != null)
+            total_queued.decrement();
+        if (m == pending_standings)
+            pending_standings = null;
+        else if (m == pending_membership)
+            pending_membership = null;
+        return m;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            discard();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void discard() {
+        total_queued.add(-queue.size());
+        queue.clear();
+        pending_standings = null;
+        pending_membership = null;
+        want_keyframe = true;
+    }
+
+    // standings and membership frames replaced by a newer one before
+    // being sent.
+    public long conflated() {
+        return conflated;
+    }
+
+    // standings frames thrown away because the mailbox was full.
+    public long dropped() {
+        return dropped;
+    }
+
+    public static long totalConflated() {
+        return total_conflated.sum();
+    }
+
+    public static long totalDropped() {
+        return total_dropped.sum();
+    }
+
+    // messages waiting in all mailboxes right now.
+    public static long totalQueued() {
+        return total_queued.sum();
+    }
+
+    // the most messages any one mailbox has held at once.
+    public static long maxQueued() {
+        return max_queued.get();
+    }
+
+    /*
+     * A self test of a client that never reads.  Its mailbox gets a
+     * hello reply, then a flood of membership and standings frames,
+     * as a busy race with riders coming and going would send, then
+     * the results.  It must never hold more than a handful of
+     * messages, and draining it must give the hello reply, the last
+     * membership, the last standings and the results, in that order.
+     */
+    public static void main(String[] args) {
+        final String raceid = "00000000000000000000000000000001";
+        final int    rounds = 100000;
+        Mailbox box = new Mailbox(40);
+        ProtocolHandler.ProtocolMessage hello =
+            new ProtocolHandler.HelloSucceedMessage("0.1", raceid, "0001",
+                                                    40.0f);
+        box.offer(hello);
+        ProtocolHandler.Frame membership = null;
+        ProtocolHandler.Frame standings = null;
+        int deepest = box.size();
+        for (int i=0; i<rounds; i++) {
+            membership = new ProtocolHandler.Frame(
+                ProtocolHandler.Frame.MEMBERSHIP,
+                new ProtocolHandler.ProtocolMessage[] {
+                    new ProtocolHandler.ClientListMessage(raceid, i) });
+            box.offer(membership);
+            standings = new ProtocolHandler.Frame(
+                ProtocolHandler.Frame.STANDINGS,
+                new ProtocolHandler.ProtocolMessage[] {
+                    new ProtocolHandler.StandingsMessage(raceid, i) });
+            box.offer(standings);
+            deepest = Math.max(deepest, box.size());
+        }
+        ProtocolHandler.Frame results = new ProtocolHandler.Frame(
+            ProtocolHandler.Frame.CONCLUDED,
+            new ProtocolHandler.ProtocolMessage[] {
+                new ProtocolHandler.RaceConcludedMessage(raceid, 1) });
+        box.offer(results);
+        deepest = Math.max(deepest, box.size());
+
+        ProtocolHandler.ProtocolMessage[] expected =
+            { hello, membership, standings, results };
+        boolean ok = (deepest <= 4) && (box.size() == expected.length);
+        for (int i=0; i<expected.length; i++) {
+            if (box.poll() != expected[i])
+                ok = false;
+        }
+        ok = ok && (box.poll() == null);
+        System.out.println("mailbox test: " + (2 * rounds) +
+                           " frames to a client that never reads; deepest " +
+                           deepest + ", " + box.conflated() +
+                           " conflated, " + box.dropped() + " dropped; " +
+                           (ok ? "ok" : "FAILED"));
+        if (!ok)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+/*
+ * A MessageSink is the outbound half of a client connection: the
+ * place a Race (or a ClientSession) drops ProtocolMessages that
+ * should be sent to a rider.  The thread-per-client ClientWriter
+ * and the NioServer connections both implement it, so Race doesn't
+ * care which connection engine the rider came in on.
+ */
+public interface MessageSink {
+    /*
+     * Add a ProtocolMessage to the outgoing queue.  Returns false
+     * if the message was dropped rather than queued.
+     */
+    public boolean add(ProtocolHandler.ProtocolMessage m);
+
+    /*
+     * Render messages with this codec from now on; see WireCodec.
+     * Sinks start out with WireCodec.ASCII.
+     */
+    public void setCodec(WireCodec codec);
+
+    /*
+     * The queue behind this sink, for its depth and drop counts.
+     */
+    public Mailbox getMailbox();
+}
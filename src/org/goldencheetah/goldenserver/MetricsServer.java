@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+// standard java imports
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// imports from .jar's in lib/
+import org.apache.log4j.Logger;
+
+/*
+ * MetricsServer is an optional, embedded HTTP server that serves the
+ * server's counters at /metrics in the Prometheus text format, for
+ * scraping.  It runs on its own thread, and reads only counters,
+ * gauges and histograms that are safe to read without locks; a
+ * scrape never takes a Race's locks or the RaceRegistry's, so a
+ * busy or wedged race can't stall it (and it can't stall a race).
+ *
+ * Counters (the *_total metrics) only ever go up; take rate() of
+ * them in Prometheus for per-second figures.
+ */
+public class MetricsServer {
+    private static Logger logger =
+        Logger.getLogger(MetricsServer.class.getName());
+    private static final Charset charset = Charset.forName("US-ASCII");
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private int        port;
+    private WebPoller  poller;
+    private RaceTicker ticker;
+    private HttpServer server;
+
+    public MetricsServer(int port, WebPoller poller, RaceTicker ticker) {
+        this.port = port;
+        this.poller = poller;
+        this.ticker = ticker;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+                public void handle(HttpExchange ex) throws IOException {
+                    serve(ex);
+                }
+            });
+        server.setExecutor(Executors.newSingleThreadExecutor());
+        server.start();
+        logger.info("serving metrics on port " + port);
+    }
+
+    private void serve(HttpExchange ex) throws IOException {
+        byte[] body;
+        try {
+            body = render().getBytes(charset);
+        } catch (RuntimeException re) {
+            logger.error("failed to render metrics", re);
+            ex.sendResponseHeaders(500, -1);
+            ex.close();
+            return;
+        }
+        ex.getResponseHeaders().set("Content-Type",
+                                    "text/plain; version=0.0.4");
+        ex.sendResponseHeaders(200, body.length);
+        OutputStream os = ex.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    /*
+     * Build the whole scrape.
+     */
+    String render() {
+        StringBuilder sb = new StringBuilder(8192);
+
+        // sessions and races
+        gauge(sb, "goldenserver_sessions", "Open client connections.",
+              ClientSession.numLive());
+        gauge(sb, "goldenserver_races_active",
+              "Races with at least one rider.", RaceRegistry.active().size());
+        int riders = 0;
+        header(sb, "goldenserver_race_riders", "gauge",
+               "Riders in each active race.");
+        for (Race r : RaceRegistry.active().races()) {
+            int n = r.numClients();
+            riders += n;
+            sb.append("goldenserver_race_riders{raceid=\"")
+                .append(r.getRaceid()).append("\"} ").append(n).append('\n');
+        }
+        gauge(sb, "goldenserver_riders", "Riders in all active races.",
+              riders);
+
+        // traffic
+        counter(sb, "goldenserver_messages_in_total",
+                "Lines read from clients.", IoStats.messagesIn());
+        counter(sb, "goldenserver_bytes_in_total",
+                "Bytes read from clients.", IoStats.bytesIn());
+        counter(sb, "goldenserver_messages_out_total",
+                "Protocol messages written to clients, counting each " +
+                "message in a frame.", IoStats.messagesOut());
+        counter(sb, "goldenserver_bytes_out_total",
+                "Bytes written to clients.", IoStats.bytesOut());
+        counter(sb, "goldenserver_flushes_total",
+                "Drains of a client's outbound queue.", IoStats.flushes());
+        counter(sb, "goldenserver_socket_writes_total",
+                "Socket write calls.", IoStats.writes());
+
+        // outbound queues
+        gauge(sb, "goldenserver_mailbox_queued",
+              "Messages waiting in all client mailboxes.",
+              Mailbox.totalQueued());
+        gauge(sb, "goldenserver_mailbox_max_queued",
+              "Most messages any one mailbox has held.",
+              Mailbox.maxQueued());
+        counter(sb, "goldenserver_mailbox_conflated_total",
+                "Standings and membership frames replaced by a newer " +
+                "one before sending.",
+                Mailbox.totalConflated());
+        counter(sb, "goldenserver_mailbox_dropped_total",
+                "Standings frames dropped because a mailbox was full.",
+                Mailbox.totalDropped());
+
+        // the telemetry journal
+        counter(sb, "goldenserver_journal_records_total",
+                "Telemetry records written to race journals.",
+                TelemetryJournal.recordsWritten());
+        counter(sb, "goldenserver_journal_dropped_total",
+                "Telemetry records dropped because the journal writer " +
+                "was behind.", TelemetryJournal.recordsDropped());
+
+        // clients gone quiet
+        IdleTimer idle = IdleTimer.active();
+        if (idle != null) {
+            gauge(sb, "goldenserver_idle_watched",
+                  "Connections watched for going quiet.",
+                  idle.numWatched());
+            counter(sb, "goldenserver_idle_stalls_total",
+                    "Connections that went quiet long enough for their " +
+                    "rider to be frozen.", idle.stalls());
+            counter(sb, "goldenserver_idle_closed_total",
+                    "Connections closed because their client sent " +
+                    "nothing for too long.", idle.deaths());
+        }
+
+        // race results on their way to GoldenWeb
+        ResultsOutbox outbox = ResultsOutbox.active();
+        if (outbox != null) {
+            gauge(sb, "goldenserver_results_pending",
+                  "Race results in the outbox, not yet taken by GoldenWeb.",
+                  outbox.pending());
+            counter(sb, "goldenserver_results_uploaded_total",
+                    "Race results taken by GoldenWeb.",
+                    outbox.racesUploaded());
+            counter(sb, "goldenserver_results_upload_failures_total",
+                    "POSTs of race results to GoldenWeb that failed.",
+                    outbox.uploadFailures());
+        }
+
+        // the race clock
+        if (ticker != null) {
+            counter(sb, "goldenserver_ticks_total", "Race ticks run.",
+                    ticker.getTicks());
+            counter(sb, "goldenserver_tick_overruns_total",
+                    "Race ticks that took longer than the tick period.",
+                    ticker.getOverruns());
+            gauge(sb, "goldenserver_tick_last_seconds",
+                  "How long the last race tick took.",
+                  ticker.getLastTookNanos() / 1e9);
+            gauge(sb, "goldenserver_tick_max_late_seconds",
+                  "The furthest a race tick has started behind schedule.",
+                  ticker.getMaxLateNanos() / 1e9);
+        }
+
+        // per-stage latencies, server-wide
+        header(sb, "goldenserver_latency_seconds", "summary",
+               "Time spent in each stage; see LatencyStats.");
+        LatencyStats totals =
+            LatencyStats.serverWide(RaceRegistry.active().races());
+        for (int i=0; i<LatencyStats.STAGE_NAMES.length; i++) {
+            summary(sb, "goldenserver_latency_seconds",
+                    "stage=\"" + LatencyStats.STAGE_NAMES[i] + "\"",
+                    totals.get(i));
+        }
+        header(sb, "goldenserver_race_latency_seconds", "summary",
+               "End-to-end standings latency for each active race.");
+        for (Race r : RaceRegistry.active().races()) {
+            LatencyStats rs = r.peekLatencyStats();
+            if (rs == null)
+                continue;
+            summary(sb, "goldenserver_race_latency_seconds",
+                    "raceid=\"" + r.getRaceid() + "\",stage=\"e2e\"",
+                    rs.get(LatencyStats.E2E));
+        }
+
+        // GoldenWeb polling
+        if (poller != null) {
+            header(sb, "goldenserver_webpoll_seconds", "summary",
+                   "Time taken to fetch the GoldenWeb race list.");
+            summary(sb, "goldenserver_webpoll_seconds", null,
+                    poller.getSlurpLatency());
+            counter(sb, "goldenserver_webpoll_failures_total",
+                    "Failed fetches of the GoldenWeb race list.",
+                    poller.getSlurpFailures());
+            gauge(sb, "goldenserver_webpoll_last_success_timestamp_seconds",
+                  "When the race list was last fetched successfully.",
+                  poller.getLastSuccessMs() / 1000.0);
+            gauge(sb, "goldenserver_webpoll_races",
+                  "Races listed by GoldenWeb.", poller.numKnownRaces());
+        }
+
+        // the JVM
+        MemoryUsage heap =
+            ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        gauge(sb, "jvm_heap_used_bytes", "Heap in use.", heap.getUsed());
+        gauge(sb, "jvm_heap_committed_bytes", "Heap committed.",
+              heap.getCommitted());
+        gauge(sb, "jvm_heap_max_bytes", "Maximum heap.", heap.getMax());
+        gauge(sb, "jvm_threads", "Live threads.",
+              ManagementFactory.getThreadMXBean().getThreadCount());
+        header(sb, "jvm_gc_collections_total", "counter",
+               "Garbage collections, by collector.");
+        for (GarbageCollectorMXBean gc :
+                 ManagementFactory.getGarbageCollectorMXBeans()) {
+            sb.append("jvm_gc_collections_total{gc=\"")
+                .append(escape(gc.getName())).append("\"} ")
+                .append(gc.getCollectionCount()).append('\n');
+        }
+        header(sb, "jvm_gc_seconds_total", "counter",
+               "Time spent in garbage collection, by collector.");
+        for (GarbageCollectorMXBean gc :
+                 ManagementFactory.getGarbageCollectorMXBeans()) {
+            sb.append("jvm_gc_seconds_total{gc=\"")
+                .append(escape(gc.getName())).append("\"} ")
+                .append(gc.getCollectionTime() / 1000.0).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type,
+                               String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help,
+                              double value) {
+        header(sb, name, "gauge", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help,
+                              long value) {
+        header(sb, name, "gauge", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help,
+                                long value) {
+        header(sb, name, "counter", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    // the quantiles, sum and count of a histogram of nanoseconds, in
+    // seconds.  labels is null or e.g. 'stage="parse"'.
+    private static void summary(StringBuilder sb, String name, String labels,
+                                LatencyHistogram h) {
+        String pre = (labels == null) ? "" : labels + ",";
+        for (int i=0; i<QUANTILES.length; i++) {
+            sb.append(name).append("{").append(pre).append("quantile=\"")
+                .append(QUANTILES[i]).append("\"} ")
+                .append(h.percentile(QUANTILES[i] * 100) / 1e9).append('\n');
+        }
+        String lb = (labels == null) ? "" : "{" + labels + "}";
+        sb.append(name).append("_sum").append(lb).append(' ')
+            .append(h.sum() / 1e9).append('\n');
+        sb.append(name).append("_count").append(lb).append(' ')
+            .append(h.count()).append('\n');
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
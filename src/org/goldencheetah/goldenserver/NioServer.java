@@ -0,0 +1,739 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+// standard java imports
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+// imports from .jar's in lib/
+import org.apache.log4j.Logger;
+
+/*
+ * NioServer is the selector-based alternative to the thread-per-client
+ * ClientHandler.  The thread calling run() accepts connections and
+ * deals them out round-robin to a small, fixed pool of IoLoop threads;
+ * each IoLoop owns a Selector and does non-blocking reads, line
+ * framing and writes for all of its connections.  The protocol itself
+ * is handled by the same ClientSession that ClientHandler uses, so
+ * Race and ProtocolHandler see no difference between the two engines.
+ *
+ * In a Cluster, a client whose race is owned by another node is
+ * relayed to the owner by a Relay on the same IoLoop, so proxied
+ * clients cost no threads either.
+ */
+public class NioServer {
+    private static Logger logger =
+        Logger.getLogger(NioServer.class.getName());
+    private static final Charset charset = Charset.forName("US-ASCII");
+    private static final int MAX_LINE = 4096;
+    private static final int QCAP = 40;
+    private static final int RELAY_BUF = 8192;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private WebPoller poller;
+    private Cluster   cluster;
+    private IoLoop[]  loops;
+    private int       next_loop = 0;
+
+    public NioServer(WebPoller poller, int numthreads) throws IOException {
+        this(poller, numthreads, null);
+    }
+
+    /*
+     * If cluster isn't null, clients of races owned by other nodes are
+     * proxied to them.
+     */
+    public NioServer(WebPoller poller, int numthreads, Cluster cluster)
+        throws IOException {
+        this.poller = poller;
+        this.cluster = cluster;
+        this.loops = new IoLoop[numthreads];
+        for (int i=0; i<numthreads; i++) {
+            loops[i] = new IoLoop(i);
+        }
+    }
+
+    /*
+     * Start the IoLoop threads, then spin accepting connections and
+     * handing them to the loops.  Never returns unless the server
+     * socket can't be opened.
+     */
+    public void run(int portnum) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(portnum));
+        for (int i=0; i<loops.length; i++) {
+            loops[i].start();
+        }
+
+        while (true) {
+            try {
+                logger.debug("waiting for a connection.");
+                SocketChannel ch = server.accept();
+                logger.debug("got a connection!");
+                ch.configureBlocking(false);
+                IoLoop loop = loops[next_loop];
+                next_loop = (next_loop + 1) % loops.length;
+                loop.register(new Connection(ch, loop));
+                logger.debug("number of live client sessions: " +
+                             ClientSession.numLive() + "; " +
+                             IoStats.summary());
+            } catch (IOException ioe) {
+                logger.error(ioe);
+            }
+        }
+    }
+
+    /*
+     * Whatever is attached to a SelectionKey: called on the IoLoop
+     * when the key's channel is ready, and to drop it after an error.
+     */
+    private interface Handler {
+        void ready(SelectionKey key);
+        void close();
+    }
+
+    /*
+     * An IoLoop is one of the I/O threads.  Other threads never touch
+     * its Selector directly; they hand it Runnables via execute(),
+     * which are run on the loop thread between selects.
+     */
+    private class IoLoop extends Thread implements Executor {
+        private Selector selector;
+        private ConcurrentLinkedQueue<Runnable> tasks;
+
+        IoLoop(int num) throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<Runnable>();
+            setName("NioLoop-" + num);
+        }
+
+        public void execute(Runnable r) {
+            tasks.add(r);
+            selector.wakeup();
+        }
+
+        void register(final Connection c) {
+            execute(new Runnable() {
+                public void run() {
+                    try {
+                        c.key = c.ch.register(selector,
+                                              SelectionKey.OP_READ, c);
+                    } catch (IOException ioe) {
+                        logger.debug("client connection dropped on register");
+                        c.close();
+                    }
+                }
+            });
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException ioe) {
+                    logger.error(ioe);
+                    continue;
+                }
+
+                Runnable r;
+                while ((r = tasks.poll()) != null) {
+                    r.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Handler h = (Handler) key.attachment();
+                    try {
+                        h.ready(key);
+                    } catch (RuntimeException re) {
+                        // don't let one bad connection kill the loop.
+                        logger.error("dropping client after error", re);
+                        h.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * A Connection is the NIO counterpart of a ClientHandler plus its
+     * ClientWriter.  Everything but add() runs on the owning IoLoop's
+     * thread.  add() can be called from any thread (typically some
+     * other rider's loop, via Race); it queues the message and asks
+     * the owning loop to flush.
+     */
+    private class Connection implements MessageSink, Handler {
+        SocketChannel ch;
+        SelectionKey  key = null;
+        private IoLoop        loop;
+        private ClientSession session;
+        private IdleTimer.Entry idle;
+        private boolean       joined = false;
+        private boolean       resolving = false;
+        private boolean       closing = false;
+        private ByteBuffer    readbuf = ByteBuffer.allocate(4096);
+        private byte[]        line = new byte[MAX_LINE];
+        private int           linelen = 0;
+        private boolean       saw_cr = false;
+        private ByteBuffer    writebuf = ByteBuffer.allocate(4096);
+        private boolean       write_pending = false;
+        private int           batch_messages = 0;
+        private int           batch_writes = 0;
+        private LatencyStats.Batch batch = new LatencyStats.Batch();
+        private long          received_nanos = 0;
+        private Mailbox       queue;
+        private volatile WireCodec codec = WireCodec.ASCII;
+        private AtomicBoolean write_scheduled = new AtomicBoolean(false);
+
+        private final Runnable flush = new Runnable() {
+            public void run() {
+                handleWrite();
+            }
+        };
+
+        Connection(SocketChannel ch, IoLoop loop) {
+            this.ch = ch;
+            this.loop = loop;
+            this.session = new ClientSession(poller, this);
+            ClientSession.opened();
+            this.queue = new Mailbox(QCAP);
+            this.idle = IdleTimer.watch(new IdleTimer.Watched() {
+                    public void stalled() {
+                        session.freeze();
+                    }
+
+                    public void dead() {
+                        loop.execute(new Runnable() {
+                                public void run() {
+                                    logger.info("nothing from client " + ch +
+                                                " for too long; closing it");
+                                    close();
+                                }
+                            });
+                    }
+                });
+        }
+
+        public boolean add(ProtocolHandler.ProtocolMessage m) {
+            boolean added = queue.offer(m);
+            scheduleWrite();
+            return added;
+        }
+
+        public void setCodec(WireCodec codec) {
+            this.codec = codec;
+        }
+
+        public Mailbox getMailbox() {
+            return queue;
+        }
+
+        public void ready(SelectionKey key) {
+            if (key.isValid() && key.isReadable())
+                handleRead();
+            if (key.isValid() && key.isWritable())
+                handleWrite();
+        }
+
+        // wake up the owning loop to flush, unless a flush is already
+        // pending.  the flag is cleared before draining, so anything
+        // added mid-drain schedules another flush.
+        private void scheduleWrite() {
+            if (write_scheduled.compareAndSet(false, true)) {
+                loop.execute(flush);
+            }
+        }
+
+        // pull in whatever bytes are available, and hand each
+        // complete line to handleLine().
+        void handleRead() {
+            int n;
+            try {
+                n = ch.read(readbuf);
+            } catch (IOException ioe) {
+                n = -1;
+            }
+            if (n < 0) {
+                logger.debug("client connection dropped...");
+                close();
+                return;
+            }
+
+            // every line in this read arrived now.
+            received_nanos = System.nanoTime();
+            processInput();
+        }
+
+        // frame and handle the bytes in readbuf.  like BufferedReader,
+        // a line ends at '\n', '\r' or "\r\n".  if a line starts a
+        // race lookup, stop there and leave the rest in readbuf until
+        // the lookup is done.
+        private void processInput() {
+            readbuf.flip();
+            while (readbuf.hasRemaining() && !closing && !resolving) {
+                byte b = readbuf.get();
+                if (saw_cr && (b == '\n')) {
+                    saw_cr = false;
+                    continue;
+                }
+                saw_cr = (b == '\r');
+                if ((b == '\n') || (b == '\r')) {
+                    String nextline = new String(line, 0, linelen, charset);
+                    linelen = 0;
+                    handleLine(nextline);
+                    continue;
+                }
+                if (linelen == line.length) {
+                    logger.warn("overlong line from client; dropping it");
+                    close();
+                    return;
+                }
+                line[linelen++] = b;
+            }
+            readbuf.compact();
+        }
+
+        private void handleLine(String nextline) {
+            if (idle != null)
+                idle.touch();
+            IoStats.received(nextline.length() + 1);
+            long start = System.nanoTime();
+            ProtocolHandler.ProtocolMessage pm =
+                ProtocolHandler.parseLine(nextline);
+            LatencyStats.server().record(LatencyStats.PARSE,
+                                         System.nanoTime() - start);
+            if (pm == null) {
+                logger.warn("bogus line from client: '" + nextline + "'");
+                session.finish();
+                closeAfterFlush();
+                return;
+            }
+
+            if (!joined && (cluster != null) &&
+                (pm instanceof ProtocolHandler.HelloMessage)) {
+                ProtocolHandler.HelloMessage hm =
+                    (ProtocolHandler.HelloMessage) pm;
+                if (!cluster.isLocal(hm.raceid)) {
+                    handOff(hm, cluster.ownerOf(hm.raceid));
+                    return;
+                }
+            }
+            if (!joined) {
+                // the race lookup may have to wait for the WebPoller.
+                // stop reading until it's done, and pick up where we
+                // left off on this loop's thread.
+                resolving = true;
+                if ((key != null) && key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                session.handleFirstMessageAsync(pm).whenComplete(
+                    new BiConsumer<Boolean,Throwable>() {
+                        public void accept(final Boolean ok, Throwable t) {
+                            final boolean joined_ok =
+                                (t == null) && ok.booleanValue();
+                            if (t != null)
+                                logger.error("race lookup failed", t);
+                            loop.execute(new Runnable() {
+                                    public void run() {
+                                        resolved(joined_ok);
+                                    }
+                                });
+                        }
+                    });
+                return;
+            }
+            if (session.handleMessage(pm, received_nanos)) {
+                session.finish();
+                closeAfterFlush();
+            }
+        }
+
+        // another node owns the client's race.  hand the channel, its
+        // key and anything read past the hello to a Relay; from here
+        // on this Connection is out of the picture.
+        private void handOff(ProtocolHandler.HelloMessage hm,
+                             Cluster.Node owner) {
+            closing = true;
+            if (idle != null)
+                idle.cancel();
+            byte[] rest = new byte[readbuf.remaining()];
+            readbuf.get(rest);
+            SelectionKey k = key;
+            key = null;
+            new Relay(loop, ch, k, hm, rest, saw_cr, owner).start();
+        }
+
+        // the race lookup started by the client's hello is done.
+        private void resolved(boolean ok) {
+            resolving = false;
+            if (closing || !ch.isOpen())
+                return;
+            if (!ok) {
+                closeAfterFlush();
+                return;
+            }
+            joined = true;
+            if ((key != null) && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+            processInput();
+        }
+
+        // write as much queued output as the socket will take.  if
+        // the socket fills up, wait for OP_WRITE to come back here.
+        void handleWrite() {
+            write_scheduled.set(false);
+            if ((key == null) || !key.isValid())
+                return;
+
+            try {
+                while (true) {
+                    if (!write_pending) {
+                        // render everything queued right now into the
+                        // buffer, so it goes out in as few writes as the
+                        // socket allows.
+                        ProtocolHandler.ProtocolMessage pm = queue.poll();
+                        if (pm == null)
+                            break;
+                        writebuf.clear();
+                        batch_messages = 0;
+                        batch_writes = 0;
+                        long now = System.nanoTime();
+                        while (pm != null) {
+                            batch.dequeued(pm, now);
+                            writebuf = codec.append(writebuf, pm);
+                            batch_messages += pm.numMessages();
+                            pm = queue.poll();
+                        }
+                        writebuf.flip();
+                        write_pending = true;
+                        batch.writing(System.nanoTime());
+                    }
+                    ch.write(writebuf);
+                    batch_writes++;
+                    if (writebuf.hasRemaining())
+                        break;
+                    write_pending = false;
+                    batch.written(System.nanoTime());
+                    IoStats.flushed(batch_messages, writebuf.limit(),
+                                    batch_writes);
+                }
+            } catch (IOException ioe) {
+                logger.debug("client connection dropped writing...");
+                close();
+                return;
+            }
+
+            if (write_pending) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing)
+                    close();
+            }
+        }
+
+        // stop reading, and close once the output queue has drained.
+        private void closeAfterFlush() {
+            closing = true;
+            if ((key != null) && key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            handleWrite();
+        }
+
+        public void close() {
+            closing = true;
+            if (idle != null)
+                idle.cancel();
+            session.finish();
+            if (ch.isOpen())
+                ClientSession.closed();
+            if (key != null)
+                key.cancel();
+            try {
+                ch.close();
+            } catch (IOException ioe) {
+            }
+            queue.clear();
+            batch.clear();
+        }
+    }
+
+    /*
+     * A Relay passes a client's bytes to and from the node that owns
+     * its race, for a client whose race lives elsewhere in the
+     * Cluster (see ClusterProxy for the thread-per-client version).
+     * Both channels are on the client's IoLoop: the upstream one is
+     * connected without blocking, the client's hello is replayed on
+     * it, and then each side's reads go into a buffer the other side
+     * writes out.  A side whose buffer is full stops reading until
+     * the other side has caught up, so a slow reader holds up its
+     * writer rather than filling memory.  When either side hangs up
+     * the Relay passes on what's buffered for the other, and closes
+     * both.
+     *
+     * If the owner can't be reached within CONNECT_TIMEOUT_MS, the
+     * client gets a hellofail, as if the race didn't exist.
+     */
+    private class Relay {
+        private IoLoop  loop;
+        private ProtocolHandler.HelloMessage hello;
+        private Cluster.Node owner;
+        private End     client;
+        private End     upstream;
+        private boolean connected = false;
+        private boolean closing = false;
+        private boolean closed = false;
+
+        /*
+         * One side of the Relay.  out holds the bytes read from the
+         * other side, waiting to be written to this one.
+         */
+        private class End implements Handler {
+            SocketChannel ch;
+            SelectionKey  key;
+            ByteBuffer    out;
+            End           peer;
+            boolean       eof = false;
+            boolean       skip_lf;  // drop a '\n' that ends the hello
+
+            End(SocketChannel ch, SelectionKey key, ByteBuffer out) {
+                this.ch = ch;
+                this.key = key;
+                this.out = out;
+            }
+
+            public void ready(SelectionKey k) {
+                if (k.isValid() && k.isConnectable())
+                    finishConnect();
+                if (k.isValid() && k.isReadable())
+                    read();
+                if (k.isValid() && k.isWritable())
+                    write();
+            }
+
+            public void close() {
+                Relay.this.close();
+            }
+
+            // read what this side has sent into the peer's buffer.
+            void read() {
+                int start = peer.out.position();
+                int n;
+                try {
+                    n = ch.read(peer.out);
+                } catch (IOException ioe) {
+                    n = -1;
+                }
+                if (n < 0) {
+                    eof = true;
+                    closing = true;
+                } else if (skip_lf && (n > 0)) {
+                    skip_lf = false;
+                    if (peer.out.get(start) == '\n') {
+                        int end = peer.out.position();
+                        for (int i=start+1; i<end; i++) {
+                            peer.out.put(i - 1, peer.out.get(i));
+                        }
+                        peer.out.position(end - 1);
+                    }
+                }
+                peer.write();
+                update();
+            }
+
+            // write out as much of this side's buffer as it will take.
+            void write() {
+                if ((key == null) || !connected)
+                    return;
+                if (out.position() > 0) {
+                    out.flip();
+                    try {
+                        ch.write(out);
+                        out.compact();
+                    } catch (IOException ioe) {
+                        out.clear();
+                        eof = true;
+                        closing = true;
+                    }
+                }
+                update();
+            }
+        }
+
+        Relay(IoLoop loop, SocketChannel client_ch, SelectionKey client_key,
+              ProtocolHandler.HelloMessage hello, byte[] rest,
+              boolean saw_cr, Cluster.Node owner) {
+            this.loop = loop;
+            this.hello = hello;
+            this.owner = owner;
+            byte[] h = hello.toString().getBytes(charset);
+            ByteBuffer to_owner =
+                ByteBuffer.allocate(Math.max(RELAY_BUF, h.length + rest.length));
+            to_owner.put(h);
+            int from = 0;
+            if (saw_cr && (rest.length > 0) && (rest[0] == '\n'))
+                from = 1;
+            to_owner.put(rest, from, rest.length - from);
+            client = new End(client_ch, client_key,
+                             ByteBuffer.allocate(RELAY_BUF));
+            client.skip_lf = saw_cr && (rest.length == 0);
+            upstream = new End(null, null, to_owner);
+            client.peer = upstream;
+            upstream.peer = client;
+        }
+
+        // start connecting to the owner.  on the IoLoop thread.
+        void start() {
+            if (client.key != null) {
+                client.key.attach(client);
+                client.key.interestOps(0);
+            }
+            try {
+                upstream.ch = SocketChannel.open();
+                upstream.ch.configureBlocking(false);
+                upstream.ch.setOption(StandardSocketOptions.TCP_NODELAY,
+                                      Boolean.TRUE);
+                upstream.key = upstream.ch.register(loop.selector, 0, upstream);
+                if (upstream.ch.connect(new InetSocketAddress(owner.getHost(),
+                                                              owner.getPort())))
+                    connected();
+                else
+                    upstream.key.interestOps(SelectionKey.OP_CONNECT);
+            } catch (IOException ioe) {
+                unreachable(ioe);
+                return;
+            }
+            CompletableFuture.delayedExecutor(CONNECT_TIMEOUT_MS,
+                                              TimeUnit.MILLISECONDS, loop)
+                .execute(new Runnable() {
+                    public void run() {
+                        if (!connected && !closed)
+                            unreachable(new IOException("connect timed out"));
+                    }
+                });
+        }
+
+        private void finishConnect() {
+            try {
+                if (!upstream.ch.finishConnect())
+                    return;
+            } catch (IOException ioe) {
+                unreachable(ioe);
+                return;
+            }
+            connected();
+        }
+
+        private void connected() {
+            connected = true;
+            logger.debug("proxying race " + hello.raceid + " to " + owner);
+            upstream.write();
+            client.write();
+        }
+
+        // tell the client the race doesn't exist, and hang up once
+        // that has gone out.
+        private void unreachable(IOException ioe) {
+            logger.warn("can't reach " + owner + ", the owner of race " +
+                        hello.raceid + ": " + ioe);
+            if (upstream.key != null)
+                upstream.key.cancel();
+            closeQuietly(upstream.ch);
+            upstream.ch = null;
+            upstream.key = null;
+            upstream.out.clear();
+            client.out.clear();
+            client.out.put(new ProtocolHandler.HelloFailMessage(
+                               GoldenServer.protoversion, "nosuchrace",
+                               hello.raceid).toString().getBytes(charset));
+            connected = true;       // as far as the client's side goes
+            closing = true;
+            client.write();
+        }
+
+        // set both sides' interest from the state of the buffers, and
+        // close up once a side has hung up and the other is drained.
+        private void update() {
+            if (closed)
+                return;
+            if (closing &&
+                ((client.out.position() == 0) || (client.key == null) ||
+                 client.eof) &&
+                ((upstream.out.position() == 0) || (upstream.key == null) ||
+                 upstream.eof)) {
+                close();
+                return;
+            }
+            interest(client);
+            interest(upstream);
+        }
+
+        private void interest(End e) {
+            if ((e.key == null) || !e.key.isValid())
+                return;
+            int ops = 0;
+            if (!connected) {
+                if (e == upstream)
+                    ops = SelectionKey.OP_CONNECT;
+            } else {
+                if (!closing && !e.eof && e.peer.out.hasRemaining())
+                    ops |= SelectionKey.OP_READ;
+                if (!e.eof && (e.out.position() > 0))
+                    ops |= SelectionKey.OP_WRITE;
+            }
+            e.key.interestOps(ops);
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            closing = true;
+            for (End e : new End[] { client, upstream }) {
+                if (e.key != null)
+                    e.key.cancel();
+                closeQuietly(e.ch);
+            }
+            ClientSession.closed();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        if (ch == null)
+            return;
+        try {
+            ch.close();
+        } catch (IOException ioe) {
+        }
+    }
+}
@@ -19,6 +19,10 @@
 package org.goldencheetah.goldenserver;
 
 import java.lang.*;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
 import java.util.regex.*;
 
 /*
@@ -31,7 +35,8 @@ import java.util.regex.*;
  * for squirting into a socket.
  *
  * See the main() method for test cases and examples for how
- * to use this.
+ * to use this, and for a differential test of parseLine() against
+ * the original regexp parser.
  */
 public class ProtocolHandler {
     /*
@@ -40,14 +45,52 @@ public class ProtocolHandler {
      */
     public static abstract class ProtocolMessage {
         public abstract String toString();
+
+        /*
+         * Write the message, exactly as toString() renders it, as
+         * US-ASCII bytes into buf.  Throws BufferOverflowException if
+         * it doesn't fit; see AsciiEncoder.append() for a growing
+         * buffer.  Subclasses override this to skip String.format.
+         */
+        public void writeTo(ByteBuffer buf) {
+            AsciiEncoder.putString(buf, toString());
+        }
+
+        /*
+         * Write the message in the binary codec's form (see
+         * BinaryCodec) into buf.  Throws BufferOverflowException if
+         * it doesn't fit.  Messages with no binary form of their own
+         * are sent as their ASCII line, wrapped in a LINE record.
+         */
+        public void writeBinary(ByteBuffer buf) {
+            BinaryCodec.putLine(buf, this);
+        }
+
+        // how many protocol messages this is; more than one for a
+        // Frame.
+        public int numMessages() {
+            return 1;
+        }
     }
 
     /*
      * Given a string, parses that string and returns an appropriate
      * ProtocolMessage subclass with the field values parsed out.
      * Returns "null" if the line could not be parsed correctly.
+     *
+     * The work is done by LineParser, a single-pass tokenizer that
+     * avoids the regexps; it accepts exactly what parseLineRegex() does.
      */
     public static ProtocolMessage parseLine(String line) {
+        return LineParser.parse(line);
+    }
+
+    /*
+     * The original, regexp-based parser: tries each message type's
+     * prefix in turn, and lets that subclass's constructor parse the
+     * line.  Kept as the reference that LineParser is checked against.
+     */
+    public static ProtocolMessage parseLineRegex(String line) {
         // sanity check argument
         if (line == null)
             return null;
@@ -70,6 +113,8 @@ public class ProtocolHandler {
                 return new TelemetryMessage(line);
             } else if (line.startsWith("standings ")) {
                 return new StandingsMessage(line);
+            } else if (line.startsWith("standingsdelta ")) {
+                return new StandingsDeltaMessage(line);
             } else if (line.startsWith("racer ")) {
                 return new RacerMessage(line);
             } else if (line.startsWith("raceconcluded ")) {
@@ -96,7 +141,7 @@ public class ProtocolHandler {
         // the regexp we use to parse out the message; precompile for speed.
         private static Pattern regexp =
             // e.g., hello 0.1 raceid='18d1a1bcd104ee116a772310bbc61211' ridername='Steve G' ftp='213' weight='75.8'
-            Pattern.compile("hello\\s+(\\d+\\.\\d+)\\s+raceid='([0-9a-fA-F]+)'\\s+ridername='([a-zA-Z0-9 ]+)'\\s+ftp='([0-9]+)'\\s+weight='([0-9.]+)'");
+            Pattern.compile("hello\\s+(\\d+\\.\\d+)\\s+raceid='([0-9a-fA-F]+)'\\s+ridername='([a-zA-Z0-9 ]+)'\\s+ftp='([0-9]+)'\\s+weight='([0-9.]+)'(?:\\s+updates='([a-z]+)')?(?:\\s+top='([0-9]+)')?(?:\\s+near='([0-9]+)')?");
 
         public HelloMessage(String line) throws java.text.ParseException {
             // parse the line here, using regexp
@@ -119,6 +164,15 @@ public class ProtocolHandler {
             } catch (NumberFormatException e) {
                 throw new java.text.ParseException("hello", 2);
             }
+            this.updates = matcher.group(6);
+            try {
+                if (matcher.group(7) != null)
+                    this.top = Integer.parseInt(matcher.group(7));
+                if (matcher.group(8) != null)
+                    this.near = Integer.parseInt(matcher.group(8));
+            } catch (NumberFormatException e) {
+                throw new java.text.ParseException("hello", 3);
+            }
         }
 
         public HelloMessage(String protoversion, String raceid, String ridername,
@@ -131,9 +185,61 @@ public class ProtocolHandler {
         }
 
         public String toString() {
-            return String.format("hello %s raceid='%s' ridername='%s' ftp='%d' weight='%.2f'\n",
+            String extra = "";
+            if (this.updates != null)
+                extra += String.format(" updates='%s'", this.updates);
+            if (this.top >= 0)
+                extra += String.format(" top='%d'", this.top);
+            if (this.near >= 0)
+                extra += String.format(" near='%d'", this.near);
+            return String.format("hello %s raceid='%s' ridername='%s' ftp='%d' weight='%.2f'%s\n",
                                  this.protoversion, this.raceid, this.ridername,
-                                 this.ftp_watts, this.weight_kg);
+                                 this.ftp_watts, this.weight_kg, extra);
+        }
+
+        private static final byte[] LIT0 =
+            AsciiEncoder.bytes("hello ");
+        private static final byte[] LIT1 =
+            AsciiEncoder.bytes(" raceid='");
+        private static final byte[] LIT2 =
+            AsciiEncoder.bytes("' ridername='");
+        private static final byte[] LIT3 =
+            AsciiEncoder.bytes("' ftp='");
+        private static final byte[] LIT4 =
+            AsciiEncoder.bytes("' weight='");
+        private static final byte[] LIT5 =
+            AsciiEncoder.bytes("'\n");
+        private static final byte[] LIT6 =
+            AsciiEncoder.bytes("' updates='");
+        private static final byte[] LIT7 =
+            AsciiEncoder.bytes("' top='");
+        private static final byte[] LIT8 =
+            AsciiEncoder.bytes("' near='");
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(LIT0);
+            AsciiEncoder.putString(buf, this.protoversion);
+            buf.put(LIT1);
+            AsciiEncoder.putString(buf, this.raceid);
+            buf.put(LIT2);
+            AsciiEncoder.putString(buf, this.ridername);
+            buf.put(LIT3);
+            AsciiEncoder.putInt(buf, this.ftp_watts);
+            buf.put(LIT4);
+            AsciiEncoder.putFixed2(buf, this.weight_kg);
+            if (this.updates != null) {
+                buf.put(LIT6);
+                AsciiEncoder.putString(buf, this.updates);
+            }
+            if (this.top >= 0) {
+                buf.put(LIT7);
+                AsciiEncoder.putInt(buf, this.top);
+            }
+            if (this.near >= 0) {
+                buf.put(LIT8);
+                AsciiEncoder.putInt(buf, this.near);
+            }
+            buf.put(LIT5);
         }
 
         // public fields from parsed message
@@ -142,6 +248,14 @@ public class ProtocolHandler {
         public String ridername;
         public int ftp_watts;
         public float weight_kg;
+        // optional: "delta" asks for standingsdelta updates between
+        // full standings.  null if the client didn't say.
+        public String updates = null;
+        // optional: ask for only the top riders and the near riders
+        // either side of this one in each standings.  -1 if the
+        // client didn't say.
+        public int top = -1;
+        public int near = -1;
     }
 
     /* 
@@ -178,6 +292,30 @@ public class ProtocolHandler {
                                  this.protoversion, this.errmessage, this.raceid);
         }
 
+        private static final byte[] LIT0 =
+            AsciiEncoder.bytes("hellofail ");
+        private static final byte[] LIT1 =
+            AsciiEncoder.bytes(" ");
+        private static final byte[] LIT2 =
+            AsciiEncoder.bytes(" raceid='");
+        private static final byte[] LIT3 =
+            AsciiEncoder.bytes("'\n");
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(LIT0);
+            AsciiEncoder.putString(buf, this.protoversion);
+            buf.put(LIT1);
+            AsciiEncoder.putString(buf, this.errmessage);
+            buf.put(LIT2);
+            AsciiEncoder.putString(buf, this.raceid);
+            buf.put(LIT3);
+        }
+
+        // the handshake replies are ASCII lines in every codec.
+        public void writeBinary(ByteBuffer buf) {
+            writeTo(buf);
+        }
+
         // public fields from parsed message
         public String protoversion;
         public String errmessage;
@@ -225,6 +363,34 @@ public class ProtocolHandler {
                                  this.protoversion, this.raceid, this.riderid, this.racedistance_km);
         }
 
+        private static final byte[] LIT0 =
+            AsciiEncoder.bytes("hellosucceed ");
+        private static final byte[] LIT1 =
+            AsciiEncoder.bytes(" raceid='");
+        private static final byte[] LIT2 =
+            AsciiEncoder.bytes("' riderid='");
+        private static final byte[] LIT3 =
+            AsciiEncoder.bytes("' racedistance='");
+        private static final byte[] LIT4 =
+            AsciiEncoder.bytes("'\n");
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(LIT0);
+            AsciiEncoder.putString(buf, this.protoversion);
+            buf.put(LIT1);
+            AsciiEncoder.putString(buf, this.raceid);
+            buf.put(LIT2);
+            AsciiEncoder.putString(buf, this.riderid);
+            buf.put(LIT3);
+            AsciiEncoder.putFixed2(buf, this.racedistance_km);
+            buf.put(LIT4);
+        }
+
+        // the handshake replies are ASCII lines in every codec.
+        public void writeBinary(ByteBuffer buf) {
+            writeTo(buf);
+        }
+
         // public fields from parsed message
         public String protoversion;
         public String raceid;
@@ -268,6 +434,26 @@ public class ProtocolHandler {
                                  this.raceid, this.numclients);
         }
 
+        private static final byte[] LIT0 =
+            AsciiEncoder.bytes("clientlist raceid='");
+        private static final byte[] LIT1 =
+            AsciiEncoder.bytes("' numclients='");
+        private static final byte[] LIT2 =
+            AsciiEncoder.bytes("'\n");
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(LIT0);
+            AsciiEncoder.putString(buf, this.raceid);
+            buf.put(LIT1);
+            AsciiEncoder.putInt(buf, this.numclients);
+            buf.put(LIT2);
+        }
+
+        public void writeBinary(ByteBuffer buf) {
+            buf.put(BinaryCodec.CLIENTLIST);
+            BinaryCodec.putU16(buf, this.numclients);
+        }
+
         // public fields from parsed message
         public String raceid;
         public int numclients;
@@ -317,11 +503,47 @@ public class ProtocolHandler {
                                  this.ridername, this.riderid, this.ftp_watts, this.weight_kg);
         }
 
+        private static final byte[] LIT0 =
+            AsciiEncoder.bytes("client ridername='");
+        private static final byte[] LIT1 =
+            AsciiEncoder.bytes("' riderid='");
+        private static final byte[] LIT2 =
+            AsciiEncoder.bytes("' ftp='");
+        private static final byte[] LIT3 =
+            AsciiEncoder.bytes("' weight='");
+        private static final byte[] LIT4 =
+            AsciiEncoder.bytes("'\n");
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(LIT0);
+            AsciiEncoder.putString(buf, this.ridername);
+            buf.put(LIT1);
+            AsciiEncoder.putString(buf, this.riderid);
+            buf.put(LIT2);
+            AsciiEncoder.putInt(buf, this.ftp_watts);
+            buf.put(LIT3);
+            AsciiEncoder.putFixed2(buf, this.weight_kg);
+            buf.put(LIT4);
+        }
+
+        public void writeBinary(ByteBuffer buf) {
+            buf.put(BinaryCodec.CLIENT);
+            BinaryCodec.putU16(buf, this.rider_index);
+            BinaryCodec.putRiderid(buf, this.riderid);
+            BinaryCodec.putU16(buf, this.ftp_watts);
+            BinaryCodec.putU16(buf, (int) Math.min(0xffff,
+                                   BinaryCodec.scaled(this.weight_kg, 100)));
+            BinaryCodec.putShortString(buf, this.ridername);
+        }
+
         // public fields from parsed message
         public String ridername;
         public String riderid;
         public int ftp_watts;
         public float weight_kg;
+        // the rider's index within its race, which the binary codec
+        // sends in place of riderid; not part of the ASCII line.
+        public int rider_index = 0;
     }
 
     /* 
@@ -388,6 +610,41 @@ public class ProtocolHandler {
                                  this.distance_km, this.heartrate_bpm, this.speed_kph);
         }
 
+        private static final byte[] LIT0 =
+            AsciiEncoder.bytes("telemetry raceid='");
+        private static final byte[] LIT1 =
+            AsciiEncoder.bytes("' riderid='");
+        private static final byte[] LIT2 =
+            AsciiEncoder.bytes("' power='");
+        private static final byte[] LIT3 =
+            AsciiEncoder.bytes("' cadence='");
+        private static final byte[] LIT4 =
+            AsciiEncoder.bytes("' distance='");
+        private static final byte[] LIT5 =
+            AsciiEncoder.bytes("' heartrate='");
+        private static final byte[] LIT6 =
+            AsciiEncoder.bytes("' speed='");
+        private static final byte[] LIT7 =
+            AsciiEncoder.bytes("'\n");
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(LIT0);
+            AsciiEncoder.putString(buf, this.raceid);
+            buf.put(LIT1);
+            AsciiEncoder.putString(buf, this.riderid);
+            buf.put(LIT2);
+            AsciiEncoder.putInt(buf, this.power_watts);
+            buf.put(LIT3);
+            AsciiEncoder.putInt(buf, this.cadence_rpm);
+            buf.put(LIT4);
+            AsciiEncoder.putFixed2(buf, this.distance_km);
+            buf.put(LIT5);
+            AsciiEncoder.putInt(buf, this.heartrate_bpm);
+            buf.put(LIT6);
+            AsciiEncoder.putFixed2(buf, this.speed_kph);
+            buf.put(LIT7);
+        }
+
         // public fields from parsed message
         public String raceid;
         public String riderid;
@@ -406,7 +663,7 @@ public class ProtocolHandler {
         // the regexp we use to parse out the message; precompile for speed.
         private static Pattern regexp =
             // e.g., standings raceid='18d1a1bcd104ee116a772310bbc61211' numclients='5'
-            Pattern.compile("standings\\s+raceid='([0-9a-fA-F]+)'\\s+numclients='([0-9]+)'");
+            Pattern.compile("standings\\s+raceid='([0-9a-fA-F]+)'\\s+numclients='([0-9]+)'(?:\\s+total='([0-9]+)')?");
 
         public StandingsMessage(String line) throws java.text.ParseException {
             // parse the line here, using regexp
@@ -422,6 +679,12 @@ public class ProtocolHandler {
             } catch (NumberFormatException e) {
                 throw new java.text.ParseException("standings", 2);
             }
+            try {
+                if (matcher.group(3) != null)
+                    this.total = Integer.parseInt(matcher.group(3));
+            } catch (NumberFormatException e) {
+                throw new java.text.ParseException("standings", 3);
+            }
         }
 
         public StandingsMessage(String raceid, int numclients) {
@@ -430,13 +693,131 @@ public class ProtocolHandler {
         }
 
         public String toString() {
+            if (this.total >= 0)
+                return String.format("standings raceid='%s' numclients='%d' total='%d'\n",
+                                     this.raceid, this.numclients, this.total);
             return String.format("standings raceid='%s' numclients='%d'\n",
                                  this.raceid, this.numclients);
         }
 
+        private static final byte[] LIT0 =
+            AsciiEncoder.bytes("standings raceid='");
+        private static final byte[] LIT1 =
+            AsciiEncoder.bytes("' numclients='");
+        private static final byte[] LIT2 =
+            AsciiEncoder.bytes("'\n");
+        private static final byte[] LIT3 =
+            AsciiEncoder.bytes("' total='");
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(LIT0);
+            AsciiEncoder.putString(buf, this.raceid);
+            buf.put(LIT1);
+            AsciiEncoder.putInt(buf, this.numclients);
+            if (this.total >= 0) {
+                buf.put(LIT3);
+                AsciiEncoder.putInt(buf, this.total);
+            }
+            buf.put(LIT2);
+        }
+
+        public void writeBinary(ByteBuffer buf) {
+            if (this.total >= 0) {
+                buf.put(BinaryCodec.STANDINGSWINDOW);
+                BinaryCodec.putU16(buf, this.numclients);
+                BinaryCodec.putU16(buf, this.total);
+                return;
+            }
+            buf.put(BinaryCodec.STANDINGS);
+            BinaryCodec.putU16(buf, this.numclients);
+        }
+
+        // public fields from parsed message
+        public String raceid;
+        public int numclients;
+        // optional: when the standings are a window on a bigger race
+        // (see HelloMessage.top), how many riders are in the whole
+        // race; numclients is then how many are in the window.  -1
+        // if the standings are the whole race.
+        public int total = -1;
+    }
+
+    /*
+     * A StandingsDelta is sent by the server, in place of a Standings,
+     * to clients that asked for delta updates in their hello.  It is
+     * followed by racer messages for only the numchanged riders whose
+     * figures have moved since they were last sent; numclients is the
+     * size of the whole race, as in a Standings.
+     */
+    public static class StandingsDeltaMessage extends ProtocolMessage {
+        // the regexp we use to parse out the message; precompile for speed.
+        private static Pattern regexp =
+            // e.g., standingsdelta raceid='18d1a1bcd104ee116a772310bbc61211' numclients='5' numchanged='2'
+            Pattern.compile("standingsdelta\\s+raceid='([0-9a-fA-F]+)'\\s+numclients='([0-9]+)'\\s+numchanged='([0-9]+)'");
+
+        public StandingsDeltaMessage(String line)
+            throws java.text.ParseException {
+            // parse the line here, using regexp
+            Matcher matcher = regexp.matcher(line);
+            boolean matchfound = matcher.find();
+
+            if (!matchfound) {
+                throw new java.text.ParseException("standingsdelta", 0);
+            }
+            this.raceid = matcher.group(1).toLowerCase();
+            try {
+                this.numclients = Integer.parseInt(matcher.group(2));
+            } catch (NumberFormatException e) {
+                throw new java.text.ParseException("standingsdelta", 2);
+            }
+            try {
+                this.numchanged = Integer.parseInt(matcher.group(3));
+            } catch (NumberFormatException e) {
+                throw new java.text.ParseException("standingsdelta", 3);
+            }
+        }
+
+        public StandingsDeltaMessage(String raceid, int numclients,
+                                     int numchanged) {
+            this.raceid = raceid.toLowerCase();
+            this.numclients = numclients;
+            this.numchanged = numchanged;
+        }
+
+        public String toString() {
+            return String.format("standingsdelta raceid='%s' numclients='%d' numchanged='%d'\n",
+                                 this.raceid, this.numclients, this.numchanged);
+        }
+
+        private static final byte[] LIT0 =
+            AsciiEncoder.bytes("standingsdelta raceid='");
+        private static final byte[] LIT1 =
+            AsciiEncoder.bytes("' numclients='");
+        private static final byte[] LIT2 =
+            AsciiEncoder.bytes("' numchanged='");
+        private static final byte[] LIT3 =
+            AsciiEncoder.bytes("'\n");
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(LIT0);
+            AsciiEncoder.putString(buf, this.raceid);
+            buf.put(LIT1);
+            AsciiEncoder.putInt(buf, this.numclients);
+            buf.put(LIT2);
+            AsciiEncoder.putInt(buf, this.numchanged);
+            buf.put(LIT3);
+        }
+
+        public void writeBinary(ByteBuffer buf) {
+            buf.put(BinaryCodec.STANDINGSDELTA);
+            BinaryCodec.putU16(buf, this.numclients);
+            BinaryCodec.putU16(buf, this.numchanged);
+        }
+
         // public fields from parsed message
         public String raceid;
         public int numclients;
+        public int numchanged;
     }
 
     /* 
@@ -509,6 +890,53 @@ public class ProtocolHandler {
                                  this.place);
         }
 
+        private static final byte[] LIT0 =
+            AsciiEncoder.bytes("racer riderid='");
+        private static final byte[] LIT1 =
+            AsciiEncoder.bytes("' power='");
+        private static final byte[] LIT2 =
+            AsciiEncoder.bytes("' cadence='");
+        private static final byte[] LIT3 =
+            AsciiEncoder.bytes("' distance='");
+        private static final byte[] LIT4 =
+            AsciiEncoder.bytes("' heartrate='");
+        private static final byte[] LIT5 =
+            AsciiEncoder.bytes("' speed='");
+        private static final byte[] LIT6 =
+            AsciiEncoder.bytes("' place='");
+        private static final byte[] LIT7 =
+            AsciiEncoder.bytes("'\n");
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(LIT0);
+            AsciiEncoder.putString(buf, this.riderid);
+            buf.put(LIT1);
+            AsciiEncoder.putInt(buf, this.power_watts);
+            buf.put(LIT2);
+            AsciiEncoder.putInt(buf, this.cadence_rpm);
+            buf.put(LIT3);
+            AsciiEncoder.putFixed2(buf, this.distance_km);
+            buf.put(LIT4);
+            AsciiEncoder.putInt(buf, this.heartrate_bpm);
+            buf.put(LIT5);
+            AsciiEncoder.putFixed2(buf, this.speed_kph);
+            buf.put(LIT6);
+            AsciiEncoder.putInt(buf, this.place);
+            buf.put(LIT7);
+        }
+
+        public void writeBinary(ByteBuffer buf) {
+            buf.put(BinaryCodec.RACER);
+            BinaryCodec.putU16(buf, this.rider_index);
+            BinaryCodec.putU16(buf, this.power_watts);
+            BinaryCodec.putU8(buf, this.cadence_rpm);
+            BinaryCodec.putU8(buf, this.heartrate_bpm);
+            BinaryCodec.putU32(buf, BinaryCodec.scaled(this.distance_km, 1000));
+            BinaryCodec.putU16(buf, (int) Math.min(0xffff,
+                                   BinaryCodec.scaled(this.speed_kph, 100)));
+            BinaryCodec.putU16(buf, this.place);
+        }
+
         // public fields from parsed message
         public String riderid;
         public int power_watts;
@@ -517,6 +945,9 @@ public class ProtocolHandler {
         public int heartrate_bpm;
         public float speed_kph;
         public int place;
+        // the rider's index within its race, which the binary codec
+        // sends in place of riderid; not part of the ASCII line.
+        public int rider_index = 0;
     }
 
     /* 
@@ -555,6 +986,26 @@ public class ProtocolHandler {
                                  this.raceid, this.numclients);
         }
 
+        private static final byte[] LIT0 =
+            AsciiEncoder.bytes("raceconcluded raceid='");
+        private static final byte[] LIT1 =
+            AsciiEncoder.bytes("' numclients='");
+        private static final byte[] LIT2 =
+            AsciiEncoder.bytes("'\n");
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(LIT0);
+            AsciiEncoder.putString(buf, this.raceid);
+            buf.put(LIT1);
+            AsciiEncoder.putInt(buf, this.numclients);
+            buf.put(LIT2);
+        }
+
+        public void writeBinary(ByteBuffer buf) {
+            buf.put(BinaryCodec.RACECONCLUDED);
+            BinaryCodec.putU16(buf, this.numclients);
+        }
+
         // public fields from parsed message
         public String raceid;
         public int numclients;
@@ -602,10 +1053,39 @@ public class ProtocolHandler {
                                  this.riderid, this.distance_km, this.place);
         }
 
+        private static final byte[] LIT0 =
+            AsciiEncoder.bytes("result riderid='");
+        private static final byte[] LIT1 =
+            AsciiEncoder.bytes("' distance='");
+        private static final byte[] LIT2 =
+            AsciiEncoder.bytes("' place='");
+        private static final byte[] LIT3 =
+            AsciiEncoder.bytes("'\n");
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(LIT0);
+            AsciiEncoder.putString(buf, this.riderid);
+            buf.put(LIT1);
+            AsciiEncoder.putFixed2(buf, this.distance_km);
+            buf.put(LIT2);
+            AsciiEncoder.putInt(buf, this.place);
+            buf.put(LIT3);
+        }
+
+        public void writeBinary(ByteBuffer buf) {
+            buf.put(BinaryCodec.RESULT);
+            BinaryCodec.putU16(buf, this.rider_index);
+            BinaryCodec.putU32(buf, BinaryCodec.scaled(this.distance_km, 1000));
+            BinaryCodec.putU16(buf, this.place);
+        }
+
         // public fields from parsed message
         public String riderid;
         public float distance_km;
         public int place;
+        // the rider's index within its race, which the binary codec
+        // sends in place of riderid; not part of the ASCII line.
+        public int rider_index = 0;
     }
 
     /* 
@@ -639,11 +1119,153 @@ public class ProtocolHandler {
                                  this.raceid, this.riderid);
         }
 
+        private static final byte[] LIT0 =
+            AsciiEncoder.bytes("goodbye raceid='");
+        private static final byte[] LIT1 =
+            AsciiEncoder.bytes("' riderid='");
+        private static final byte[] LIT2 =
+            AsciiEncoder.bytes("'\n");
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(LIT0);
+            AsciiEncoder.putString(buf, this.raceid);
+            buf.put(LIT1);
+            AsciiEncoder.putString(buf, this.riderid);
+            buf.put(LIT2);
+        }
+
         // public fields from parsed message
         public String raceid;
         public String riderid;
     }
 
+    /*
+     * A Frame is a run of messages that has already been rendered to
+     * bytes, e.g., a standings header followed by one racer line per
+     * rider.  Race builds one Frame per broadcast and hands the same
+     * Frame to every rider's MessageSink, so the messages are formatted
+     * once per broadcast rather than once per recipient.  Frames are
+     * immutable and safe to share between writer threads.
+     *
+     * The ASCII rendering is done up front, since most clients use
+     * it.  The binary rendering is done by the first writer that needs
+     * it and cached for the rest; two writers racing to do it just
+     * both do it, and either result is the same.
+     *
+     * A Frame also carries what the writers need for LatencyStats:
+     * the race's stats, when the frame was created, and (for
+     * standings) when the oldest telemetry it reflects arrived.
+     */
+    public static class Frame extends ProtocolMessage {
+        // what a frame carries.  a STANDINGS frame is a complete
+        // snapshot that a newer one can replace (see Mailbox).  a
+        // DELTA frame only holds what changed since the last one, so
+        // it can't be dropped or replaced; instead the mailbox sends
+        // its keyframe, the STANDINGS frame of the same tick.  the
+        // others must all be delivered.
+        public static final int STANDINGS  = 0;
+        public static final int MEMBERSHIP = 1;
+        public static final int CONCLUDED  = 2;
+        public static final int DELTA      = 3;
+
+        private final int               kind;
+        private final Frame             keyframe;
+        private final ProtocolMessage[] msgs;
+        private final byte[]            bytes;
+        private volatile byte[]         binary = null;
+        private final LatencyStats      stats;
+        private final long              source_nanos;
+        private final long              created_nanos;
+
+        public Frame(int kind, ProtocolMessage[] msgs) {
+            this(kind, msgs, LatencyStats.server(), 0);
+        }
+
+        /*
+         * source_nanos is the System.nanoTime() at which the oldest
+         * telemetry reflected in this frame arrived, or 0 if there is
+         * none.
+         */
+        public Frame(int kind, ProtocolMessage[] msgs,
+                     LatencyStats stats, long source_nanos) {
+            this(kind, msgs, stats, source_nanos, null);
+        }
+
+        /*
+         * A DELTA frame, which is sent as keyframe instead if it can't
+         * be sent as itself.
+         */
+        public Frame(ProtocolMessage[] msgs, Frame keyframe) {
+            this(DELTA, msgs, keyframe.stats, keyframe.source_nanos,
+                 keyframe);
+        }
+
+        private Frame(int kind, ProtocolMessage[] msgs, LatencyStats stats,
+                      long source_nanos, Frame keyframe) {
+            this.kind = kind;
+            this.keyframe = keyframe;
+            this.msgs = msgs;
+            ByteBuffer buf = ByteBuffer.allocate(128 * msgs.length);
+            for (int i=0; i<msgs.length; i++) {
+                buf = AsciiEncoder.append(buf, msgs[i]);
+            }
+            this.bytes = Arrays.copyOf(buf.array(), buf.position());
+            this.stats = stats;
+            this.source_nanos = source_nanos;
+            this.created_nanos = System.nanoTime();
+        }
+
+        public int getKind() {
+            return kind;
+        }
+
+        // for a DELTA frame, the full standings of the same tick.
+        public Frame getKeyframe() {
+            return keyframe;
+        }
+
+        public LatencyStats getStats() {
+            return stats;
+        }
+
+        public long getSourceNanos() {
+            return source_nanos;
+        }
+
+        public long getCreatedNanos() {
+            return created_nanos;
+        }
+
+        public int length() {
+            return bytes.length;
+        }
+
+        public int numMessages() {
+            return msgs.length;
+        }
+
+        public String toString() {
+            return new String(bytes, Charset.forName("US-ASCII"));
+        }
+
+        public void writeTo(ByteBuffer buf) {
+            buf.put(bytes);
+        }
+
+        public void writeBinary(ByteBuffer buf) {
+            byte[] b = binary;
+            if (b == null) {
+                ByteBuffer bb = ByteBuffer.allocate(16 * msgs.length + 16);
+                for (int i=0; i<msgs.length; i++) {
+                    bb = BinaryCodec.append(bb, msgs[i]);
+                }
+                b = Arrays.copyOf(bb.array(), bb.position());
+                binary = b;
+            }
+            buf.put(b);
+        }
+    }
+
     /*
      * Contains unit test code and example usage code for protocol
      * message parsing.
@@ -733,6 +1355,46 @@ public class ProtocolHandler {
         os = sm.toString();
         System.out.print(os);
 
+        // test StandingsDeltaMessage
+        pm = ProtocolHandler.parseLine(
+           "standingsdelta raceid='18d1a1bcd104ee116a772310bbc61211' numclients='5' numchanged='2'\n"
+                                       );
+        if ((pm == null) || !(pm instanceof ProtocolHandler.StandingsDeltaMessage)) {
+            System.out.println("Parsing of standingsdelta failed!?!\n");
+            System.exit(0);
+        }
+        ProtocolHandler.StandingsDeltaMessage sdm = (ProtocolHandler.StandingsDeltaMessage) pm;
+        os = sdm.toString();
+        System.out.print(os);
+
+        // test HelloMessage asking for delta updates and a window
+        pm = ProtocolHandler.parseLine(
+          "hello 0.1 raceid='18d1a1bcd104ee116a772310bbc61211' ridername='Steve G' ftp='213' weight='74.8' updates='delta' top='10' near='5'\n"
+                                       );
+        if ((pm == null) || !(pm instanceof ProtocolHandler.HelloMessage) ||
+            !"delta".equals(((ProtocolHandler.HelloMessage) pm).updates) ||
+            (((ProtocolHandler.HelloMessage) pm).top != 10) ||
+            (((ProtocolHandler.HelloMessage) pm).near != 5)) {
+            System.out.println("Parsing of hello with updates failed!?!\n");
+            System.exit(0);
+        }
+        ProtocolHandler.HelloMessage hdm = (ProtocolHandler.HelloMessage) pm;
+        os = hdm.toString();
+        System.out.print(os);
+
+        // test windowed StandingsMessage
+        pm = ProtocolHandler.parseLine(
+           "standings raceid='18d1a1bcd104ee116a772310bbc61211' numclients='5' total='500'\n"
+                                       );
+        if ((pm == null) || !(pm instanceof ProtocolHandler.StandingsMessage) ||
+            (((ProtocolHandler.StandingsMessage) pm).total != 500)) {
+            System.out.println("Parsing of windowed standings failed!?!\n");
+            System.exit(0);
+        }
+        ProtocolHandler.StandingsMessage swm = (ProtocolHandler.StandingsMessage) pm;
+        os = swm.toString();
+        System.out.print(os);
+
         // test RacerMessage
         pm = ProtocolHandler.parseLine(
            "racer riderid='123212321232123a' power='250' cadence='85' distance='5.41' heartrate='155' speed='31.5' place='1'\n"
@@ -780,5 +1442,337 @@ public class ProtocolHandler {
         ProtocolHandler.GoodbyeMessage gbm = (ProtocolHandler.GoodbyeMessage) pm;
         os = gbm.toString();
         System.out.print(os);
+
+        // differential test of parseLine() against parseLineRegex()
+        int mismatches = differentialTest();
+        if (mismatches != 0) {
+            System.out.println("parseLine and parseLineRegex disagree on " +
+                               mismatches + " lines!?!\n");
+            System.exit(1);
+        }
+
+        // check that writeTo() produces exactly the bytes of toString()
+        ProtocolMessage[] msgs = { hm, hfm, hsm, clm, cm, tm, sm, sdm, hdm,
+                                   swm, rm, rcm, resm, gbm };
+        mismatches = serializationTest(msgs);
+        if (mismatches != 0) {
+            System.out.println("writeTo and toString disagree on " +
+                               mismatches + " messages!?!\n");
+            System.exit(1);
+        }
+
+        // check the binary codec round-trips, and what it saves
+        mismatches = binaryTest(hsm, 1000);
+        if (mismatches != 0) {
+            System.out.println("binary codec mangled " + mismatches +
+                               " messages!?!\n");
+            System.exit(1);
+        }
+    }
+
+    /*
+     * Encode a membership frame and a standings frame for a race of
+     * nriders riders in both codecs, check that the binary ones read
+     * back as what went in (to the precision the binary form keeps),
+     * and report the sizes and encode times of each.  Returns the
+     * number of messages that didn't read back right.
+     */
+    private static int binaryTest(HelloSucceedMessage hsm, int nriders) {
+        Random rand = new Random(7);
+        String raceid = "18d1a1bcd104ee116a772310bbc61211";
+        ProtocolMessage[] members = new ProtocolMessage[nriders + 1];
+        ProtocolMessage[] standings = new ProtocolMessage[nriders + 1];
+        members[0] = new ClientListMessage(raceid, nriders);
+        standings[0] = new StandingsMessage(raceid, nriders);
+        for (int i=1; i<=nriders; i++) {
+            String riderid = Long.toHexString(rand.nextLong());
+            ClientMessage cm = new ClientMessage("Rider " + i, riderid,
+                                                 150 + rand.nextInt(250),
+                                                 50 + rand.nextInt(5000) / 100.0f);
+            cm.rider_index = i - 1;
+            members[i] = cm;
+            RacerMessage rm = new RacerMessage(riderid, rand.nextInt(1500),
+                                               rand.nextInt(130),
+                                               rand.nextInt(18000000) / 100000.0f,
+                                               rand.nextInt(200),
+                                               rand.nextInt(6000) / 100.0f, i);
+            rm.rider_index = i - 1;
+            standings[i] = rm;
+        }
+
+        int mismatches = 0;
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        buf = BinaryCodec.append(buf, hsm);
+        if (!new String(buf.array(), 0, buf.position(),
+                        Charset.forName("US-ASCII")).equals(hsm.toString())) {
+            System.out.println("hellosucceed isn't an ASCII line in binary");
+            mismatches++;
+        }
+
+        Frame mf = new Frame(Frame.MEMBERSHIP, members);
+        Frame sf = new Frame(Frame.STANDINGS, standings);
+        ByteBuffer bin = ByteBuffer.allocate(16);
+        bin = BinaryCodec.append(bin, mf);
+        int mf_binary = bin.position();
+        bin = BinaryCodec.append(bin, sf);
+        int sf_binary = bin.position() - mf_binary;
+        StandingsDeltaMessage sdm = new StandingsDeltaMessage(raceid, nriders,
+                                                              nriders / 10);
+        bin = BinaryCodec.append(bin, sdm);
+        StandingsMessage swm = new StandingsMessage(raceid, 15);
+        swm.total = nriders;
+        bin = BinaryCodec.append(bin, swm);
+        java.io.DataInputStream in = new java.io.DataInputStream(
+            new java.io.ByteArrayInputStream(bin.array(), 0, bin.position()));
+        try {
+            for (int f=0; f<2; f++) {
+                ProtocolMessage[] sent = (f == 0) ? members : standings;
+                for (int i=0; i<sent.length; i++) {
+                    ProtocolMessage got = BinaryCodec.read(in, raceid);
+                    if (!sameBinary(sent[i], got)) {
+                        mismatches++;
+                        if (mismatches <= 10)
+                            System.out.print("binary mismatch: " + sent[i] +
+                                             "              vs: " + got);
+                    }
+                }
+            }
+            if (!sameBinary(sdm, BinaryCodec.read(in, raceid))) {
+                System.out.println("binary mismatch on " + sdm);
+                mismatches++;
+            }
+            if (!sameBinary(swm, BinaryCodec.read(in, raceid))) {
+                System.out.println("binary mismatch on " + swm);
+                mismatches++;
+            }
+            if (in.available() != 0) {
+                System.out.println("binary stream has " + in.available() +
+                                   " bytes left over");
+                mismatches++;
+            }
+        } catch (java.io.IOException ioe) {
+            System.out.println("binary stream ended early: " + ioe);
+            mismatches++;
+        }
+
+        // encode cost: render the standings afresh in each codec, as
+        // a new broadcast would.
+        int rounds = 300;
+        long[] took = new long[2];
+        for (int pass=0; pass<2; pass++) {          // the first warms up
+            for (int c=0; c<2; c++) {
+                long start = System.nanoTime();
+                for (int r=0; r<rounds; r++) {
+                    ByteBuffer b = ByteBuffer.allocate(128 * standings.length);
+                    for (int i=0; i<standings.length; i++) {
+                        b = (c == 0) ? AsciiEncoder.append(b, standings[i]) :
+                            BinaryCodec.append(b, standings[i]);
+                    }
+                }
+                took[c] = System.nanoTime() - start;
+            }
+        }
+        System.out.println("binary test: " + nriders + " riders; standings " +
+                           sf.length() + " bytes as ASCII, " + sf_binary +
+                           " as binary (" +
+                           String.format("%.1f", sf.length() / (double) sf_binary) +
+                           "x); membership " + mf.length() + " vs " + mf_binary +
+                           "; encode " +
+                           String.format("%.1f", took[0] / (double) took[1]) +
+                           "x faster; " + mismatches + " mismatches");
+        return mismatches;
+    }
+
+    // did a message survive the binary codec?  riderids and raceids
+    // of racer and result records come back by index instead, and
+    // numbers to the precision the binary fields keep.
+    private static boolean sameBinary(ProtocolMessage sent, ProtocolMessage got) {
+        if ((got == null) || (got.getClass() != sent.getClass()))
+            return false;
+        if (sent instanceof RacerMessage) {
+            RacerMessage a = (RacerMessage) sent;
+            RacerMessage b = (RacerMessage) got;
+            return (a.rider_index == b.rider_index) &&
+                (a.power_watts == b.power_watts) &&
+                (a.cadence_rpm == b.cadence_rpm) &&
+                (Math.abs(a.distance_km - b.distance_km) <= 0.0005f) &&
+                (a.heartrate_bpm == b.heartrate_bpm) &&
+                (Math.abs(a.speed_kph - b.speed_kph) <= 0.005f) &&
+                (a.place == b.place);
+        }
+        if (sent instanceof ClientMessage) {
+            ClientMessage a = (ClientMessage) sent;
+            ClientMessage b = (ClientMessage) got;
+            return (a.rider_index == b.rider_index) &&
+                a.riderid.equals(b.riderid) &&
+                a.ridername.equals(b.ridername) &&
+                (a.ftp_watts == b.ftp_watts) &&
+                (Math.abs(a.weight_kg - b.weight_kg) <= 0.005f);
+        }
+        return sent.toString().equals(got.toString());
+    }
+
+    /*
+     * Compare writeTo() against toString() for the given messages, and
+     * for racer messages carrying a wide range of ints and floats.
+     * Returns the number of messages on which they disagree.
+     */
+    private static int serializationTest(ProtocolMessage[] msgs) {
+        Charset charset = Charset.forName("US-ASCII");
+        List<ProtocolMessage> all =
+            new ArrayList<ProtocolMessage>(Arrays.asList(msgs));
+        Random rand = new Random(42);
+        float[] edges = { 0.0f, -0.0f, 0.005f, 0.015f, 0.125f, 0.375f,
+                          1.005f, 2.675f, 9.995f, 99.999f, 31.5f, 1e7f,
+                          -3.14159f, Float.NaN, Float.POSITIVE_INFINITY,
+                          Float.MAX_VALUE, Float.MIN_VALUE };
+        int[] ints = { 0, 1, -1, 9, 10, 99, 100, Integer.MAX_VALUE,
+                       Integer.MIN_VALUE };
+        for (float f : edges)
+            all.add(new RacerMessage("ab", 1, 2, f, 3, f, 4));
+        for (int i : ints)
+            all.add(new RacerMessage("ab", i, i, 1.0f, i, 1.0f, i));
+        all.add(new ClientMessage("Ren\u00e9e \ud83d\udeb2", "ab", 1, 1.0f));
+        for (int n=0; n<200000; n++) {
+            float f;
+            switch (n % 4) {
+            case 0:  f = rand.nextFloat() * 100.0f; break;
+            case 1:  f = rand.nextInt(1000000) / 1000.0f; break;
+            case 2:  f = rand.nextInt(100000) / 8.0f; break;
+            default: f = Float.intBitsToFloat(rand.nextInt()); break;
+            }
+            all.add(new RacerMessage("ab", rand.nextInt(), 2, f, 3,
+                                     (float) (n % 1000) / 200.0f, 4));
+        }
+
+        int mismatches = 0;
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        for (ProtocolMessage pm : all) {
+            buf.clear();
+            buf = AsciiEncoder.append(buf, pm);
+            String expected = pm.toString();
+            String actual = new String(buf.array(), 0, buf.position(), charset);
+            if (!actual.equals(new String(expected.getBytes(charset),
+                                          charset))) {
+                mismatches++;
+                if (mismatches <= 10)
+                    System.out.print("mismatch: " + expected + "      vs: " +
+                                     actual);
+            }
+        }
+        System.out.println("serialization test: " + all.size() +
+                           " messages, " + mismatches + " mismatches");
+        return mismatches;
+    }
+
+    /*
+     * Feed parseLine() and parseLineRegex() a pile of lines -- the
+     * examples above, and mutations of them -- and count the lines on
+     * which the two parsers disagree.
+     */
+    private static int differentialTest() {
+        String[] samples = {
+            "hello 0.1 raceid='18d1a1bcd104ee116a772310bbc61211' ridername='Steve G' ftp='213' weight='74.8'",
+            "hellofail 0.1 nosuchrace raceid='18d1a1bcd104ee116a772310bbc61211'",
+            "hellosucceed 0.1 raceid='18d1a1bcd104ee116a772310bbc61211' riderid='123212321232123a' racedistance='180.0'",
+            "clientlist raceid='18d1a1bcd104ee116a772310bbc61211' numclients='5'",
+            "client ridername='Steve G' riderid='123212321232123a' ftp='213' weight='75.8'",
+            "telemetry raceid='18D1A1BCD104EE116A772310BBC61211' riderid='123212321232123A' power='250' cadence='85' distance='5.41' heartrate='155' speed='31.5'",
+            "standings raceid='18d1a1bcd104ee116a772310bbc61211' numclients='5'",
+            "standingsdelta raceid='18d1a1bcd104ee116a772310bbc61211' numclients='5' numchanged='2'",
+            "hello 0.1 raceid='18d1a1bcd104ee116a772310bbc61211' ridername='Steve G' ftp='213' weight='74.8' updates='delta'",
+            "hello 0.1 raceid='ab' ridername='x' ftp='1' weight='1' updates='Delta' updates='delta'",
+            "hello 0.1 raceid='ab' ridername='x' ftp='1' weight='1' updates='delta' top='10' near='5'",
+            "hello 0.1 raceid='ab' ridername='x' ftp='1' weight='1' near='5' top='10'",
+            "hello 0.1 raceid='ab' ridername='x' ftp='1' weight='1' top='99999999999' near='5'",
+            "standings raceid='18d1a1bcd104ee116a772310bbc61211' numclients='5' total='500'",
+            "racer riderid='123212321232123a' power='250' cadence='85' distance='5.41' heartrate='155' speed='31.5' place='1'",
+            "raceconcluded raceid='18d1a1bcd104ee116a772310bbc61211' numclients='5'",
+            "result riderid='123212321232123a' distance='5.41' place='1'",
+            "goodbye raceid='18d1a1bcd104ee116a772310bbc61211' riderid='123212321232123a'",
+            "telemetry raceid='ab' riderid='cd' power='2147483647' cadence='2147483648' distance='.5' heartrate='0' speed='5.'",
+            "racer riderid='AB' power='00000000000000000001' cadence='1' distance='1.2.3' heartrate='1' speed='1' place='1'",
+            "result riderid='ab' distance='123456789.123456789' place='1'",
+            "result riderid='ab' distance='0.000000000001' place='1'",
+            "result riderid='ab' distance='16777217' place='1'",
+            "hello junk hello 0.1 raceid='ab' ridername='x' ftp='1' weight='1'",
+            "goodbye raceid='ab'\triderid='cd' trailing junk",
+        };
+        char[] alphabet = { ' ', '\t', '\n', '\'', '.', '0', '1', '9', 'a',
+                            'A', 'f', 'F', 'g', 'G', '=', 'x', '\u00e9' };
+        Random rand = new Random(42);
+        List<String> lines = new ArrayList<String>();
+
+        for (String sample : samples) {
+            lines.add(sample);
+            lines.add(sample + "\n");
+            lines.add(" " + sample);
+            // every truncation
+            for (int i=0; i<sample.length(); i++)
+                lines.add(sample.substring(0, i));
+            // every single-character substitution and insertion
+            for (int i=0; i<sample.length(); i++) {
+                for (char c : alphabet) {
+                    lines.add(sample.substring(0, i) + c +
+                              sample.substring(i + 1));
+                    lines.add(sample.substring(0, i) + c +
+                              sample.substring(i));
+                }
+            }
+            // the keyword repeated in front of (possibly broken) copies
+            String kw = sample.substring(0, sample.indexOf(' ') + 1);
+            lines.add(kw + sample);
+            lines.add(kw + "x " + sample.substring(0, sample.length() / 2) +
+                      " " + sample);
+            // random multi-character mutations
+            for (int n=0; n<2000; n++) {
+                char[] c = sample.toCharArray();
+                int edits = 1 + rand.nextInt(4);
+                for (int e=0; e<edits; e++)
+                    c[rand.nextInt(c.length)] =
+                        alphabet[rand.nextInt(alphabet.length)];
+                lines.add(new String(c));
+            }
+        }
+        // random numbers in a float field
+        for (int n=0; n<20000; n++) {
+            StringBuilder num = new StringBuilder();
+            int digits = 1 + rand.nextInt(12);
+            for (int d=0; d<digits; d++)
+                num.append((char) ('0' + rand.nextInt(10)));
+            num.insert(rand.nextInt(digits + 1), '.');
+            lines.add("result riderid='ab' distance='" + num + "' place='1'");
+        }
+
+        int mismatches = 0;
+        for (String line : lines) {
+            ProtocolMessage fast = parseLine(line);
+            ProtocolMessage slow = parseLineRegex(line);
+            if (!sameMessage(fast, slow)) {
+                mismatches++;
+                if (mismatches <= 10)
+                    System.out.println("mismatch on: '" + line + "'");
+            }
+        }
+        System.out.println("differential test: " + lines.size() +
+                           " lines, " + mismatches + " mismatches");
+        return mismatches;
+    }
+
+    // same type, and every public field equal (floats compared bitwise).
+    private static boolean sameMessage(ProtocolMessage a, ProtocolMessage b) {
+        if ((a == null) || (b == null))
+            return a == b;
+        if (a.getClass() != b.getClass())
+            return false;
+        try {
+            for (Field f : a.getClass().getFields()) {
+                if (!Objects.equals(f.get(a), f.get(b)))
+                    return false;
+            }
+        } catch (IllegalAccessException iae) {
+            return false;
+        }
+        return true;
     }
 }
@@ -21,7 +21,14 @@
 
 package org.goldencheetah.goldenserver;
 
-import java.util.*;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 import org.apache.log4j.Logger;
 
 /*
@@ -29,228 +36,653 @@ import org.apache.log4j.Logger;
  * parameters established at creation (raceid, racedistance_km,
  * maxriders) and dynamic information about who is connected and
  * their current positions.
+ *
+ * The standings are a sorted set of immutable Standing entries, so
+ * moving one rider is a remove and an add, each O(log n), instead of
+ * a re-sort of the whole list.  Telemetry from different riders is
+ * applied concurrently: each rider's Position has its own monitor,
+ * and ingest only takes the shared side of snapshot_lock.  Broadcasts
+ * take the exclusive side just long enough to copy out the standings,
+ * so every standings or results frame is a consistent picture of the
+ * race.  Joins and leaves also take the exclusive side, which keeps
+ * the maxriders check and the index and standings in step.
+ *
+ * Standings are not broadcast from telemetryUpdate(); the RaceTicker
+ * calls tick() on every active race at a fixed rate, which moves each
+ * rider along at their last reported speed and broadcasts the
+ * standings, whether or not any telemetry arrived.
+ *
+ * Riders who asked for delta updates get, on most ticks, a
+ * standingsdelta frame holding only the riders whose figures moved
+ * by more than the DELTA_* thresholds since they were last sent, and
+ * a full standings frame (a keyframe) every KEYFRAME_TICKS ticks.
+ * Distance is compared against where the client will have
+ * extrapolated the rider to at the speed last sent, so a rider
+ * holding a steady speed doesn't have to be sent at all.
+ *
+ * Riders who asked for a window get standings holding only the
+ * leaders and the riders around their own place, built for each of
+ * them from the same racer messages; see windowFrame().  A window
+ * takes the place of delta updates for that rider.
+ *
+ * If journaling is on, every telemetry update is also handed to the
+ * race's TelemetryJournal, along with where it put the rider.
+ *
+ * Riders are moved along by the race's Clock, which is the system
+ * clock except when a RaceReplay is driving the race on recorded
+ * time.
  */
 public class Race {
     static Logger logger = Logger.getLogger(Race.class.getName());
-    private static final int          TELEMETRY_BROADCAST_PERIOD_MS = 1000;
 
     private String                     raceid;
     private float                      racedistance_km;
     private int                        maxriders;
-    private long                       last_telemetry_broadcast;
-    private List<Position>             standings;
-    private Hashtable<String,Position> riderid_position_index;
-    private boolean                    race_concluded;
+    private ConcurrentSkipListSet<Standing>      standings;
+    private ConcurrentHashMap<String,Position>   riderid_position_index;
+    private AtomicBoolean              race_concluded;
+    private AtomicLong                 next_join_seq;
+    private StampedLock                snapshot_lock;
+    private volatile LatencyStats      stats = null;   // see getLatencyStats()
+    private TelemetryJournal           journal;
+    private Clock                      clock;
+
+    // the riders' indices in this race, which the binary codec sends
+    // in place of riderids.  handed out round-robin, so an index
+    // isn't reused until the others have been, and a client rarely
+    // sees a reused index before the client list that explains it.
+    // guarded by the exclusive side of snapshot_lock.
+    private static final int           MAX_INDEX = 0xffff;
+    private BitSet                     rider_indices = new BitSet();
+    private int                        next_index = 0;
+
+    // delta updates.  what was last sent for each rider is kept in
+    // their Position; guarded by the exclusive side of snapshot_lock.
+    static final int                   KEYFRAME_TICKS = 10;
+    static final int                   DELTA_POWER_WATTS = 5;
+    static final int                   DELTA_CADENCE_RPM = 2;
+    static final int                   DELTA_HEARTRATE_BPM = 2;
+    static final float                 DELTA_SPEED_KPH = 0.5f;
+    static final float                 DELTA_DISTANCE_KM = 0.01f;
+    private int                        ticks_to_keyframe = 0;
+
+    // held while building and queueing membership and results frames,
+    // so that every rider sees them in the same order.
+    private Object                     broadcast_order = new Object();
 
     public Race(String raceid, float racedistance_km, int maxriders) {
+        this(raceid, racedistance_km, maxriders, Clock.systemUTC());
+    }
+
+    public Race(String raceid, float racedistance_km, int maxriders,
+                Clock clock) {
+        this.clock = clock;
         this.raceid = raceid;
         this.racedistance_km = racedistance_km;
         this.maxriders = maxriders;
-        this.last_telemetry_broadcast = System.currentTimeMillis();
-        this.standings =
-            Collections.synchronizedList(new LinkedList<Position>());
-        this.riderid_position_index = new Hashtable<String,Position>();
-        this.race_concluded = false;
+        this.standings = new ConcurrentSkipListSet<Standing>();
+        this.riderid_position_index =
+            new ConcurrentHashMap<String,Position>();
+        this.race_concluded = new AtomicBoolean(false);
+        this.next_join_seq = new AtomicLong(0);
+        this.snapshot_lock = new StampedLock();
+        this.journal = TelemetryJournal.forRace(raceid, racedistance_km);
     }
 
-    // used to track each rider's position and last telemetry update
-    private class Position implements Comparable<Position>{
+    // used to track each rider's position and last telemetry update.
+    // the mutable fields are only changed while holding the
+    // Position's monitor and the shared side of snapshot_lock.
+    private class Position {
         public float                            raceposition_km;
         public ProtocolHandler.TelemetryMessage last_telemetry_update;
         public long                             last_update_time;
         public Rider                            rider;
-
-        Position(String raceid, Rider rider) {
+        public long                             riderid_bits;
+        public long                             join_seq;
+        public int                              index;
+        public Standing                         standing;
+        // when the oldest telemetry not yet in a standings broadcast
+        // arrived (System.nanoTime()), or 0 if there is none.
+        public long                             fresh_nanos;
+        // what the last standings or standingsdelta said about this
+        // rider, and when; see changedSinceSent().
+        public boolean                          sent = false;
+        public int                              sent_power;
+        public int                              sent_cadence;
+        public int                              sent_heartrate;
+        public float                            sent_speed;
+        public float                            sent_km;
+        public long                             sent_time;
+        public int                              sent_place;
+
+        Position(String raceid, Rider rider, long join_seq, int index) {
             raceposition_km = (float) 0.0;
             last_telemetry_update =
                 new ProtocolHandler.TelemetryMessage(raceid,
                                                      rider.getRiderid(),
                                                      0, 0, (float) 0.0,
                                                      0, (float) 0.0);
-            last_update_time = System.currentTimeMillis();
+            last_update_time = clock.millis();
             this.rider = rider;
+            this.riderid_bits = TelemetryJournal.riderBits(rider.getRiderid());
+            this.join_seq = join_seq;
+            this.index = index;
+            this.standing = new Standing(raceposition_km, this);
+        }
+    }
+
+    // an entry in the standings.  it is never modified once it is in
+    // the set; a rider that moves gets a new Standing.  riders are
+    // sorted by distance, descending, and riders at the same distance
+    // by the order they joined, which is what the stable sort of the
+    // old list gave us.
+    private static class Standing implements Comparable<Standing> {
+        final float    km;
+        final Position posn;
+
+        Standing(float km, Position posn) {
+            this.km = km;
+            this.posn = posn;
         }
 
-        public int compareTo(Position n) {
-            // -1 to sort descending instead of ascending
-            return -1 * Float.compare(raceposition_km, n.raceposition_km);
+        public int compareTo(Standing n) {
+            int c = Float.compare(n.km, km);
+            if (c != 0)
+                return c;
+            return Long.compare(posn.join_seq, n.posn.join_seq);
         }
     }
 
     // has this race finished?
-    public synchronized boolean isConcluded() {
-        return race_concluded;
+    public boolean isConcluded() {
+        return race_concluded.get();
     }
 
     // add a new rider to the race, if there is room
-    public synchronized boolean addClient(Rider rider) {
-        logger.debug("adding client; new size would be " +
-                     (riderid_position_index.size() + 1));
-        if (riderid_position_index.size() < maxriders) {
-            Position newp = new Position(raceid, rider);
-            riderid_position_index.put(rider.getRiderid(), newp);
-            standings.add(newp);
-            Collections.sort(standings);
-            return true;
+    public boolean addClient(Rider rider) {
+        long stamp = snapshot_lock.writeLock();
+        try {
+            logger.debug("adding client; new size would be " +
+                         (riderid_position_index.size() + 1));
+            int index = nextIndex();
+            if ((riderid_position_index.size() < maxriders) && (index >= 0)) {
+                rider_indices.set(index);
+                Position newp = new Position(raceid, rider,
+                                             next_join_seq.getAndIncrement(),
+                                             index);
+                riderid_position_index.put(rider.getRiderid(), newp);
+                standings.add(newp.standing);
+                return true;
+            }
+            return false;
+        } finally {
+            snapshot_lock.unlockWrite(stamp);
         }
-        return false;
+    }
+
+    // the next free rider index, or -1 if there is none.  the caller
+    // holds the exclusive side of snapshot_lock.
+    private int nextIndex() {
+        int i = rider_indices.nextClearBit(next_index);
+        if (i > MAX_INDEX)
+            i = rider_indices.nextClearBit(0);
+        if (i > MAX_INDEX)
+            return -1;
+        next_index = (i == MAX_INDEX) ? 0 : i + 1;
+        return i;
     }
 
     // process a telemetry message from a client.  update that
-    // client's virtual position in the race, and if it's been more
-    // than TELEMETRY_BROADCAST_PERIOD_MS since the last broadcast,
-    // then broadcast new rider standings to all rider clients.
+    // client's virtual position in the race; the standings go out on
+    // the next tick().  if this rider just crossed the line, conclude
+    // the race and broadcast the results.
     //
     // returns true if the race has concluded, false otherwise.
-    public synchronized boolean telemetryUpdate(
+    public boolean telemetryUpdate(
            Rider rider, ProtocolHandler.TelemetryMessage tm) {
-        Position rider_posn = riderid_position_index.get(rider.getRiderid());
-        standings.remove(rider_posn);
-        long     old_time = rider_posn.last_update_time;
-        float    old_speed_kph = rider_posn.last_telemetry_update.speed_kph;
-        long     new_time = System.currentTimeMillis();
+        return telemetryUpdate(rider, tm, System.nanoTime());
+    }
 
-        if (race_concluded) return true;
+    // as above, where received_nanos is the System.nanoTime() at which
+    // the telemetry line was read off the client's socket.
+    public boolean telemetryUpdate(
+           Rider rider, ProtocolHandler.TelemetryMessage tm,
+           long received_nanos) {
+        long start = System.nanoTime();
+        try {
+            return applyTelemetry(rider, tm, received_nanos);
+        } finally {
+            getLatencyStats().record(LatencyStats.UPDATE,
+                                     System.nanoTime() - start);
+        }
+    }
 
-        rider_posn.last_telemetry_update = tm;
-        rider_posn.last_update_time = new_time;
-        rider_posn.raceposition_km += (float) (
-            (((float) (new_time - old_time))/1000.0) *
-            (old_speed_kph / 3600.0));
-        standings.add(rider_posn);
-        Collections.sort(standings);
+    private boolean applyTelemetry(
+           Rider rider, ProtocolHandler.TelemetryMessage tm,
+           long received_nanos) {
+        if (race_concluded.get()) return true;
+        Position rider_posn = riderid_position_index.get(rider.getRiderid());
+        if (rider_posn == null) return false;
+
+        float new_km;
+        long  now = clock.millis();
+        long  stamp = snapshot_lock.readLock();
+        try {
+            synchronized(rider_posn) {
+                // move the rider along at the old speed, then take
+                // the new one.
+                new_km = advance(rider_posn, now);
+                rider_posn.last_telemetry_update = tm;
+                if (rider_posn.fresh_nanos == 0)
+                    rider_posn.fresh_nanos = received_nanos;
+            }
+        } finally {
+            snapshot_lock.unlockRead(stamp);
+        }
+        if (journal != null)
+            journal.append(now, rider_posn.riderid_bits, rider_posn.index,
+                           tm, new_km);
 
         // has the race been won?
-        if ((racedistance_km != 0) &&
-            (rider_posn.raceposition_km > racedistance_km)) {
+        if (crossedLine(new_km)) {
             // yes!
-            race_concluded = true;
+            conclude();
             return true;
         }
+        return false;
+    }
 
-        if ((new_time - last_telemetry_broadcast) >
-            TELEMETRY_BROADCAST_PERIOD_MS) {
+    /*
+     * Called when a rider's client has stopped sending telemetry (see
+     * IdleTimer).  Brings the rider up to now at their last speed, and
+     * then stops them there: as far as the race is concerned they
+     * have stopped pedalling, until their client's next telemetry
+     * update says otherwise.
+     */
+    public void freeze(Rider rider) {
+        if (race_concluded.get()) return;
+        Position rider_posn = riderid_position_index.get(rider.getRiderid());
+        if (rider_posn == null) return;
+
+        float new_km;
+        long  now = clock.millis();
+        long  stamp = snapshot_lock.readLock();
+        try {
+            synchronized(rider_posn) {
+                new_km = advance(rider_posn, now);
+                ProtocolHandler.TelemetryMessage tm =
+                    rider_posn.last_telemetry_update;
+                rider_posn.last_telemetry_update =
+                    new ProtocolHandler.TelemetryMessage(tm.raceid,
+                                                         tm.riderid,
+                                                         0, 0,
+                                                         tm.distance_km,
+                                                         tm.heartrate_bpm,
+                                                         (float) 0.0);
+            }
+        } finally {
+            snapshot_lock.unlockRead(stamp);
+        }
+        if (crossedLine(new_km))
+            conclude();
+    }
+
+    /*
+     * Called by the RaceTicker once per tick.  Brings every rider's
+     * position up to now at their last reported speed, then either
+     * broadcasts the standings or, if someone has crossed the line,
+     * concludes the race.
+     */
+    public void tick(long now) {
+        if (race_concluded.get()) return;
+
+        boolean won = false;
+        long stamp = snapshot_lock.writeLock();
+        try {
+            // we hold the exclusive side, so no telemetry is being
+            // applied; copy the set out before moving anyone in it.
+            Position[] snap = new Position[standings.size()];
+            int i = 0;
+            for (Standing s : standings) {
+                snap[i++] = s.posn;
+            }
+            for (i=0; i<snap.length; i++) {
+                if (crossedLine(advance(snap[i], now)))
+                    won = true;
+            }
+        } finally {
+            snapshot_lock.unlockWrite(stamp);
+        }
+
+        if (won)
+            conclude();
+        else
             sendTelemetryUpdates();
-            last_telemetry_broadcast = new_time;
+    }
+
+    // move a rider along from their last update to now, at the speed
+    // they last reported, and reposition them in the standings.  the
+    // caller holds either the rider's monitor and the shared side of
+    // snapshot_lock, or the exclusive side.  returns the new distance.
+    private float advance(Position posn, long now) {
+        long  old_time = posn.last_update_time;
+        float old_speed_kph = posn.last_telemetry_update.speed_kph;
+        if (now < old_time)
+            now = old_time;
+        posn.last_update_time = now;
+        posn.raceposition_km += (float) (
+            (((float) (now - old_time))/1000.0) *
+            (old_speed_kph / 3600.0));
+        float km = posn.raceposition_km;
+        if (km != posn.standing.km) {
+            standings.remove(posn.standing);
+            posn.standing = new Standing(km, posn);
+            standings.add(posn.standing);
         }
-        return false;
+        return km;
     }
 
-    // broadcast the current race standings to all clients.
-    public synchronized void sendTelemetryUpdates() {
-        // allocate space for the standings update messages
-        int numriders = riderid_position_index.size();
-        ProtocolHandler.ProtocolMessage[] update =
-            new ProtocolHandler.ProtocolMessage[numriders + 1];
+    private boolean crossedLine(float km) {
+        return (racedistance_km != 0) && (km > racedistance_km);
+    }
 
-        // if the race has concluded, ignore this telemetry push.
-        if (race_concluded) return;
+    // mark the race concluded and send out the results, exactly once
+    // no matter how many riders (or ticks) notice the finish.
+    private void conclude() {
+        if (race_concluded.compareAndSet(false, true))
+            sendRaceConcluded();
+    }
 
-        // build up the update messages
-        update[0] = new ProtocolHandler.StandingsMessage(raceid,
-                                                         numriders);
-        Iterator it = standings.iterator();
-        int i = 1;
-        while (it.hasNext()) {
-            Position posn = (Position) it.next();
-            Rider nextRider = posn.rider;
-            ProtocolHandler.TelemetryMessage tm = posn.last_telemetry_update;
-
-            update[i] =
-                new ProtocolHandler.RacerMessage(
-                                                 nextRider.getRiderid(),
-                                                 tm.power_watts,
-                                                 tm.cadence_rpm,
-                                                 posn.raceposition_km,
-                                                 tm.heartrate_bpm,
-                                                 tm.speed_kph,
-                                                 i);
-            i++;
+    // copy out the standings, in order.  the exclusive lock waits out
+    // any telemetry being applied, so the set and every Position in it
+    // are consistent with one another while we read them.
+    private Position[] snapshotStandings() {
+        long stamp = snapshot_lock.writeLock();
+        try {
+            Position[] snap = new Position[standings.size()];
+            int i = 0;
+            for (Standing s : standings) {
+                snap[i++] = s.posn;
+            }
+            return snap;
+        } finally {
+            snapshot_lock.unlockWrite(stamp);
         }
+    }
 
-        // send out the update messages
-        it = standings.iterator();
-        while (it.hasNext()) {
-            Position posn = (Position) it.next();
-            posn.rider.getWriter().add(update);
+    // broadcast the current race standings to all clients.
+    public void sendTelemetryUpdates() {
+        // if the race has concluded, ignore this telemetry push.
+        if (race_concluded.get()) return;
+
+        // build up the update messages from a consistent copy of the
+        // standings; positions and telemetry are read under the same
+        // exclusive lock.
+        long build_start = System.nanoTime();
+        long now = clock.millis();
+        long source_nanos = 0;
+        ProtocolHandler.ProtocolMessage[] update;
+        ProtocolHandler.ProtocolMessage[] delta;
+        int ndelta = 0, nchanged = 0;
+        boolean keyframe;
+        Position[] snap;
+        long stamp = snapshot_lock.writeLock();
+        try {
+            snap = new Position[standings.size()];
+            update = new ProtocolHandler.ProtocolMessage[snap.length + 1];
+            delta = new ProtocolHandler.ProtocolMessage[snap.length + 1];
+            keyframe = (ticks_to_keyframe <= 0);
+            ticks_to_keyframe = keyframe ? KEYFRAME_TICKS - 1 :
+                ticks_to_keyframe - 1;
+            int i = 1;
+            for (Standing s : standings) {
+                Position posn = s.posn;
+                ProtocolHandler.TelemetryMessage tm =
+                    posn.last_telemetry_update;
+                snap[i - 1] = posn;
+                if ((posn.fresh_nanos != 0) &&
+                    ((source_nanos == 0) ||
+                     (posn.fresh_nanos - source_nanos < 0)))
+                    source_nanos = posn.fresh_nanos;
+                posn.fresh_nanos = 0;
+                ProtocolHandler.RacerMessage rm =
+                    new ProtocolHandler.RacerMessage(
+                                                     posn.rider.getRiderid(),
+                                                     tm.power_watts,
+                                                     tm.cadence_rpm,
+                                                     s.km,
+                                                     tm.heartrate_bpm,
+                                                     tm.speed_kph,
+                                                     i);
+                rm.rider_index = posn.index;
+                update[i] = rm;
+                if (posn.rider.getDeltaUpdates() && !posn.rider.isWindowed())
+                    ndelta++;
+                if (keyframe || changedSinceSent(posn, rm, now)) {
+                    markSent(posn, rm, now);
+                    delta[++nchanged] = rm;
+                }
+                i++;
+            }
+        } finally {
+            snapshot_lock.unlockWrite(stamp);
+        }
+        update[0] = new ProtocolHandler.StandingsMessage(raceid,
+                                                         snap.length);
+
+        // send out the update messages: each windowed rider their own
+        // window, and the full standings to everyone else on a
+        // keyframe, otherwise to those who didn't ask for deltas.
+        LatencyStats stats = getLatencyStats();
+        ProtocolHandler.Frame frame =
+            new ProtocolHandler.Frame(ProtocolHandler.Frame.STANDINGS,
+                                      update, stats, source_nanos);
+        stats.record(LatencyStats.BUILD, frame.getCreatedNanos() - build_start);
+        ProtocolHandler.Frame delta_frame = null;
+        if ((ndelta > 0) && !keyframe) {
+            delta[0] = new ProtocolHandler.StandingsDeltaMessage(raceid,
+                                                                 snap.length,
+                                                                 nchanged);
+            delta_frame = new ProtocolHandler.Frame(
+                Arrays.copyOf(delta, nchanged + 1), frame);
+        }
+        for (int i=0; i<snap.length; i++) {
+            Rider r = snap[i].rider;
+            if (r.isWindowed())
+                r.getWriter().add(windowFrame(update, i, r, frame));
+            else if ((delta_frame != null) && r.getDeltaUpdates())
+                r.getWriter().add(delta_frame);
+            else
+                r.getWriter().add(frame);
         }
         return;
     }
 
-    // broadcast the final race standings to all clients.
-    public synchronized void sendRaceConcluded() {
-        // allocate space for the standings update messages
-        int numriders = riderid_position_index.size();
-        ProtocolHandler.ProtocolMessage[] update =
-            new ProtocolHandler.ProtocolMessage[numriders + 1];
-
-        // build up the update messages
-        update[0] = new ProtocolHandler.RaceConcludedMessage(raceid,
-                                                             numriders);
-        Iterator it = standings.iterator();
-        int i = 1;
-        while (it.hasNext()) {
-            Position posn = (Position) it.next();
-            Rider nextRider = posn.rider;
-
-            update[i] =
-                new ProtocolHandler.ResultMessage(nextRider.getRiderid(),
-                                                  posn.raceposition_km,
-                                                  i);
-            i++;
-        }
+    // the standings as rider r, in place me+1, sees them through their
+    // window: the top riders, then the near riders either side of r,
+    // in place order.  update[0] is the standings header, and
+    // update[i] the racer in place i.  if the window takes in the
+    // whole race, that's just the full frame.
+    private ProtocolHandler.Frame windowFrame(
+           ProtocolHandler.ProtocolMessage[] update, int me, Rider r,
+           ProtocolHandler.Frame full) {
+        int n = update.length - 1;
+        int top = Math.min(r.getViewTop(), n);
+        int from = Math.max(top, me - r.getViewNear());
+        int to = (int) Math.min((long) n, (long) me + r.getViewNear() + 1);
+        int count = top + Math.max(0, to - from);
+        if (count >= n)
+            return full;
+
+        ProtocolHandler.ProtocolMessage[] window =
+            new ProtocolHandler.ProtocolMessage[count + 1];
+        ProtocolHandler.StandingsMessage sm =
+            new ProtocolHandler.StandingsMessage(raceid, count);
+        sm.total = n;
+        window[0] = sm;
+        System.arraycopy(update, 1, window, 1, top);
+        if (to > from)
+            System.arraycopy(update, from + 1, window, top + 1, to - from);
+        return new ProtocolHandler.Frame(ProtocolHandler.Frame.STANDINGS,
+                                         window, full.getStats(),
+                                         full.getSourceNanos());
+    }
 
-        // send out the update messages
-        it = standings.iterator();
-        while (it.hasNext()) {
-            Position posn = (Position) it.next();
-            posn.rider.getWriter().add(update);
+    // has a rider moved on from what was last sent about them by more
+    // than the thresholds?  their distance is compared with where a
+    // client will have put them by now, going at the speed last sent.
+    // the caller holds the exclusive side of snapshot_lock.
+    private boolean changedSinceSent(Position posn,
+                                     ProtocolHandler.RacerMessage rm,
+                                     long now) {
+        if (!posn.sent || (rm.place != posn.sent_place))
+            return true;
+        if ((Math.abs(rm.power_watts - posn.sent_power) > DELTA_POWER_WATTS) ||
+            (Math.abs(rm.cadence_rpm - posn.sent_cadence) > DELTA_CADENCE_RPM) ||
+            (Math.abs(rm.heartrate_bpm - posn.sent_heartrate) >
+             DELTA_HEARTRATE_BPM) ||
+            (Math.abs(rm.speed_kph - posn.sent_speed) > DELTA_SPEED_KPH))
+            return true;
+        float predicted_km = posn.sent_km + (float) (
+            (((float) (now - posn.sent_time))/1000.0) *
+            (posn.sent_speed / 3600.0));
+        return Math.abs(rm.distance_km - predicted_km) > DELTA_DISTANCE_KM;
+    }
+
+    private void markSent(Position posn, ProtocolHandler.RacerMessage rm,
+                          long now) {
+        posn.sent = true;
+        posn.sent_power = rm.power_watts;
+        posn.sent_cadence = rm.cadence_rpm;
+        posn.sent_heartrate = rm.heartrate_bpm;
+        posn.sent_speed = rm.speed_kph;
+        posn.sent_km = rm.distance_km;
+        posn.sent_time = now;
+        posn.sent_place = rm.place;
+    }
+
+    // broadcast the final race standings to all clients, and hand
+    // them to the ResultsOutbox for GoldenWeb.
+    public void sendRaceConcluded() {
+        ProtocolHandler.ProtocolMessage[] update;
+        synchronized(broadcast_order) {
+            long build_start = System.nanoTime();
+            Position[] snap;
+            long stamp = snapshot_lock.writeLock();
+            try {
+                snap = new Position[standings.size()];
+                update = new ProtocolHandler.ProtocolMessage[snap.length + 1];
+                int i = 1;
+                for (Standing s : standings) {
+                    snap[i - 1] = s.posn;
+                    ProtocolHandler.ResultMessage res =
+                        new ProtocolHandler.ResultMessage(
+                                                  s.posn.rider.getRiderid(),
+                                                  s.km,
+                                                  i);
+                    res.rider_index = s.posn.index;
+                    update[i] = res;
+                    i++;
+                }
+            } finally {
+                snapshot_lock.unlockWrite(stamp);
+            }
+            update[0] = new ProtocolHandler.RaceConcludedMessage(raceid,
+                                                                 snap.length);
+
+            // send out the update messages
+            broadcast(ProtocolHandler.Frame.CONCLUDED, update, snap,
+                      build_start, 0);
         }
-        return;
+        ResultsOutbox.concluded(raceid, update);
     }
 
     // send out the current race membership to all connected clients.
-    public synchronized void sendMembershipUpdate() {
-        // allocate space for the membership update messages
-        int numriders = riderid_position_index.size();
-        ProtocolHandler.ProtocolMessage[] update =
-            new ProtocolHandler.ProtocolMessage[numriders + 1];
-
-        if (race_concluded) return;
-
-        // build up the update messages
-        update[0] = new ProtocolHandler.ClientListMessage(raceid,
-                                                          numriders);
-        Iterator it = standings.iterator();
-        int i = 1;
-        while (it.hasNext()) {
-            Position posn = (Position) it.next();
-            Rider nextRider = posn.rider;
-            update[i] =
-                new ProtocolHandler.ClientMessage(nextRider.getRidername(),
-                                                  nextRider.getRiderid(),
-                                                  nextRider.getFtpWatts(),
-                                                  nextRider.getWeightKg());
-            i++;
+    public void sendMembershipUpdate() {
+        if (race_concluded.get()) return;
+
+        synchronized(broadcast_order) {
+            long build_start = System.nanoTime();
+            Position[] snap = snapshotStandings();
+
+            // build up the update messages
+            ProtocolHandler.ProtocolMessage[] update =
+                new ProtocolHandler.ProtocolMessage[snap.length + 1];
+            update[0] = new ProtocolHandler.ClientListMessage(raceid,
+                                                              snap.length);
+            for (int i=1; i<=snap.length; i++) {
+                Rider nextRider = snap[i - 1].rider;
+                ProtocolHandler.ClientMessage cm =
+                    new ProtocolHandler.ClientMessage(nextRider.getRidername(),
+                                                      nextRider.getRiderid(),
+                                                      nextRider.getFtpWatts(),
+                                                      nextRider.getWeightKg());
+                cm.rider_index = snap[i - 1].index;
+                update[i] = cm;
+            }
+
+            // send out the update messages
+            broadcast(ProtocolHandler.Frame.MEMBERSHIP, update, snap,
+                      build_start, 0);
         }
+    }
 
-        // send out the update messages
-        it = standings.iterator();
-        while (it.hasNext()) {
-            Position posn = (Position) it.next();
-            posn.rider.getWriter().add(update);
+    // render a set of update messages once, and queue the resulting
+    // frame for every rider in the snapshot it was built from.
+    private void broadcast(int kind, ProtocolHandler.ProtocolMessage[] update,
+                           Position[] snap, long build_start,
+                           long source_nanos) {
+        LatencyStats stats = getLatencyStats();
+        ProtocolHandler.Frame frame =
+            new ProtocolHandler.Frame(kind, update, stats, source_nanos);
+        stats.record(LatencyStats.BUILD, frame.getCreatedNanos() - build_start);
+        for (int i=0; i<snap.length; i++) {
+            snap[i].rider.getWriter().add(frame);
         }
-        return;
     }
 
     // remove a client from the race.
-    public synchronized void dropClient(Rider rider) {
-        Position posn = riderid_position_index.get(rider.getRiderid());
-        standings.remove(posn);
-        riderid_position_index.remove(rider.getRiderid());
+    public void dropClient(Rider rider) {
+        long stamp = snapshot_lock.writeLock();
+        try {
+            Position posn = riderid_position_index.remove(rider.getRiderid());
+            if (posn != null) {
+                standings.remove(posn.standing);
+                rider_indices.clear(posn.index);
+            }
+        } finally {
+            snapshot_lock.unlockWrite(stamp);
+        }
+    }
+
+    // the race's latency stats.  they are made the first time
+    // anybody asks, since most of the races GoldenWeb lists are never
+    // joined, and a LatencyStats is a few dozen KB of histograms.
+    public LatencyStats getLatencyStats() {
+        LatencyStats s = stats;
+        if (s == null) {
+            synchronized(this) {
+                s = stats;
+                if (s == null) {
+                    s = LatencyStats.forRace();
+                    stats = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    // the race's latency stats, or null if nothing has been recorded
+    // yet.  never creates them or takes a lock, for monitoring.
+    public LatencyStats peekLatencyStats() {
+        return stats;
+    }
+
+    public boolean hasClient(Rider rider) {
+        return riderid_position_index.containsKey(rider.getRiderid());
     }
 
-    public synchronized int numClients() {
+    public int numClients() {
         return riderid_position_index.size();
     }
 
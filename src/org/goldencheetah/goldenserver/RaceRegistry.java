@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/*
+ * The RaceRegistry holds the active races, i.e., the races with at
+ * least one rider in them, by raceid.  It replaces the old static
+ * Hashtable in ClientHandler and the synchronized(activeRaces) blocks
+ * around it, which made every join and every last-rider leave in the
+ * server take turns on a single lock.
+ *
+ * The registry is a ConcurrentHashMap, and joining and leaving are
+ * each one compute() on the race's key.  compute() locks only the
+ * bin that key lives in, so joins and leaves in unrelated races
+ * proceed in parallel, while for any one race:
+ *
+ *   - join() activates the race and adds the rider to it as one
+ *     step, so a rider can never be added to a Race that a concurrent
+ *     leave() is about to garbage collect, and a race that turns out
+ *     to be full is never activated with nobody in it.
+ *   - leave() drops the rider and, if that emptied the race, removes
+ *     it as one step, so a race is never removed while a rider who
+ *     just joined is in it.
+ *
+ * Race.addClient() and dropClient() only take the race's own lock
+ * and do no I/O, so they are safe to call inside compute().  Nothing
+ * else (hello messages, membership broadcasts) may be.
+ *
+ * The RaceTicker and MetricsServer iterate races() without locking.
+ */
+public class RaceRegistry {
+    private static Logger logger =
+        Logger.getLogger(RaceRegistry.class.getName());
+
+    // the registry the server uses.
+    private static final RaceRegistry active = new RaceRegistry();
+
+    private final ConcurrentHashMap<String,Race> races =
+        new ConcurrentHashMap<String,Race>();
+
+    public RaceRegistry() {
+    }
+
+    public static RaceRegistry active() {
+        return active;
+    }
+
+    // the active race with this raceid, or null.
+    public Race get(String raceid) {
+        return races.get(raceid);
+    }
+
+    public int size() {
+        return races.size();
+    }
+
+    // the active races; a read-only, weakly consistent view that is
+    // safe to iterate without locking.
+    public Collection<Race> races() {
+        return Collections.unmodifiableCollection(races.values());
+    }
+
+    /*
+     * Add a rider to the race with found's raceid.  If that race is
+     * already active the rider joins it, and found is ignored;
+     * otherwise found becomes the active race.  Returns the race the
+     * rider is now in, or null if it was full.
+     */
+    public Race join(final Race found, final Rider rider) {
+        final Race[] joined = new Race[1];
+        races.compute(found.getRaceid(),
+                      new BiFunction<String,Race,Race>() {
+            public Race apply(String raceid, Race cur) {
+                Race r = (cur != null) ? cur : found;
+                if (r.addClient(rider))
+                    joined[0] = r;
+                // don't activate a race that nobody got into
+                return (joined[0] == null) ? cur : r;
+            }
+        });
+        return joined[0];
+    }
+
+    /*
+     * Remove a rider from a race it joined, and garbage collect the
+     * race if that left it empty.  Returns true if the race was
+     * removed.
+     */
+    public boolean leave(final Race race, final Rider rider) {
+        final boolean[] removed = new boolean[1];
+        final boolean[] dropped = new boolean[1];
+        races.computeIfPresent(race.getRaceid(),
+                               new BiFunction<String,Race,Race>() {
+            public Race apply(String raceid, Race cur) {
+                if (cur != race)
+                    return cur;
+                cur.dropClient(rider);
+                dropped[0] = true;
+                if (cur.numClients() > 0)
+                    return cur;
+                removed[0] = true;
+                return null;
+            }
+        });
+        if (!dropped[0]) {
+            // the race isn't the active one, which should never
+            // happen while it has a rider in it; clean up anyway.
+            logger.warn("rider left race " + race.getRaceid() +
+                        ", which isn't active");
+            race.dropClient(rider);
+        }
+        if (removed[0]) {
+            LatencyStats.retire(race.peekLatencyStats());
+            logger.debug("race " + race.getRaceid() +
+                         " is empty; garbage collected it");
+        }
+        return removed[0];
+    }
+
+    /*
+     * Contains a stress test for join() and leave().  Many threads
+     * join and leave a handful of races, each join handing in a fresh
+     * Race as the WebPoller would, and a few races small enough to
+     * fill.  While a rider is in a race, that race must be the active
+     * one and must hold the rider (no lost riders); at the end every
+     * race must be gone (no resurrected races).
+     */
+    public static void main(String[] args) throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+        final int    nthreads = 16;
+        final int    nraces = 8;
+        final long   duration_ms = (args.length > 0) ?
+            Long.parseLong(args[0]) : 5000;
+        final RaceRegistry reg = new RaceRegistry();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final AtomicLong joins = new AtomicLong(0);
+        final AtomicLong fulls = new AtomicLong(0);
+        final AtomicLong removals = new AtomicLong(0);
+        final long stop = System.currentTimeMillis() + duration_ms;
+
+        Thread[] threads = new Thread[nthreads];
+        for (int t=0; t<nthreads; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    Random rm = new Random(seed);
+                    // nothing is broadcast here, so nothing is queued
+                    MessageSink sink = new MessageSink() {
+                        private Mailbox queue = new Mailbox(4);
+                        public boolean add(ProtocolHandler.ProtocolMessage m) {
+                            return false;
+                        }
+                        public void setCodec(WireCodec codec) {
+                        }
+                        public Mailbox getMailbox() {
+                            return queue;
+                        }
+                    };
+                    while (!failed.get() &&
+                           (System.currentTimeMillis() < stop)) {
+                        // races 0..1 hold 2 riders, the rest 1000.
+                        int n = rm.nextInt(nraces);
+                        String raceid = "race" + n;
+                        Race fresh = new Race(raceid, (float) 0.0,
+                                              (n < 2) ? 2 : 1000);
+                        Rider rider = new Rider("stress" + seed, 250,
+                                                (float) 75.0, null, sink);
+                        Race r = reg.join(fresh, rider);
+                        if (r == null) {
+                            fulls.incrementAndGet();
+                            continue;
+                        }
+                        joins.incrementAndGet();
+                        for (int i=rm.nextInt(4); i>=0; i--) {
+                            if ((reg.get(raceid) != r) || !r.hasClient(rider)) {
+                                System.out.println("lost rider in " + raceid);
+                                failed.set(true);
+                            }
+                            Thread.yield();
+                        }
+                        if (reg.leave(r, rider))
+                            removals.incrementAndGet();
+                        if (r.hasClient(rider)) {
+                            System.out.println("rider still in " + raceid +
+                                               " after leaving");
+                            failed.set(true);
+                        }
+                    }
+                }
+            }, "RegistryStress-" + t);
+            threads[t].start();
+        }
+        for (int t=0; t<nthreads; t++) {
+            threads[t].join();
+        }
+
+        if (reg.size() != 0) {
+            for (Race r : reg.races()) {
+                System.out.println("resurrected race " + r.getRaceid() +
+                                   " with " + r.numClients() + " riders");
+            }
+            failed.set(true);
+        }
+        if (failed.get()) {
+            System.out.println("registry stress test FAILED");
+            System.exit(1);
+        }
+        System.out.println("registry stress test passed: " + joins.get() +
+                           " joins, " + fulls.get() + " full, " +
+                           removals.get() + " races garbage collected");
+    }
+}
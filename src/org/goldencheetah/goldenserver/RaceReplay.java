@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+// standard java imports
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+
+// imports from .jar's in lib/
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/*
+ * RaceReplay feeds a race's TelemetryJournal back through a Race, for
+ * reproducing and benchmarking a real race's shape without any live
+ * riders.  Each journaled update is rendered as the telemetry line
+ * the rider would have sent, parsed with ProtocolHandler.parseLine()
+ * and handed to Race.telemetryUpdate(), just as ClientHandler does;
+ * the standings go out on ticks, to a ClientWriter per rider whose
+ * output is thrown away once it has been counted.
+ *
+ * The Race runs on a ReplayClock, which reads the journaled time of
+ * whatever is being replayed rather than the wall clock, so riders
+ * move exactly as far between updates as they did in the original
+ * race however fast we replay it.  Updates go in at their original
+ * spacing ("-speed 1", the default), some multiple faster, or with
+ * "-max" as fast as the Race will take them.  Ticks are synthesized
+ * every tick_ms of journaled time, starting at the first update.
+ *
+ * Riders join the race as their first update comes up.  Everything
+ * runs on one thread apart from the writers, so the throughput
+ * reported is what one client thread can push through a Race.
+ */
+public class RaceReplay {
+    private static Logger logger =
+        Logger.getLogger(RaceReplay.class.getName());
+
+    private TelemetryJournal.Reader journal;
+    private double                  speed;       // <= 0 means as fast as possible
+    private long                    tick_ms;
+    private ReplayClock             clock = new ReplayClock();
+    private Race                    race;
+    private ClientHandler           handler = new ClientHandler(null, null);
+    private HashMap<Long, Rider>    riders = new HashMap<Long, Rider>();
+    private ArrayList<ClientHandler.ClientWriter> writers =
+        new ArrayList<ClientHandler.ClientWriter>();
+
+    private long             wall_start;
+    private long             t0 = -1;           // journaled time of the first update
+    private long             records = 0;
+    private long             ticks = 0;
+    private LatencyHistogram lag = new LatencyHistogram();
+    private LatencyHistogram tick_times = new LatencyHistogram();
+
+    /*
+     * A Clock that reads whatever time it was last set to.  Only the
+     * replay thread sets it, and it never goes backwards.
+     */
+    static class ReplayClock extends Clock {
+        private volatile long millis = 0;
+
+        void set(long millis) {
+            if (millis > this.millis)
+                this.millis = millis;
+        }
+
+        public long millis() {
+            return millis;
+        }
+
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+    }
+
+    // stands in for a client's socket; the bytes are already counted
+    // in IoStats by the time they get here.
+    private static final OutputStream discard = new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+    public RaceReplay(TelemetryJournal.Reader journal, double speed,
+                      long tick_ms) {
+        this.journal = journal;
+        this.speed = speed;
+        this.tick_ms = tick_ms;
+        this.race = new Race(journal.getRaceid(),
+                             journal.getRacedistanceKm(),
+                             Integer.MAX_VALUE, clock);
+    }
+
+    /*
+     * Replay the whole journal, then wait for the writers to drain.
+     */
+    public void run() throws IOException {
+        wall_start = System.nanoTime();
+        long next_tick = 0;
+        boolean concluded = false;
+        TelemetryJournal.Record rec;
+        while (!concluded && ((rec = journal.next()) != null)) {
+            if (t0 < 0) {
+                t0 = rec.time_ms;
+                next_tick = t0 + tick_ms;
+            }
+            // the journal is in the order updates were applied, which
+            // is near enough but not exactly time order.
+            long t = Math.max(rec.time_ms, clock.millis());
+            while (next_tick <= t) {
+                tick(next_tick);
+                next_tick += tick_ms;
+            }
+            pace(t);
+            clock.set(t);
+            concluded = replay(rec);
+            records++;
+        }
+        if (!concluded)
+            tick(next_tick);
+
+        // let the writers finish what's queued.
+        CompletableFuture<?>[] closed = new CompletableFuture<?>[writers.size()];
+        for (int i=0; i<closed.length; i++) {
+            closed[i] = writers.get(i).closeAfterFlush();
+        }
+        CompletableFuture.allOf(closed).join();
+    }
+
+    private void tick(long t) {
+        pace(t);
+        clock.set(t);
+        long start = System.nanoTime();
+        race.tick(t);
+        tick_times.record(System.nanoTime() - start);
+        ticks++;
+    }
+
+    // wait until journaled time t comes up, and note how late we are.
+    private void pace(long t) {
+        if (speed <= 0)
+            return;
+        long due = wall_start + (long) ((t - t0) * 1000000.0 / speed);
+        long now = System.nanoTime();
+        while (now < due) {
+            LockSupport.parkNanos(due - now);
+            now = System.nanoTime();
+        }
+        lag.record(now - due);
+    }
+
+    // one update, as a client line through the real path.  returns
+    // true if the race has concluded.
+    private boolean replay(TelemetryJournal.Record rec) {
+        Rider rider = riderFor(rec);
+        ProtocolHandler.TelemetryMessage tm =
+            new ProtocolHandler.TelemetryMessage(race.getRaceid(),
+                                                 rider.getRiderid(),
+                                                 rec.power_watts,
+                                                 rec.cadence_rpm,
+                                                 rec.distance_km,
+                                                 rec.heartrate_bpm,
+                                                 rec.speed_kph);
+        String line = tm.toString();
+        line = line.substring(0, line.length() - 1);
+
+        long received_nanos = System.nanoTime();
+        IoStats.received(line.length() + 1);
+        ProtocolHandler.ProtocolMessage pm = ProtocolHandler.parseLine(line);
+        LatencyStats.server().record(LatencyStats.PARSE,
+                                     System.nanoTime() - received_nanos);
+        if (!(pm instanceof ProtocolHandler.TelemetryMessage)) {
+            logger.warn("replayed line didn't parse: '" + line + "'");
+            return false;
+        }
+        return race.telemetryUpdate(rider,
+                                    (ProtocolHandler.TelemetryMessage) pm,
+                                    received_nanos);
+    }
+
+    private Rider riderFor(TelemetryJournal.Record rec) {
+        Rider rider = riders.get(rec.riderid);
+        if (rider != null)
+            return rider;
+        ClientHandler.ClientWriter writer = handler.new ClientWriter(discard);
+        writer.start();
+        writers.add(writer);
+        rider = new Rider("replay " + riders.size(), 250, 75.0f, null, writer);
+        rider.setRiderid(rec.getRiderid());
+        riders.put(rec.riderid, rider);
+        race.addClient(rider);
+        race.sendMembershipUpdate();
+        return rider;
+    }
+
+    public String summary() {
+        double wall_secs = (System.nanoTime() - wall_start) / 1e9;
+        double race_secs = (t0 < 0) ? 0 : (clock.millis() - t0) / 1000.0;
+        StringBuffer sb = new StringBuffer();
+        sb.append(String.format("replayed %d updates from %d riders, %.1fs " +
+                                "of race in %.2fs (%.1fx), %.0f updates/sec, " +
+                                "%d ticks%s\n",
+                                records, riders.size(), race_secs, wall_secs,
+                                (wall_secs > 0) ? race_secs / wall_secs : 0,
+                                (wall_secs > 0) ? records / wall_secs : 0,
+                                ticks,
+                                race.isConcluded() ? ", race concluded" : ""));
+        sb.append("in: ").append(IoStats.messagesIn()).append(" msgs, ")
+            .append(IoStats.bytesIn()).append(" bytes\n");
+        sb.append(IoStats.summary()).append('\n');
+        sb.append("latency:\n").append(race.getLatencyStats().summary())
+            .append('\n');
+        sb.append("  parse ")
+            .append(LatencyStats.server().get(LatencyStats.PARSE).summary())
+            .append('\n');
+        sb.append("tick ").append(tick_times.summary()).append('\n');
+        if (speed > 0)
+            sb.append("behind schedule ").append(lag.summary()).append('\n');
+        return sb.toString();
+    }
+
+    public static void usage() {
+        System.out.println("usage: java org.goldencheetah.goldenserver.RaceReplay " +
+                           "<journal> [-speed <x> | -max] [-tickms <ms>]");
+        System.exit(-1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        double speed = 1.0;
+        long   tick_ms = 1000;
+
+        if (args.length < 1) {
+            usage();
+        }
+        for (int i=1; i<args.length; i++) {
+            if (args[i].equals("-max")) {
+                speed = 0;
+                continue;
+            }
+            if (i+1 >= args.length) {
+                usage();
+            }
+            try {
+                if (args[i].equals("-speed")) {
+                    speed = Double.parseDouble(args[++i]);
+                    if (!(speed > 0))
+                        usage();
+                } else if (args[i].equals("-tickms")) {
+                    tick_ms = Long.parseLong(args[++i]);
+                } else {
+                    usage();
+                }
+            } catch (NumberFormatException e) {
+                usage();
+            }
+        }
+        if (tick_ms < 1) {
+            usage();
+        }
+        Logger.getRootLogger().setLevel(Level.WARN);
+
+        TelemetryJournal.Reader journal =
+            new TelemetryJournal.Reader(new File(args[0]));
+        System.out.println("Replaying race " + journal.getRaceid() + " (" +
+                           journal.getRacedistanceKm() + " km) at " +
+                           ((speed > 0) ? (speed + "x") : "full speed") +
+                           ", " + tick_ms + " ms ticks...");
+        RaceReplay replay = new RaceReplay(journal, speed, tick_ms);
+        replay.run();
+        journal.close();
+        System.out.print(replay.summary());
+    }
+}
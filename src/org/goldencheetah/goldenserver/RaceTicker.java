@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/*
+ * The RaceTicker is the race clock.  A single scheduler thread calls
+ * Race.tick() on every active race at a fixed rate, so standings go
+ * out on a steady beat no matter how often (or whether) the riders'
+ * clients send telemetry.
+ *
+ * The races ticked are the RaceRegistry's active races, read through
+ * its weakly consistent view, so a tick never waits on a join or
+ * leave (and a race activated mid-tick is picked up by the next one).
+ *
+ * Each tick is timed.  "late" is how far behind its scheduled start a
+ * tick began and "took" is how long it ran; if ticks regularly take
+ * longer than the period, the scheduler falls behind and late grows.
+ * A summary is logged every REPORT_PERIOD_MS, along with the
+ * server's LatencyStats (and, at debug level, each race's), and an
+ * overrun is logged as it happens.
+ */
+public class RaceTicker {
+    private static Logger logger =
+        Logger.getLogger(RaceTicker.class.getName());
+    private static final long REPORT_PERIOD_MS = 60000;
+
+    private long tick_ms;
+    private ScheduledExecutorService scheduler;
+
+    // only the scheduler thread writes these; volatile so that
+    // summary() can be called from anywhere.
+    private long          next_nanos;
+    private volatile long ticks = 0;
+    private volatile long overruns = 0;
+    private volatile long max_late_nanos = 0;
+    private volatile long max_took_nanos = 0;
+    private volatile long last_took_nanos = 0;
+    private long          sum_late_nanos = 0;
+    private long          sum_took_nanos = 0;
+    private long          window_ticks = 0;
+    private long          last_report_ms;
+
+    public RaceTicker(long tick_ms) {
+        this.tick_ms = tick_ms;
+    }
+
+    public long getTickMs() {
+        return tick_ms;
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RaceTicker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        last_report_ms = System.currentTimeMillis();
+        next_nanos = System.nanoTime() + tick_ms * 1000000L;
+        scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    tick();
+                }
+            }, tick_ms, tick_ms, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null)
+            scheduler.shutdown();
+    }
+
+    private void tick() {
+        long start = System.nanoTime();
+        long late = start - next_nanos;
+        next_nanos += tick_ms * 1000000L;
+
+        long now = System.currentTimeMillis();
+        for (Race r : RaceRegistry.active().races()) {
+            // a RuntimeException escaping would silently cancel the
+            // schedule, so contain it to the one race.
+            try {
+                r.tick(now);
+            } catch (RuntimeException re) {
+                logger.error("tick failed for race " + r.getRaceid(), re);
+            }
+        }
+
+        long took = System.nanoTime() - start;
+        ticks++;
+        window_ticks++;
+        last_took_nanos = took;
+        sum_late_nanos += Math.max(late, 0);
+        sum_took_nanos += took;
+        if (late > max_late_nanos)
+            max_late_nanos = late;
+        if (took > max_took_nanos)
+            max_took_nanos = took;
+        if (took > tick_ms * 1000000L) {
+            overruns++;
+            logger.warn("race tick took " + (took / 1000000L) +
+                        " ms for " + RaceRegistry.active().size() +
+                        " races; the tick period is " + tick_ms + " ms");
+        }
+
+        if (now - last_report_ms >= REPORT_PERIOD_MS) {
+            logger.info(summary() + "; avg late " +
+                        ms(sum_late_nanos / window_ticks) +
+                        " ms; avg took " +
+                        ms(sum_took_nanos / window_ticks) + " ms");
+            logger.info("server latencies:\n" +
+                        LatencyStats.serverWide(RaceRegistry.active().races())
+                        .summary());
+            if (logger.isDebugEnabled()) {
+                for (Race r : RaceRegistry.active().races()) {
+                    LatencyStats rs = r.peekLatencyStats();
+                    if (rs != null)
+                        logger.debug("race " + r.getRaceid() +
+                                     " latencies:\n" + rs.summary());
+                }
+            }
+            sum_late_nanos = 0;
+            sum_took_nanos = 0;
+            window_ticks = 0;
+            last_report_ms = now;
+        }
+    }
+
+    private static String ms(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    public long getOverruns() {
+        return overruns;
+    }
+
+    public long getMaxLateNanos() {
+        return max_late_nanos;
+    }
+
+    public long getMaxTookNanos() {
+        return max_took_nanos;
+    }
+
+    public long getLastTookNanos() {
+        return last_took_nanos;
+    }
+
+    public String summary() {
+        return "races " + RaceRegistry.active().size() +
+            "; ticks " + ticks +
+            " every " + tick_ms + " ms; overruns " + overruns +
+            "; last took " + ms(last_took_nanos) +
+            " ms; max took " + ms(max_took_nanos) +
+            " ms; max late " + ms(max_late_nanos) + " ms";
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+// standard java imports
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// imports from .jar's in lib/
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/*
+ * The ResultsOutbox keeps the outcome of every race that concludes,
+ * and POSTs them back to GoldenWeb (see "GW/GS protocol" in
+ * doc/protocol_spec.txt).
+ *
+ * A concluding Race hands its results over with concluded(), which
+ * only queues them; everything else happens on the outbox's own
+ * thread, so neither the Race nor the client that crossed the line
+ * ever waits on a disk or on GoldenWeb.  That thread first writes
+ * each race's results to a file of its own in the outbox directory,
+ * synced and then renamed into place so that a crash leaves either
+ * the whole file or none of it.  It then POSTs whatever is in the
+ * directory, oldest first, several races to a request, and deletes
+ * each file once GoldenWeb has taken it.
+ *
+ * A failed POST is retried after a backoff that doubles from
+ * INITIAL_BACKOFF_MS up to MAX_BACKOFF_MS, and resets on success.
+ * GoldenWeb refusing a batch outright (a 4xx other than 408 or 429)
+ * isn't going to get better by retrying, so those files are renamed
+ * to .rejected and left for a human.  Since the files are the queue,
+ * results that haven't gone up when the server stops are picked up
+ * again when it restarts.
+ *
+ * Without a URL, results are only written to the directory.
+ */
+public class ResultsOutbox {
+    private static Logger logger =
+        Logger.getLogger(ResultsOutbox.class.getName());
+    private static final Charset charset = Charset.forName("US-ASCII");
+
+    static final String SUFFIX = ".results";
+    static final String REJECTED = ".rejected";
+    static final int    MAX_BATCH_RACES = 50;
+    static final int    MAX_BATCH_BYTES = 256 * 1024;
+    static final long   INITIAL_BACKOFF_MS = 1000;
+    static final long   MAX_BACKOFF_MS = 5 * 60 * 1000;
+    static final int    TIMEOUT_MS = 10000;
+
+    private static volatile ResultsOutbox active = null;
+
+    private File    dir;
+    private URL     url;
+    private long    initial_backoff_ms;
+    private long    backoff_ms = 0;
+    private long    next_attempt_ms = 0;
+    private Thread  thread;
+    private volatile boolean running = true;
+
+    // results not yet on disk, and the files not yet uploaded.
+    private LinkedBlockingQueue<Concluded> queue =
+        new LinkedBlockingQueue<Concluded>();
+    private TreeSet<File> backlog = new TreeSet<File>();
+    private long          last_stamp = 0;
+
+    // for monitoring.
+    private volatile int  pending = 0;
+    private AtomicLong    races_written = new AtomicLong();
+    private AtomicLong    races_uploaded = new AtomicLong();
+    private AtomicLong    upload_failures = new AtomicLong();
+
+    // one race's results, as handed over by the Race.
+    private static class Concluded {
+        String                            raceid;
+        long                              time_ms;
+        ProtocolHandler.ProtocolMessage[] results;
+    }
+
+    /*
+     * Start keeping results in dir, and POSTing them to url if it
+     * isn't null.  Results already in dir from an earlier run are
+     * uploaded first.
+     */
+    public static synchronized void start(File dir, URL url)
+        throws IOException {
+        if (active == null)
+            active = new ResultsOutbox(dir, url, INITIAL_BACKOFF_MS);
+    }
+
+    // the running outbox, or null if results aren't being kept.
+    public static ResultsOutbox active() {
+        return active;
+    }
+
+    /*
+     * Called by a Race as it concludes, with the messages it sent its
+     * clients: a raceconcluded followed by a result per rider.  Never
+     * blocks; does nothing if results aren't being kept.
+     */
+    public static void concluded(String raceid,
+                                 ProtocolHandler.ProtocolMessage[] results) {
+        ResultsOutbox outbox = active;
+        if (outbox != null)
+            outbox.add(raceid, results);
+    }
+
+    ResultsOutbox(File dir, URL url, long initial_backoff_ms)
+        throws IOException {
+        this.dir = dir;
+        this.url = url;
+        this.initial_backoff_ms = initial_backoff_ms;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("can't create results outbox " + dir);
+
+        // pick up where an earlier run left off.  a .tmp is a file
+        // that was never completely written, so was never promised.
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException("can't read results outbox " + dir);
+        for (File f : files) {
+            if (f.getName().endsWith(SUFFIX))
+                backlog.add(f);
+            else if (f.getName().endsWith(".tmp"))
+                f.delete();
+        }
+        pending = backlog.size();
+        if (pending > 0)
+            logger.info(pending + " race results waiting in " + dir);
+
+        thread = new Thread(new Runnable() {
+                public void run() {
+                    loop();
+                }
+            }, "ResultsOutbox");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void add(String raceid, ProtocolHandler.ProtocolMessage[] results) {
+        Concluded c = new Concluded();
+        c.raceid = raceid;
+        c.time_ms = System.currentTimeMillis();
+        c.results = results;
+        queue.offer(c);
+    }
+
+    /*
+     * Stop the outbox thread, once everything handed over so far is
+     * on disk.  Whatever hasn't been uploaded stays in the directory.
+     */
+    void stop() throws InterruptedException {
+        running = false;
+        thread.interrupt();
+        thread.join();
+    }
+
+    public int pending() {
+        return pending;
+    }
+
+    public long racesWritten() {
+        return races_written.get();
+    }
+
+    public long racesUploaded() {
+        return races_uploaded.get();
+    }
+
+    public long uploadFailures() {
+        return upload_failures.get();
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                long wait = Long.MAX_VALUE;
+                if ((url != null) && !backlog.isEmpty())
+                    wait = next_attempt_ms - System.currentTimeMillis();
+                Concluded c = (wait > 0)
+                    ? queue.poll(Math.min(wait, 60000), TimeUnit.MILLISECONDS)
+                    : queue.poll();
+                while (c != null) {
+                    write(c);
+                    c = queue.poll();
+                }
+                if ((url != null) && !backlog.isEmpty() &&
+                    (System.currentTimeMillis() >= next_attempt_ms))
+                    upload();
+            } catch (InterruptedException ie) {
+            }
+        }
+        Concluded c;
+        while ((c = queue.poll()) != null)
+            write(c);
+    }
+
+    /*
+     * Write one race's results to the outbox.  The file names sort in
+     * the order the races concluded.
+     */
+    private void write(Concluded c) {
+        long stamp = Math.max(c.time_ms, last_stamp + 1);
+        last_stamp = stamp;
+        String name = String.format("%013d-%s", stamp, c.raceid);
+        File tmp = new File(dir, name + ".tmp");
+        File done = new File(dir, name + SUFFIX);
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(render(c.results));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), done.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            logger.error("couldn't write results of race " + c.raceid +
+                         " to " + done, ioe);
+            tmp.delete();
+            return;
+        }
+        backlog.add(done);
+        pending = backlog.size();
+        races_written.incrementAndGet();
+        logger.debug("results of race " + c.raceid + " written to " + done);
+    }
+
+    private static byte[] render(ProtocolHandler.ProtocolMessage[] results) {
+        StringBuffer sb = new StringBuffer();
+        for (ProtocolHandler.ProtocolMessage pm : results) {
+            sb.append(pm.toString());
+        }
+        return sb.toString().getBytes(charset);
+    }
+
+    /*
+     * POST the oldest results in the outbox, up to MAX_BATCH_RACES
+     * races or MAX_BATCH_BYTES, and settle the backoff.
+     */
+    private void upload() {
+        ArrayList<File> batch = new ArrayList<File>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (File f : backlog) {
+            if ((batch.size() >= MAX_BATCH_RACES) ||
+                ((batch.size() > 0) &&
+                 (body.size() + f.length() > MAX_BATCH_BYTES)))
+                break;
+            try {
+                body.write(Files.readAllBytes(f.toPath()));
+                batch.add(f);
+            } catch (IOException ioe) {
+                logger.error("couldn't read " + f + "; setting it aside",
+                             ioe);
+                reject(f);
+                return;
+            }
+        }
+
+        int status;
+        try {
+            status = post(body.toByteArray());
+        } catch (IOException ioe) {
+            failed("POST of " + batch.size() + " race results to " + url +
+                   " failed: " + ioe);
+            return;
+        }
+        if ((status >= 200) && (status < 300)) {
+            for (File f : batch) {
+                if (!f.delete())
+                    logger.warn("couldn't delete uploaded results " + f);
+                backlog.remove(f);
+            }
+            pending = backlog.size();
+            races_uploaded.addAndGet(batch.size());
+            backoff_ms = 0;
+            next_attempt_ms = 0;
+            logger.debug("uploaded " + batch.size() + " race results");
+        } else if ((status >= 400) && (status < 500) &&
+                   (status != 408) && (status != 429)) {
+            logger.error("GoldenWeb refused " + batch.size() +
+                         " race results with status " + status +
+                         "; setting them aside as " + REJECTED);
+            for (File f : batch)
+                reject(f);
+        } else {
+            failed("GoldenWeb answered a POST of " + batch.size() +
+                   " race results with status " + status);
+        }
+    }
+
+    private int post(byte[] body) throws IOException {
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        try {
+            http.setConnectTimeout(TIMEOUT_MS);
+            http.setReadTimeout(TIMEOUT_MS);
+            http.setRequestMethod("POST");
+            http.setDoOutput(true);
+            http.setFixedLengthStreamingMode(body.length);
+            http.setRequestProperty("Content-Type",
+                                    "text/plain; charset=US-ASCII");
+            OutputStream out = http.getOutputStream();
+            out.write(body);
+            out.close();
+            int status = http.getResponseCode();
+            // read the reply out, so the connection can be reused.
+            InputStream in = (status < 400) ? http.getInputStream()
+                                            : http.getErrorStream();
+            if (in != null) {
+                byte[] skip = new byte[1024];
+                while (in.read(skip) >= 0) {
+                }
+                in.close();
+            }
+            return status;
+        } finally {
+            http.disconnect();
+        }
+    }
+
+    private void failed(String why) {
+        upload_failures.incrementAndGet();
+        backoff_ms = (backoff_ms == 0) ? initial_backoff_ms
+                                       : Math.min(backoff_ms * 2,
+                                                  MAX_BACKOFF_MS);
+        next_attempt_ms = System.currentTimeMillis() + backoff_ms;
+        logger.warn(why + "; retrying in " + backoff_ms + " ms");
+    }
+
+    private void reject(File f) {
+        String name = f.getName();
+        File to = new File(dir, name.substring(0, name.length() -
+                                               SUFFIX.length()) + REJECTED);
+        if (!f.renameTo(to))
+            f.delete();
+        backlog.remove(f);
+        pending = backlog.size();
+    }
+
+    /*
+     * A self test against a stub GoldenWeb on localhost.  The stub
+     * fails its first few POSTs, so results pile up and go up in a
+     * batch after a retry; then the stub goes away, the outbox is
+     * stopped with results still waiting, and a new outbox on the
+     * same directory must upload them to a new stub.  Every race's
+     * results must reach GoldenWeb exactly once, and the directory
+     * must be empty at the end.
+     */
+    public static void main(String[] args) throws Exception {
+        Logger.getRootLogger().setLevel(Level.ERROR);
+        File dir = File.createTempFile("outboxtest", "");
+        dir.delete();
+
+        final ArrayList<String> received = new ArrayList<String>();
+        final int[] posts = new int[1];
+        final int[] failing = new int[] { 3 };
+        HttpHandler handler = new HttpHandler() {
+                public void handle(HttpExchange ex) throws IOException {
+                    byte[] body = readAll(ex.getRequestBody());
+                    int status = 200;
+                    synchronized(received) {
+                        posts[0]++;
+                        if (failing[0] > 0) {
+                            failing[0]--;
+                            status = 503;
+                        } else {
+                            received.add(new String(body, charset));
+                        }
+                    }
+                    ex.sendResponseHeaders(status, -1);
+                    ex.close();
+                }
+            };
+
+        HttpServer stub =
+            HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stub.createContext("/results", handler);
+        stub.start();
+        URL url = new URL("http://localhost:" + stub.getAddress().getPort() +
+                          "/results");
+
+        int nraces = 20;
+        ResultsOutbox outbox = new ResultsOutbox(dir, url, 20);
+        for (int r=0; r<nraces; r++) {
+            outbox.add(testRaceid(r), testResults(r));
+        }
+        waitFor(outbox, nraces);
+        int first_posts = posts[0];
+
+        // GoldenWeb goes away; results wait in the outbox across a
+        // restart.
+        stub.stop(0);
+        long failures = outbox.uploadFailures();
+        for (int r=nraces; r<2*nraces; r++) {
+            outbox.add(testRaceid(r), testResults(r));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((outbox.uploadFailures() < failures + 3) &&
+               (System.currentTimeMillis() < deadline))
+            Thread.sleep(10);
+        outbox.stop();
+        int left = dir.list().length;
+
+        stub = HttpServer.create(
+            new InetSocketAddress("localhost", url.getPort()), 0);
+        stub.createContext("/results", handler);
+        stub.start();
+        outbox = new ResultsOutbox(dir, url, 20);
+        waitFor(outbox, nraces);
+        outbox.stop();
+        stub.stop(0);
+
+        // every race exactly once, with all its riders.
+        int bad = 0;
+        int[] seen = new int[2*nraces];
+        for (String body : received) {
+            for (String line : body.split("\n")) {
+                ProtocolHandler.ProtocolMessage pm =
+                    ProtocolHandler.parseLine(line);
+                if (pm instanceof ProtocolHandler.RaceConcludedMessage) {
+                    ProtocolHandler.RaceConcludedMessage rcm =
+                        (ProtocolHandler.RaceConcludedMessage) pm;
+                    int r = Integer.parseInt(rcm.raceid, 16);
+                    if ((r >= 0) && (r < seen.length))
+                        seen[r]++;
+                    if (rcm.numclients != 1 + r % 5)
+                        bad++;
+                } else if (!(pm instanceof ProtocolHandler.ResultMessage)) {
+                    bad++;
+                }
+            }
+        }
+        for (int r=0; r<seen.length; r++) {
+            if (seen[r] != 1) {
+                System.out.println("race " + r + " uploaded " + seen[r] +
+                                   " times");
+                bad++;
+            }
+        }
+        String[] remaining = dir.list();
+        System.out.println("outbox test: " + (2*nraces) + " races; " +
+                           first_posts + " POSTs before the restart, " +
+                           left + " results waiting across it, " +
+                           posts[0] + " POSTs in all, " + received.size() +
+                           " accepted, " + bad + " bad, " +
+                           remaining.length + " left over");
+        for (String f : remaining)
+            new File(dir, f).delete();
+        dir.delete();
+        if ((bad != 0) || (remaining.length != 0) || (left != nraces))
+            System.exit(1);
+    }
+
+    private static String testRaceid(int r) {
+        return String.format("%032x", r);
+    }
+
+    private static ProtocolHandler.ProtocolMessage[] testResults(int r) {
+        int n = 1 + r % 5;
+        ProtocolHandler.ProtocolMessage[] res =
+            new ProtocolHandler.ProtocolMessage[n + 1];
+        res[0] = new ProtocolHandler.RaceConcludedMessage(testRaceid(r), n);
+        for (int i=1; i<=n; i++) {
+            res[i] = new ProtocolHandler.ResultMessage(
+                         Rider.getRandomRiderid(), 40.0f - i, i);
+        }
+        return res;
+    }
+
+    private static void waitFor(ResultsOutbox outbox, int nraces)
+        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((outbox.racesUploaded() < nraces) &&
+               (System.currentTimeMillis() < deadline))
+            Thread.sleep(10);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) >= 0)
+            out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+}
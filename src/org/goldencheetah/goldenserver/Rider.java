@@ -36,7 +36,11 @@ public class Rider {
     private int                         ftp_watts;
     private float                       weight_kg;
     private BufferedReader              in;
-    private ClientHandler.ClientWriter  writer;
+    private MessageSink                 writer;
+    private boolean                     delta_updates = false;
+    private boolean                     windowed = false;
+    private int                         view_top = 0;
+    private int                         view_near = 0;
 
     public static String getRandomRiderid() {
         Random generator = new Random();
@@ -45,7 +49,7 @@ public class Rider {
 
     public Rider(String ridername, int ftp_watts,
                  float weight_kg,
-                 BufferedReader in, ClientHandler.ClientWriter writer) {
+                 BufferedReader in, MessageSink writer) {
         this.ridername = ridername;
         this.riderid = getRandomRiderid();
         this.ftp_watts = ftp_watts;
@@ -85,10 +89,37 @@ public class Rider {
     public BufferedReader getIn() {
         return in;
     }
-    public ClientHandler.ClientWriter getWriter() {
+    public MessageSink getWriter() {
         return writer;
     }
 
+    // does this rider get standingsdelta updates between keyframes?
+    // set before the rider joins a race.
+    public boolean getDeltaUpdates() {
+        return delta_updates;
+    }
+    public void setDeltaUpdates(boolean delta_updates) {
+        this.delta_updates = delta_updates;
+    }
+
+    // does this rider see the standings through a window: only the
+    // top view_top riders and the view_near riders either side of
+    // them?  set before the rider joins a race.
+    public boolean isWindowed() {
+        return windowed;
+    }
+    public int getViewTop() {
+        return view_top;
+    }
+    public int getViewNear() {
+        return view_near;
+    }
+    public void setView(int view_top, int view_near) {
+        this.windowed = true;
+        this.view_top = view_top;
+        this.view_near = view_near;
+    }
+
     public String toString() {
         return ridername + " (" + riderid + "): weight = " +
             weight_kg + " kg, ftp = " + ftp_watts + " watts";
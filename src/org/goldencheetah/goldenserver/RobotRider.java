@@ -182,12 +182,26 @@ public class RobotRider {
     public static void usage() {
         System.out.println("usage: java org.goldencheetah.goldenserver.RobotRider " +
                            "<raceid> <server_hostname> <server_port>");
+        System.out.println("   or: java org.goldencheetah.goldenserver.RobotRider " +
+                           "<raceid>[,<raceid>...] <server_hostname> <server_port> " +
+                           "-riders <n> [-hz <telemetry_per_sec>] " +
+                           "[-rampup <secs>] [-duration <secs>] [-binary] [-delta] " +
+                           "[-top <k>] [-near <m>]");
         System.exit(-1);
     }
 
     public static void main(String[] args) {
+        int    riders = 0;
+        double hz = 2.0;
+        double rampup_secs = 10.0;
+        double duration_secs = 60.0;
+        boolean binary = false;
+        boolean delta = false;
+        int    top = -1;
+        int    near = -1;
+
         // pull in arguments
-        if (args.length != 3) {
+        if (args.length < 3) {
             usage();
         }
         RobotRider.raceid = args[0];
@@ -200,6 +214,66 @@ public class RobotRider {
         if ((RobotRider.port < 1) || (RobotRider.port > 65535)) {
             usage();
         }
+        for (int i=3; i<args.length; i++) {
+            if (args[i].equals("-binary")) {
+                binary = true;
+                continue;
+            }
+            if (args[i].equals("-delta")) {
+                delta = true;
+                continue;
+            }
+            if (i+1 >= args.length) {
+                usage();
+            }
+            try {
+                if (args[i].equals("-riders")) {
+                    riders = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-hz")) {
+                    hz = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("-rampup")) {
+                    rampup_secs = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("-duration")) {
+                    duration_secs = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("-top")) {
+                    top = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-near")) {
+                    near = Integer.parseInt(args[++i]);
+                } else {
+                    usage();
+                }
+            } catch (NumberFormatException e) {
+                usage();
+            }
+        }
+        if ((riders < 0) || !(hz > 0) || (rampup_secs < 0) ||
+            (duration_secs < 0) || (top < -1) || (near < -1) ||
+            ((binary || delta || (top >= 0) || (near >= 0)) &&
+             (riders == 0))) {
+            usage();
+        }
+
+        // load-test mode: many riders from this one process.
+        if (riders > 0) {
+            System.out.println("Starting load generator...");
+            System.out.println("   raceids: " + RobotRider.raceid);
+            System.out.println("   server: " + RobotRider.hostname + ":" +
+                               RobotRider.port);
+            System.out.println("   riders: " + riders + " at " + hz +
+                               " telemetry/sec, ramp-up " + rampup_secs +
+                               "s, duration " + duration_secs + "s");
+            LoadGenerator lg =
+                new LoadGenerator(RobotRider.raceid.split(","),
+                                  RobotRider.hostname, RobotRider.port,
+                                  riders, hz,
+                                  (long) (rampup_secs * 1000),
+                                  (long) (duration_secs * 1000));
+            lg.setBinary(binary);
+            lg.setDelta(delta);
+            lg.setWindow(top, near);
+            lg.run();
+            return;
+        }
 
         System.out.println("Starting Robotrider...");
         System.out.println("   raceid: " + RobotRider.raceid);
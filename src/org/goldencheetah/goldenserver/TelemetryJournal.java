@@ -0,0 +1,702 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+// standard java imports
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// imports from .jar's in lib/
+import org.apache.log4j.Logger;
+
+/*
+ * A TelemetryJournal keeps every telemetry update of one race, as
+ * fixed-size binary records appended to a memory-mapped file,
+ * <directory>/<raceid>.journal.  It is off unless start() has been
+ * called (GoldenServer's -journal flag).
+ *
+ * Socket threads never touch the file.  append() copies the record
+ * into a slot of a bounded ring shared by all races and returns; one
+ * background thread drains the ring into the races' files.  The ring
+ * is a multi-producer, single-consumer array of preallocated slots,
+ * each with a sequence number saying whether it is free or full, so
+ * appending is a compare-and-set and a few stores, with no locks and
+ * no allocation.  If the writer falls so far behind that the ring is
+ * full, records are dropped (and counted) rather than holding up a
+ * rider.  The writer sleeps whenever the ring is empty, and the
+ * append that finds it asleep wakes it.
+ *
+ * The file is a HEADER_BYTES header followed by RECORD_BYTES records,
+ * all big-endian:
+ *
+ *   header:  0  8 bytes  magic, "GSJRNL01"
+ *            8  u16      header size, u16 record size
+ *           12  f32      race distance (km)
+ *           16  u64      number of records
+ *           24  u64      when the journal was created (ms since 1970)
+ *           32  32 bytes raceid, ASCII, zero padded
+ *
+ *   record:  0  u64      when the telemetry arrived (ms since 1970)
+ *            8  u64      riderid
+ *           16  u16      rider index (see Race)
+ *           18  u16      power (watts)
+ *           20  u8       cadence (rpm), u8 heart rate (bpm)
+ *           22  u16      reserved, 0
+ *           24  f32      speed (kph)
+ *           28  f32      distance along the course (km), as computed
+ *                        by the server when the telemetry arrived
+ *
+ * The file is mapped CHUNK_BYTES at a time, so it grows in steps, and
+ * the record count in the header is updated after every batch the
+ * writer drains; a reader (see Reader) believes the count, not the
+ * file's length, so a journal can be tailed while it is written.
+ * A journal that has had nothing to write for IDLE_CLOSE_MS is
+ * trimmed to its records and closed; if its race gets more
+ * telemetry, the file is reopened and appended to.
+ *
+ * There is one TelemetryJournal per raceid, kept for the life of the
+ * server and shared by every Race with that raceid (a race that is
+ * run again after it concludes gets a new Race, see WebPoller), so a
+ * file only ever has one count and one open channel behind it.  Its
+ * header keeps the race distance it was created with.
+ */
+public class TelemetryJournal {
+    private static Logger logger =
+        Logger.getLogger(TelemetryJournal.class.getName());
+    private static final Charset charset = Charset.forName("US-ASCII");
+
+    public static final int HEADER_BYTES = 64;
+    public static final int RECORD_BYTES = 32;
+    private static final byte[] MAGIC = "GSJRNL01".getBytes(charset);
+    private static final int  RING_SLOTS = 1 << 16;
+    private static final long CHUNK_BYTES = 1 << 20;
+    private static final long IDLE_CLOSE_MS = 30000;
+    private static final long SWEEP_MS = 1000;
+
+    private static volatile File directory = null;
+    private static Ring ring = null;
+    private static ConcurrentHashMap<String,TelemetryJournal> by_raceid =
+        new ConcurrentHashMap<String,TelemetryJournal>();
+    private static AtomicLong records_written = new AtomicLong(0);
+    private static AtomicLong records_dropped = new AtomicLong(0);
+
+    /*
+     * Start journaling every race into files in dir, creating it if
+     * need be.  Call once, before any Race is created.
+     */
+    public static synchronized void start(File dir) throws IOException {
+        if (directory != null)
+            throw new IllegalStateException("journal already started");
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("can't create journal directory " + dir);
+        directory = dir;
+        Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    drainForever();
+                }
+            }, "TelemetryJournal");
+        writer.setDaemon(true);
+        ring = new Ring(RING_SLOTS, writer);
+        writer.start();
+        logger.info("journaling telemetry to " + dir);
+    }
+
+    /*
+     * The journal for a race, or null if journaling is off.  Races
+     * with the same raceid get the same journal.  Nothing is opened
+     * until the race's first record reaches the writer.
+     */
+    public static TelemetryJournal forRace(String raceid,
+                                           float racedistance_km) {
+        File dir = directory;
+        if (dir == null)
+            return null;
+        TelemetryJournal j = by_raceid.get(raceid);
+        if (j == null) {
+            j = new TelemetryJournal(new File(dir, raceid + ".journal"),
+                                     raceid, racedistance_km);
+            TelemetryJournal prev = by_raceid.putIfAbsent(raceid, j);
+            if (prev != null)
+                j = prev;
+        }
+        return j;
+    }
+
+    public static long recordsWritten() {
+        return records_written.get();
+    }
+
+    // records thrown away because the writer had fallen behind.
+    public static long recordsDropped() {
+        return records_dropped.get();
+    }
+
+    private final File   file;
+    private final String raceid;
+    private final float  racedistance_km;
+
+    // the rest is only touched by the writer thread.
+    private FileChannel      channel = null;
+    private MappedByteBuffer header = null;
+    private MappedByteBuffer chunk = null;
+    private long             chunk_start = 0;
+    private long             count = 0;
+    private long             last_write_ms = 0;
+    private boolean          dirty = false;
+
+    private TelemetryJournal(File file, String raceid, float racedistance_km) {
+        this.file = file;
+        this.raceid = raceid;
+        this.racedistance_km = racedistance_km;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /*
+     * Journal one telemetry update.  Never blocks; returns false if
+     * the record was dropped.  Called on socket threads.
+     */
+    public boolean append(long time_ms, long riderid, int index,
+                          ProtocolHandler.TelemetryMessage tm, float km) {
+        if (ring.offer(this, time_ms, riderid, index, tm.power_watts,
+                       tm.cadence_rpm, tm.heartrate_bpm, tm.speed_kph, km))
+            return true;
+        records_dropped.incrementAndGet();
+        return false;
+    }
+
+    // a riderid as the 64-bit number it is, or 0 if it isn't one.
+    public static long riderBits(String riderid) {
+        try {
+            return Long.parseUnsignedLong(riderid, 16);
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    /*
+     * One slot of the ring: a record on its way to a journal.
+     */
+    private static final class Slot {
+        TelemetryJournal journal;
+        long  time_ms;
+        long  riderid;
+        int   index;
+        int   power;
+        int   cadence;
+        int   heartrate;
+        float speed;
+        float km;
+    }
+
+    /*
+     * A bounded multi-producer, single-consumer ring of Slots.  Slot i
+     * holding sequence number s means: s == pos, it is free for the
+     * producer that claims position pos; s == pos + 1, it holds the
+     * record for position pos, ready for the consumer.  Producers
+     * claim positions with a compare-and-set on tail; the consumer
+     * alone moves head.
+     *
+     * When the consumer finds the ring empty it sets parked, looks
+     * once more, and parks.  A producer publishes its slot and then
+     * looks at parked; whichever of them goes second sees the
+     * other's write, so a record is never left in the ring with the
+     * consumer asleep, and a busy ring costs producers one read.
+     */
+    private static final class Ring {
+        private final Slot[]          slots;
+        private final AtomicLongArray seq;
+        private final int             mask;
+        private final AtomicLong      tail = new AtomicLong(0);
+        private long                  head = 0;
+        private final Thread          consumer;
+        private final AtomicBoolean   parked = new AtomicBoolean(false);
+
+        Ring(int size, Thread consumer) {
+            this.consumer = consumer;
+            slots = new Slot[size];
+            seq = new AtomicLongArray(size);
+            mask = size - 1;
+            for (int i=0; i<size; i++) {
+                slots[i] = new Slot();
+                seq.set(i, i);
+            }
+        }
+
+        boolean offer(TelemetryJournal journal, long time_ms, long riderid,
+                      int index, int power, int cadence, int heartrate,
+                      float speed, float km) {
+            long pos = tail.get();
+            while (true) {
+                int  i = (int) (pos & mask);
+                long diff = seq.get(i) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        Slot s = slots[i];
+                        s.journal = journal;
+                        s.time_ms = time_ms;
+                        s.riderid = riderid;
+                        s.index = index;
+                        s.power = power;
+                        s.cadence = cadence;
+                        s.heartrate = heartrate;
+                        s.speed = speed;
+                        s.km = km;
+                        seq.set(i, pos + 1);        // publish
+                        if (parked.get() && parked.compareAndSet(true, false))
+                            LockSupport.unpark(consumer);
+                        return true;
+                    }
+                    pos = tail.get();
+                } else if (diff < 0) {
+                    return false;                   // full
+                } else {
+                    pos = tail.get();               // lost a race; retry
+                }
+            }
+        }
+
+        // the next full slot, or null if there isn't one.  consumer only.
+        Slot peek() {
+            int i = (int) (head & mask);
+            return (seq.get(i) == head + 1) ? slots[i] : null;
+        }
+
+        // hand the slot peek() returned back to the producers.
+        void release() {
+            int i = (int) (head & mask);
+            slots[i].journal = null;
+            seq.lazySet(i, head + slots.length);
+            head++;
+        }
+
+        // sleep until a record arrives, or for at most timeout_ms if
+        // that is positive.  consumer only.
+        void await(long timeout_ms) {
+            parked.set(true);
+            if (peek() == null) {
+                if (timeout_ms > 0)
+                    LockSupport.parkNanos(this, timeout_ms * 1000000L);
+                else
+                    LockSupport.park(this);
+            }
+            parked.set(false);
+        }
+    }
+
+    // the writer thread.  with journals open it wakes at least every
+    // SWEEP_MS to close the idle ones; with none, only for records.
+    private static void drainForever() {
+        ArrayList<TelemetryJournal> open = new ArrayList<TelemetryJournal>();
+        ArrayList<TelemetryJournal> batch = new ArrayList<TelemetryJournal>();
+        long next_sweep = System.currentTimeMillis() + SWEEP_MS;
+        while (true) {
+            Slot s;
+            int n = 0;
+            while ((n < 4096) && ((s = ring.peek()) != null)) {
+                TelemetryJournal j = s.journal;
+                try {
+                    if (j.channel == null) {
+                        j.open();
+                        open.add(j);
+                    }
+                    j.write(s);
+                    if (!j.dirty) {
+                        j.dirty = true;
+                        batch.add(j);
+                    }
+                } catch (IOException ioe) {
+                    records_dropped.incrementAndGet();
+                    logger.warn("can't journal to " + j.file + ": " + ioe);
+                }
+                ring.release();
+                n++;
+            }
+
+            long now = System.currentTimeMillis();
+            for (TelemetryJournal j : batch) {
+                j.header.putLong(16, j.count);
+                j.last_write_ms = now;
+                j.dirty = false;
+            }
+            batch.clear();
+            if (now >= next_sweep) {
+                for (int i=open.size()-1; i>=0; i--) {
+                    TelemetryJournal j = open.get(i);
+                    if (now - j.last_write_ms >= IDLE_CLOSE_MS) {
+                        j.close();
+                        open.remove(i);
+                    }
+                }
+                next_sweep = now + SWEEP_MS;
+            }
+            if (n == 0)
+                ring.await(open.isEmpty() ? 0 : Math.max(1, next_sweep - now));
+        }
+    }
+
+    // does this look like the header of a journal we can append to?
+    private static boolean isHeader(ByteBuffer b) {
+        for (int i=0; i<MAGIC.length; i++) {
+            if (b.get(i) != MAGIC[i])
+                return false;
+        }
+        return (b.getShort(8) == HEADER_BYTES) &&
+            (b.getShort(10) == RECORD_BYTES);
+    }
+
+    // open (or reopen) the file, picking up after any records in it.
+    private void open() throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        if (isHeader(header)) {
+            count = header.getLong(16);
+            logger.debug("appending to " + file + " after " + count +
+                         " records");
+        } else {
+            if (channel.size() > HEADER_BYTES)
+                logger.warn(file + " isn't a journal; overwriting it");
+            count = 0;
+            for (int i=0; i<MAGIC.length; i++) {
+                header.put(i, MAGIC[i]);
+            }
+            header.putShort(8, (short) HEADER_BYTES);
+            header.putShort(10, (short) RECORD_BYTES);
+            header.putFloat(12, racedistance_km);
+            header.putLong(16, 0);
+            header.putLong(24, System.currentTimeMillis());
+            byte[] id = raceid.getBytes(charset);
+            for (int i=0; i<32; i++) {
+                header.put(32 + i, (i < id.length) ? id[i] : 0);
+            }
+        }
+        chunk = null;
+    }
+
+    private void write(Slot s) throws IOException {
+        long at = HEADER_BYTES + count * RECORD_BYTES;
+        if ((chunk == null) || (at + RECORD_BYTES > chunk_start + CHUNK_BYTES)) {
+            chunk_start = at;
+            chunk = channel.map(FileChannel.MapMode.READ_WRITE, at,
+                                CHUNK_BYTES);
+        }
+        int p = (int) (at - chunk_start);
+        chunk.putLong(p, s.time_ms);
+        chunk.putLong(p + 8, s.riderid);
+        chunk.putShort(p + 16, (short) s.index);
+        chunk.putShort(p + 18, (short) Math.max(0, Math.min(0xffff, s.power)));
+        chunk.put(p + 20, (byte) Math.max(0, Math.min(0xff, s.cadence)));
+        chunk.put(p + 21, (byte) Math.max(0, Math.min(0xff, s.heartrate)));
+        chunk.putShort(p + 22, (short) 0);
+        chunk.putFloat(p + 24, s.speed);
+        chunk.putFloat(p + 28, s.km);
+        count++;
+        records_written.incrementAndGet();
+    }
+
+    // trim the file to its records and close it.  the mappings go
+    // away when they are collected.
+    private void close() {
+        header = null;
+        chunk = null;
+        try {
+            channel.truncate(HEADER_BYTES + count * RECORD_BYTES);
+        } catch (IOException ioe) {
+            logger.debug("can't trim " + file + ": " + ioe);
+        }
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+        }
+        channel = null;
+        logger.debug("closed " + file + " after " + count + " records");
+    }
+
+    /*
+     * One record of a journal, as read back by a Reader.
+     */
+    public static class Record {
+        public long  time_ms;
+        public long  riderid;
+        public int   index;
+        public int   power_watts;
+        public int   cadence_rpm;
+        public int   heartrate_bpm;
+        public float speed_kph;
+        public float distance_km;
+
+        public String getRiderid() {
+            return Long.toHexString(riderid);
+        }
+
+        public String toString() {
+            return String.format("%d rider=%s index=%d power=%d cadence=%d " +
+                                 "heartrate=%d speed=%.2f distance=%.3f",
+                                 time_ms, getRiderid(), index, power_watts,
+                                 cadence_rpm, heartrate_bpm, speed_kph,
+                                 distance_km);
+        }
+    }
+
+    /*
+     * Reads a journal's records in order, including while the server
+     * is still writing it: next() returns null once it has caught up
+     * with the count in the header, and can be called again later to
+     * pick up records written since.
+     */
+    public static class Reader {
+        private FileChannel channel;
+        private ByteBuffer  header = ByteBuffer.allocate(HEADER_BYTES);
+        private ByteBuffer  buf = ByteBuffer.allocate(RECORD_BYTES * 1024);
+        private String      raceid;
+        private float       racedistance_km;
+        private long        created_ms;
+        private long        next = 0;
+        private long        count = 0;
+
+        public Reader(File file) throws IOException {
+            channel = new RandomAccessFile(file, "r").getChannel();
+            readHeader();
+            if (!isHeader(header)) {
+                channel.close();
+                throw new IOException(file + " isn't a telemetry journal");
+            }
+            racedistance_km = header.getFloat(12);
+            created_ms = header.getLong(24);
+            StringBuilder id = new StringBuilder(32);
+            for (int i=32; (i < HEADER_BYTES) && (header.get(i) != 0); i++) {
+                id.append((char) header.get(i));
+            }
+            raceid = id.toString();
+            buf.flip();
+        }
+
+        private void readHeader() throws IOException {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0)
+                    throw new IOException("journal header is short");
+            }
+            count = header.getLong(16);
+        }
+
+        public String getRaceid() {
+            return raceid;
+        }
+
+        public float getRacedistanceKm() {
+            return racedistance_km;
+        }
+
+        public long getCreatedMs() {
+            return created_ms;
+        }
+
+        // the next record, or null if there are no more yet.
+        public Record next() throws IOException {
+            if (!buf.hasRemaining()) {
+                if (next >= count) {
+                    readHeader();
+                    if (next >= count)
+                        return null;
+                }
+                long n = Math.min(count - next, buf.capacity() / RECORD_BYTES);
+                buf.clear();
+                buf.limit((int) (n * RECORD_BYTES));
+                long at = HEADER_BYTES + next * RECORD_BYTES;
+                while (buf.hasRemaining()) {
+                    int r = channel.read(buf, at + buf.position());
+                    if (r < 0)
+                        throw new IOException("journal is short");
+                }
+                buf.flip();
+                next += n;
+            }
+            Record r = new Record();
+            r.time_ms = buf.getLong();
+            r.riderid = buf.getLong();
+            r.index = buf.getShort() & 0xffff;
+            r.power_watts = buf.getShort() & 0xffff;
+            r.cadence_rpm = buf.get() & 0xff;
+            r.heartrate_bpm = buf.get() & 0xff;
+            buf.getShort();
+            r.speed_kph = buf.getFloat();
+            r.distance_km = buf.getFloat();
+            return r;
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /*
+     * With a journal file as the argument, prints its records, and
+     * with "-f" as well keeps printing them as they are written, like
+     * tail -f.  With no arguments, runs a self test: several threads
+     * append to a few journals at once, in bursts a good deal faster
+     * than any server's riders send telemetry, and every record must
+     * come back from the Readers intact and in each thread's order,
+     * with none dropped.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            Reader r = new Reader(new File(args[0]));
+            boolean follow = (args.length > 1) && args[1].equals("-f");
+            System.out.println("race " + r.getRaceid() + ", " +
+                               r.getRacedistanceKm() + " km, created " +
+                               new java.util.Date(r.getCreatedMs()));
+            while (true) {
+                Record rec = r.next();
+                if (rec != null) {
+                    System.out.println(rec);
+                } else if (follow) {
+                    Thread.sleep(200);
+                } else {
+                    break;
+                }
+            }
+            r.close();
+            return;
+        }
+
+        File dir = File.createTempFile("journaltest", "");
+        dir.delete();
+        start(dir);
+        final int nthreads = 8;
+        final int nraces = 3;
+        final int per_thread = 100000;
+        final int burst = 100;
+        final TelemetryJournal[] journals = new TelemetryJournal[nraces];
+        for (int i=0; i<nraces; i++) {
+            journals[i] = forRace("00000000000000000000000000000" + (100 + i),
+                                  40.0f);
+        }
+        if (forRace("00000000000000000000000000000100", 40.0f) != journals[0]) {
+            System.out.println("two journals for one raceid");
+            System.exit(1);
+        }
+        final ProtocolHandler.TelemetryMessage[] tms =
+            new ProtocolHandler.TelemetryMessage[nthreads];
+        Thread[] threads = new Thread[nthreads];
+        final long[] took = new long[nthreads];
+        for (int t=0; t<nthreads; t++) {
+            final int thread = t;
+            tms[t] = new ProtocolHandler.TelemetryMessage("ab", "cd",
+                                                          200 + t, 90, 0.0f,
+                                                          150, 30.5f);
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i=0; i<per_thread; i+=burst) {
+                        long start = System.nanoTime();
+                        for (int b=i; b<i+burst; b++) {
+                            journals[b % nraces].append(b, thread, thread,
+                                                        tms[thread],
+                                                        b / 1000.0f);
+                        }
+                        took[thread] += System.nanoTime() - start;
+                        LockSupport.parkNanos(1000000);
+                    }
+                }
+            });
+        }
+        for (Thread th : threads)
+            th.start();
+        for (Thread th : threads)
+            th.join();
+        long total = (long) nthreads * per_thread;
+        // read the journals back as they are written, until every
+        // record has turned up (or been dropped), or the deadline.
+        // the Readers only see what the header count says is there,
+        // so this waits for the records to be published, not just
+        // written.
+        int bad = 0;
+        long read = 0;
+        Reader[] readers = new Reader[nraces];
+        long[][] last = new long[nraces][nthreads];
+        for (int i=0; i<nraces; i++)
+            java.util.Arrays.fill(last[i], -1);
+        long deadline = System.currentTimeMillis() + 60000;
+        while ((read + recordsDropped() < total) &&
+               (System.currentTimeMillis() < deadline)) {
+            for (int i=0; i<nraces; i++) {
+                if (readers[i] == null) {
+                    try {
+                        readers[i] = new Reader(journals[i].getFile());
+                    } catch (IOException ioe) {
+                        continue;       // not created yet
+                    }
+                }
+                Record rec;
+                while ((rec = readers[i].next()) != null) {
+                    read++;
+                    int t = (int) rec.riderid;
+                    if ((t < 0) || (t >= nthreads) || (rec.index != t) ||
+                        (rec.power_watts != 200 + t) ||
+                        (rec.cadence_rpm != 90) ||
+                        (rec.heartrate_bpm != 150) ||
+                        (rec.speed_kph != 30.5f) ||
+                        (rec.time_ms % nraces != i) ||
+                        (rec.time_ms <= last[i][t]) ||
+                        (rec.distance_km != rec.time_ms / 1000.0f)) {
+                        if (bad++ < 10)
+                            System.out.println("bad record in race " + i +
+                                               ": " + rec);
+                        continue;
+                    }
+                    last[i][t] = rec.time_ms;
+                }
+            }
+            if (read + recordsDropped() < total)
+                Thread.sleep(10);
+        }
+        for (int i=0; i<nraces; i++) {
+            if (readers[i] != null)
+                readers[i].close();
+        }
+        long ns = 0;
+        for (long t : took)
+            ns += t;
+        System.out.println("journal test: " + total + " records from " +
+                           nthreads + " threads; " + recordsWritten() +
+                           " written, " + recordsDropped() + " dropped, " +
+                           read + " read back, " + bad + " bad; append " +
+                           String.format("%.0f", ns / (double) total) +
+                           " ns/record");
+        for (int i=0; i<nraces; i++)
+            journals[i].getFile().delete();
+        dir.delete();
+        if ((bad != 0) || (read != total) || (recordsDropped() != 0))
+            System.exit(1);
+    }
+}
@@ -25,6 +25,10 @@ import java.io.*;
 import java.util.regex.*;
 import java.lang.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 // imports from .jar's in lib/
 import org.apache.log4j.Logger;
@@ -32,43 +36,139 @@ import org.apache.log4j.Logger;
 /*
  * A WebPoller is a thread that periodically wakes up and slurps down
  * a page from GoldenWeb that describes the set of active races.
+ *
+ * Lookups of races it doesn't know yet are asynchronous: the caller
+ * gets a CompletableFuture, and the poller is woken to slurp right
+ * away.  Lookups for the same raceid share one future, so a crowd of
+ * riders asking for a brand-new race costs one fetch, and nobody
+ * holds a lock while the fetch is in progress.
  */
 public class WebPoller extends Thread {
     private static final int MAX_FAILURES = 360; // 1 hr's worth
     private static final int POLL_INTERVAL_MS = 10000;
+    private static final int LOOKUP_TIMEOUT_MS = 5000;
+
+    // looks for lines of form:
+    //   raceid='<raceid>' racedistance='<km>' maxriders='<maxriders>'
+    // e.g., raceid='18d1d104e...' racedistance='40.0' maxriders='10'
+    private static final Pattern LINE_REGEXP =
+        Pattern.compile("raceid='([0-9a-fA-F]+)'\\s+" +
+                        "racedistance='([0-9.]+)'\\s+" +
+                        "maxriders='([0-9.]+)'");
     private static Logger    logger =
         Logger.getLogger(WebPoller.class.getName());
 
     private String                   url_to_poll;
-    private Hashtable<String,Race>   currentRaces;
+    // an immutable map, replaced as a whole when the list changes.
+    private volatile Map<String,Race> currentRaces;
+
+    // validators from the last fetch, for conditional requests.
+    private String                   etag = null;
+    private long                     last_modified = 0;
+
+    // lookups waiting for a slurp, by raceid.  each is resolved by
+    // the first slurp that starts after it was made.
+    private ConcurrentHashMap<String,Lookup> pending =
+        new ConcurrentHashMap<String,Lookup>();
+    private volatile long            slurps_started = 0;
+    private Object                   poll_lock = new Object();
+    private boolean                  poll_requested = false;
+
+    // for monitoring: how long slurps take, and how many fail.
+    private LatencyHistogram         slurp_latency = new LatencyHistogram();
+    private volatile long            slurp_failures = 0;
+    private volatile long            last_success_ms = 0;
 
     public WebPoller(String gs_url) {
         url_to_poll = gs_url;
-        currentRaces = new Hashtable<String,Race>();
+        currentRaces = Collections.<String,Race>emptyMap();
         setName("WebPoller");  // sets the thread's name
     }
 
+    // a pending lookup, and the slurp count when it was made.
+    private static class Lookup {
+        final CompletableFuture<Race> future = new CompletableFuture<Race>();
+        final long                    after_slurp;
+
+        Lookup(long after_slurp) {
+            this.after_slurp = after_slurp;
+        }
+    }
+
     /*
      * looks to see if the WebPoller knows about a race with a given
-     * raceid, and if so, returns a reference to the Race structure.
-     * If not, forces a poll (which may cause the caller to block for
-     * a few seconds), and tries again.  If it still can't find the
-     * race, returns null.
+     * raceid.  If so, returns an already-completed future holding a
+     * reference to the Race structure.  If not, forces a poll and
+     * returns a future that completes once the poll is done: with the
+     * Race if the poll found it, or with null if it didn't (or if
+     * nothing came back within LOOKUP_TIMEOUT_MS).  Concurrent lookups
+     * of the same raceid get the same future.
      *
      * note that the race structure is refreshed on every poll, so
-     * findNewRace should be used just to find a Race for the first
+     * findNewRaceAsync should be used just to find a Race for the first
      * time, rather than to keep track of ongoing, active Races with
-     * participants.
+     * participants.  A race we know of that has concluded is treated
+     * as unknown: the poll that resolves the lookup replaces it with a
+     * fresh Race, so it can be raced again.
+     */
+    public CompletableFuture<Race> findNewRaceAsync(final String raceid) {
+        Race foundRace = (Race) currentRaces.get(raceid);
+        if ((foundRace != null) && !foundRace.isConcluded())
+            return CompletableFuture.completedFuture(foundRace);
+
+        Lookup lookup = new Lookup(slurps_started);
+        Lookup existing = pending.putIfAbsent(raceid, lookup);
+        if (existing != null)
+            return existing.future;
+
+        final Lookup mine = lookup;
+        mine.future.completeOnTimeout(null, LOOKUP_TIMEOUT_MS,
+                                      TimeUnit.MILLISECONDS);
+        mine.future.whenComplete(new BiConsumer<Race,Throwable>() {
+                public void accept(Race r, Throwable t) {
+                    pending.remove(raceid, mine);
+                }
+            });
+        poll_now();
+        return mine.future;
+    }
+
+    /*
+     * the blocking version of findNewRaceAsync(): may block the
+     * caller for up to LOOKUP_TIMEOUT_MS.  Returns null if the race
+     * can't be found.
      */
     public Race findNewRace(String raceid) {
-        Race foundRace = null;
+        return findNewRaceAsync(raceid).join();
+    }
 
-        foundRace = (Race) currentRaces.get(raceid);
-        if (foundRace == null) {
-            poll_now();
-            foundRace = (Race) currentRaces.get(raceid);
+    // resolve every lookup made before the slurp numbered "slurp"
+    // started.  later lookups wait for the next slurp.
+    private void resolvePending(long slurp) {
+        Iterator<Map.Entry<String,Lookup>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String,Lookup> e = it.next();
+            if (e.getValue().after_slurp < slurp) {
+                e.getValue().future.complete(currentRaces.get(e.getKey()));
+            }
         }
-        return foundRace;
+    }
+
+    public LatencyHistogram getSlurpLatency() {
+        return slurp_latency;
+    }
+
+    public long getSlurpFailures() {
+        return slurp_failures;
+    }
+
+    // wall-clock time of the last successful slurp, or 0 if none yet.
+    public long getLastSuccessMs() {
+        return last_success_ms;
+    }
+
+    public int numKnownRaces() {
+        return currentRaces.size();
     }
 
     /*
@@ -80,9 +180,19 @@ public class WebPoller extends Thread {
         while(true) {
             // try the slurp; log more than MAX_FAILURES consecutive
             // failures to slurp.
-            if (slurp()) {
+            long start = System.nanoTime();
+            long slurp_num;
+            synchronized(poll_lock) {
+                poll_requested = false;
+                slurp_num = ++slurps_started;
+            }
+            boolean ok = slurp();
+            slurp_latency.record(System.nanoTime() - start);
+            if (ok) {
                 num_failures = 0;
+                last_success_ms = System.currentTimeMillis();
             } else {
+                slurp_failures++;
                 num_failures++;
                 if (num_failures >= MAX_FAILURES) {
                     logger.fatal("" + MAX_FAILURES + " consecutive " +
@@ -91,14 +201,14 @@ public class WebPoller extends Thread {
                     num_failures = 0;
                 }
             }
-            synchronized(currentRaces) {
-                currentRaces.notifyAll();
-            }
+            renewConcluded();
+            resolvePending(slurp_num);
 
             // wait for 10 seconds, or until woken by poll_now().
             try {
-                synchronized(url_to_poll) {
-                    url_to_poll.wait(POLL_INTERVAL_MS);
+                synchronized(poll_lock) {
+                    if (!poll_requested)
+                        poll_lock.wait(POLL_INTERVAL_MS);
                 }
             } catch (java.lang.InterruptedException ie) {
                 // ignore
@@ -107,49 +217,97 @@ public class WebPoller extends Thread {
     }
 
     /*
-     * poll_now() wakes up the polling thread, forces a slurp of the
-     * GoldenWeb page, and waits for up to 5 seconds for the slurp to
-     * finish.
+     * replace every race that has concluded with a fresh Race with the
+     * same parameters.  this runs after every slurp, whether or not
+     * the page had changed (or could be fetched at all), since a race
+     * concludes without GoldenWeb's list changing.  riders still in
+     * the concluded race keep it through the RaceRegistry; the fresh
+     * one is for whoever joins once it has been garbage collected.
+     */
+    private void renewConcluded() {
+        Map<String,Race> known = currentRaces;
+        HashMap<String,Race> next = null;
+        int renewed = 0;
+        for (Map.Entry<String,Race> e : known.entrySet()) {
+            Race race = e.getValue();
+            if (!race.isConcluded())
+                continue;
+            if (next == null)
+                next = new HashMap<String,Race>(known);
+            renewed++;
+            next.put(e.getKey(), new Race(race.getRaceid(),
+                                          race.getRacedistanceKm(),
+                                          race.getMaxriders()));
+        }
+        if (next != null) {
+            currentRaces = Collections.unmodifiableMap(next);
+            logger.debug("GoldenWeb race list: " + renewed +
+                         " concluded races renewed");
+        }
+    }
+
+    /*
+     * poll_now() wakes up the polling thread to force a slurp of the
+     * GoldenWeb page as soon as it is free.  It doesn't wait.
      */
     private void poll_now() {
-        synchronized(currentRaces) {
-            synchronized(url_to_poll) {
-                url_to_poll.notifyAll();
-            }
-            try {
-                currentRaces.wait(5000);
-            } catch (java.lang.InterruptedException ie) {
-            }
+        synchronized(poll_lock) {
+            poll_requested = true;
+            poll_lock.notifyAll();
         }
     }
 
     /*
-     * slurp down the web page and update the list of known races
-     * (i.e., repopulate the currentRaces hashtable).
+     * slurp down the web page and update the list of known races.
+     *
+     * The fetch is conditional: we send back the ETag and
+     * Last-Modified the server gave us last time, and a 304 Not
+     * Modified means there is nothing to do.  (For non-HTTP URLs, e.g.
+     * file:, an unchanged last-modified time does the same.)  The page
+     * is parsed a line at a time as it arrives, and compared to the
+     * races we already know: a race whose parameters haven't changed
+     * keeps its Race object, and only if something was added, removed
+     * or changed is the new map swapped in, in one step, so a lookup
+     * never sees a half-built list.
      */
     private boolean slurp() {
         logger.debug("slurping " + url_to_poll);
-        
+
+        BufferedReader in = null;
         try {
             URL fetchURL = new URL(url_to_poll);
-            BufferedReader in =
-                new BufferedReader(
-                   new InputStreamReader(fetchURL.openStream()));
-            String inputLine;
+            URLConnection conn = fetchURL.openConnection();
+            HttpURLConnection http = null;
+            if (conn instanceof HttpURLConnection) {
+                http = (HttpURLConnection) conn;
+                if (etag != null)
+                    http.setRequestProperty("If-None-Match", etag);
+                if (last_modified != 0)
+                    http.setIfModifiedSince(last_modified);
+                if (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    logger.debug("GoldenWeb race list unchanged");
+                    http.disconnect();
+                    return true;
+                }
+            } else if ((last_modified != 0) &&
+                       (conn.getLastModified() == last_modified)) {
+                logger.debug("GoldenWeb race list unchanged");
+                conn.getInputStream().close();
+                return true;
+            }
 
-            // compile regexp that looks for lines of form:
-            //   raceid='<raceid>' racedistance='<km>' maxriders='<maxriders>'
-            // e.g., raceid='18d1d104e...' racedistance='40.0' maxriders='10'
-            Pattern regexp =
-                Pattern.compile("raceid='([0-9a-fA-F]+)'\\s+" +
-                                "racedistance='([0-9.]+)'\\s+" +
-                                "maxriders='([0-9.]+)'");
+            in = new BufferedReader(
+                   new InputStreamReader(conn.getInputStream()));
+            Map<String,Race> known = currentRaces;
+            HashMap<String,Race> next = new HashMap<String,Race>();
+            Matcher matcher = LINE_REGEXP.matcher("");
+            int added = 0;
+            int changed = 0;
+            String inputLine;
 
-            // get read to allocate and jam races we find into currentRaces
-            currentRaces.clear();
             while ((inputLine = in.readLine()) != null) {
                 // parse input here
-                Matcher matcher = regexp.matcher(inputLine);
+                matcher.reset(inputLine);
                 boolean matchfound = matcher.find();
                 if (!matchfound) {
                     logger.warn("GoldenWeb contained a badly formatted " +
@@ -171,22 +329,162 @@ public class WebPoller extends Thread {
                     continue;
                 }
 
-                // add the new Race structure to our Race hashtable
-                Race newrace = new Race(raceid, racedistance_km, maxriders);
-                if (currentRaces.containsKey(raceid)) {
+                if (next.containsKey(raceid)) {
                     logger.warn("GoldenWeb contained multiple lines with " +
                                 "the same raceid (" + raceid +
                                 ").  using last.");
                 }
-                currentRaces.put(raceid, newrace);
+
+                // keep the Race we already have if nothing about it
+                // changed.  (concluded races are renewed after the
+                // slurp; see renewConcluded().)
+                Race race = known.get(raceid);
+                if ((race == null) ||
+                    (race.getRacedistanceKm() != racedistance_km) ||
+                    (race.getMaxriders() != maxriders)) {
+                    if (race == null)
+                        added++;
+                    else
+                        changed++;
+                    race = new Race(raceid, racedistance_km, maxriders);
+                }
+                next.put(raceid, race);
+            }
+
+            int removed = 0;
+            for (String raceid : known.keySet()) {
+                if (!next.containsKey(raceid))
+                    removed++;
+            }
+            if ((added > 0) || (changed > 0) || (removed > 0)) {
+                currentRaces = Collections.unmodifiableMap(next);
+                logger.debug("GoldenWeb race list: " + added + " added, " +
+                             changed + " changed, " + removed + " removed");
             }
-            in.close();
+
+            // remember the validators only once the whole page has
+            // been applied.
+            if (http != null)
+                etag = http.getHeaderField("ETag");
+            last_modified = conn.getLastModified();
         } catch (MalformedURLException mue) {
             mue.printStackTrace();
             System.exit(-1);
         } catch (IOException ioe) {
             return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                }
+            }
         }
         return true;
     }
+
+    /*
+     * A self test of concluded races under conditional GET.  A stub
+     * GoldenWeb serves a one-race page with an ETag, and answers 304
+     * to every poll that sends it back.  The race is found, raced to
+     * its conclusion, and looked up again: the second lookup must get
+     * a fresh Race, even though every poll since the first has been a
+     * 304 and the page was never parsed again.
+     */
+    public static void main(String[] args) throws Exception {
+        Logger.getRootLogger().setLevel(org.apache.log4j.Level.WARN);
+        final String raceid = "000000000000000000000000000000000000000a";
+        final byte[] page = ("raceid='" + raceid + "' racedistance='0.001' " +
+                             "maxriders='10'\n").getBytes("US-ASCII");
+        final int[] fetches = new int[2];   // 200s, 304s
+        com.sun.net.httpserver.HttpServer stub =
+            com.sun.net.httpserver.HttpServer.create(
+                new InetSocketAddress("127.0.0.1", 0), 0);
+        stub.createContext("/", new com.sun.net.httpserver.HttpHandler() {
+                public void handle(com.sun.net.httpserver.HttpExchange ex)
+                    throws IOException {
+                    ex.getResponseHeaders().set("ETag", "\"v1\"");
+                    if ("\"v1\"".equals(ex.getRequestHeaders()
+                                         .getFirst("If-None-Match"))) {
+                        synchronized(fetches) { fetches[1]++; }
+                        ex.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED,
+                                               -1);
+                    } else {
+                        synchronized(fetches) { fetches[0]++; }
+                        ex.sendResponseHeaders(HttpURLConnection.HTTP_OK,
+                                               page.length);
+                        ex.getResponseBody().write(page);
+                    }
+                    ex.close();
+                }
+            });
+        stub.start();
+
+        WebPoller poller = new WebPoller("http://127.0.0.1:" +
+                                         stub.getAddress().getPort() + "/");
+        poller.setDaemon(true);
+        poller.start();
+
+        boolean ok = true;
+        Race first = poller.findNewRace(raceid);
+        if (first == null) {
+            System.out.println("race not found");
+            System.exit(1);
+        }
+
+        // race it: one rider, fast enough to cross the line.
+        MessageSink sink = new MessageSink() {
+                private Mailbox queue = new Mailbox(64);
+                public boolean add(ProtocolHandler.ProtocolMessage m) {
+                    return queue.offer(m);
+                }
+                public void setCodec(WireCodec codec) {
+                }
+                public Mailbox getMailbox() {
+                    return queue;
+                }
+            };
+        Rider rider = new Rider("test", 250, (float) 75.0, null, sink);
+        rider.setRiderid("0001");
+        first.addClient(rider);
+        ProtocolHandler.TelemetryMessage tm =
+            new ProtocolHandler.TelemetryMessage(raceid, "0001", 250, 90,
+                                                 (float) 0.0, 150,
+                                                 (float) 100.0);
+        first.telemetryUpdate(rider, tm);
+        Thread.sleep(100);
+        first.telemetryUpdate(rider, tm);
+        if (!first.isConcluded()) {
+            System.out.println("race didn't conclude");
+            ok = false;
+        }
+
+        int notmodified_before;
+        synchronized(fetches) { notmodified_before = fetches[1]; }
+        Race second = poller.findNewRace(raceid);
+        int full, notmodified;
+        synchronized(fetches) { full = fetches[0]; notmodified = fetches[1]; }
+        if ((second == null) || (second == first) || second.isConcluded()) {
+            System.out.println("lookup after the race concluded got " +
+                               ((second == first) ? "the concluded race" :
+                                (second == null) ? "nothing" : "a concluded race"));
+            ok = false;
+        }
+        if ((full != 1) || (notmodified <= notmodified_before)) {
+            System.out.println("expected one full fetch and then 304s, got " +
+                               full + " and " + notmodified);
+            ok = false;
+        }
+        if ((second != null) &&
+            (poller.findNewRace(raceid) != second)) {
+            System.out.println("a live race was replaced");
+            ok = false;
+        }
+        stub.stop(0);
+        System.out.println("web poller test: " + full + " full fetches, " +
+                           notmodified + " not modified; " +
+                           (ok ? "ok" : "FAILED"));
+        if (!ok)
+            System.exit(1);
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2010 Steve Gribble [ gribble {at} cs.washington.edu ]
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ */
+
+package org.goldencheetah.goldenserver;
+
+import java.nio.ByteBuffer;
+
+/*
+ * A WireCodec is how a connection renders ProtocolMessages onto the
+ * wire.  There are two: ASCII, the original line protocol (version
+ * 0.1), and BINARY, the compact record form (version 0.2).  A client
+ * picks one with the protocol version in its hello; see
+ * forVersion().  The handshake replies are ASCII lines in both, so a
+ * connection can switch codecs as soon as it has read the hello.
+ *
+ * Race neither knows nor cares which codec its riders use: it queues
+ * the same ProtocolMessages (and Frames) for everyone, and each
+ * connection's writer renders them with its own codec.
+ */
+public abstract class WireCodec {
+    public static final WireCodec ASCII = new WireCodec("0.1") {
+            ByteBuffer append(ByteBuffer buf,
+                              ProtocolHandler.ProtocolMessage pm) {
+                return AsciiEncoder.append(buf, pm);
+            }
+        };
+
+    public static final WireCodec BINARY = new WireCodec("0.2") {
+            ByteBuffer append(ByteBuffer buf,
+                              ProtocolHandler.ProtocolMessage pm) {
+                return BinaryCodec.append(buf, pm);
+            }
+        };
+
+    private final String protoversion;
+
+    private WireCodec(String protoversion) {
+        this.protoversion = protoversion;
+    }
+
+    /*
+     * The codec for the protocol version a client asked for in its
+     * hello.  Versions we don't know get the line protocol, and the
+     * hellosucceed tells the client which version it got.
+     */
+    public static WireCodec forVersion(String protoversion) {
+        if (BINARY.protoversion.equals(protoversion))
+            return BINARY;
+        return ASCII;
+    }
+
+    public String getProtoversion() {
+        return protoversion;
+    }
+
+    /*
+     * Append pm to buf in this codec, growing the buffer if needed.
+     * Returns the buffer to keep using.
+     */
+    abstract ByteBuffer append(ByteBuffer buf,
+                               ProtocolHandler.ProtocolMessage pm);
+
+    public String toString() {
+        return protoversion;
+    }
+}